@@ -0,0 +1,158 @@
+package com.luboganev.cloudwave.benchmark;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.luboganev.cloudwave.service.TracksResponseParser;
+
+/**
+ * Compares the streaming {@link TracksResponseParser} with reading the whole
+ * response into a String and parsing it into a Gson tree, as it was done before,
+ * on a synthetic response of 10000 full SoundCloud track objects.
+ * <p>
+ * It is a plain JVM program, run it from the project directory with
+ * <pre>
+ * javac -cp libs/gson-2.2.4.jar -d /tmp/benchmark src/com/luboganev/cloudwave/service/TracksResponseParser.java \
+ *     benchmark/src/com/luboganev/cloudwave/benchmark/TracksResponseParserBenchmark.java
+ * java -cp libs/gson-2.2.4.jar:/tmp/benchmark com.luboganev.cloudwave.benchmark.TracksResponseParserBenchmark
+ * </pre>
+ * The allocated bytes are only printed on JVMs which can measure them per thread.
+ */
+public class TracksResponseParserBenchmark {
+	private static final int TRACKS_COUNT = 10000;
+	private static final int WARMUP_RUNS = 15;
+	private static final int MEASURED_RUNS = 30;
+
+	/** Keeps the parsed values alive, so the JIT cannot drop the parsing */
+	private static long sSink;
+
+	private interface Parser {
+		public void parse(byte[] response) throws IOException;
+	}
+
+	public static void main(String[] args) throws Exception {
+		byte[] response = createResponse(TRACKS_COUNT).getBytes("UTF-8");
+		System.out.printf("response with %d tracks: %.1f MB%n", TRACKS_COUNT, response.length / 1e6);
+		measure("tree", new Parser() {
+			@Override
+			public void parse(byte[] response) throws IOException {
+				parseTree(response);
+			}
+		}, response);
+		measure("streaming", new Parser() {
+			@Override
+			public void parse(byte[] response) throws IOException {
+				parseStreaming(response);
+			}
+		}, response);
+		System.out.println("checksum " + sSink);
+	}
+
+	/**
+	 * The previous way, the whole response as a String and a tree of all values
+	 */
+	private static void parseTree(byte[] response) throws IOException {
+		String json = readAsString(new ByteArrayInputStream(response));
+		JsonArray tracks = new JsonParser().parse(json).getAsJsonArray();
+		for (JsonElement element : tracks) {
+			JsonObject track = element.getAsJsonObject();
+			sSink += track.get("id").getAsLong() + track.get("title").getAsString().length()
+					+ track.get("permalink_url").getAsString().length()
+					+ track.get("waveform_url").getAsString().length();
+		}
+	}
+
+	private static void parseStreaming(byte[] response) throws IOException {
+		Reader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(response), "UTF-8"));
+		TracksResponseParser.parseTracks(reader, new TracksResponseParser.TrackHandler() {
+			@Override
+			public void onTrack(long id, String title, String permalinkUrl, String waveformUrl) {
+				sSink += id + title.length() + permalinkUrl.length() + waveformUrl.length();
+			}
+		});
+		reader.close();
+	}
+
+	private static void measure(String name, Parser parser, byte[] response) throws IOException {
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			parser.parse(response);
+		}
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		boolean measureAllocations = threadBean instanceof com.sun.management.ThreadMXBean;
+		long threadId = Thread.currentThread().getId();
+		long best = Long.MAX_VALUE;
+		long allocated = 0;
+		for (int i = 0; i < MEASURED_RUNS; i++) {
+			long allocatedBefore = measureAllocations
+					? ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(threadId) : 0;
+			long start = System.nanoTime();
+			parser.parse(response);
+			best = Math.min(best, System.nanoTime() - start);
+			if(measureAllocations) {
+				allocated = ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(threadId) - allocatedBefore;
+			}
+		}
+		if(measureAllocations) {
+			System.out.printf("%-10s best of %d: %7.1f ms, %7.1f MB allocated per parse%n",
+					name, MEASURED_RUNS, best / 1e6, allocated / 1e6);
+		}
+		else {
+			System.out.printf("%-10s best of %d: %7.1f ms%n", name, MEASURED_RUNS, best / 1e6);
+		}
+	}
+
+	private static String readAsString(InputStream is) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+		StringBuilder sb = new StringBuilder();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			sb.append(line).append('\n');
+		}
+		reader.close();
+		return sb.toString();
+	}
+
+	/**
+	 * @return
+	 * 		A JSON array of track objects with all fields the API returns
+	 */
+	private static String createResponse(int tracksCount) {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < tracksCount; i++) {
+			long id = 100000000L + i;
+			if(i > 0) sb.append(",\n");
+			sb.append("{\"kind\":\"track\",\"id\":").append(id)
+				.append(",\"created_at\":\"2013/08/01 12:00:00 +0000\",\"user_id\":12345,\"duration\":245000,")
+				.append("\"commentable\":true,\"state\":\"finished\",\"original_content_size\":9876543,")
+				.append("\"sharing\":\"public\",\"tag_list\":\"chillstep dubstep ambient\",\"permalink\":\"track-").append(i)
+				.append("\",\"streamable\":true,\"embeddable_by\":\"all\",\"downloadable\":false,\"purchase_url\":null,")
+				.append("\"label_id\":null,\"purchase_title\":null,\"genre\":\"Chillstep\",")
+				.append("\"title\":\"Some Artist - A Fairly Long Track Title Number ").append(i)
+				.append("\",\"description\":\"Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod ")
+				.append("tempor incididunt ut labore et dolore magna aliqua.\",\"label_name\":\"\",\"release\":\"\",")
+				.append("\"track_type\":\"\",\"key_signature\":\"\",\"isrc\":\"\",\"video_url\":null,\"bpm\":null,")
+				.append("\"release_year\":null,\"release_month\":null,\"release_day\":null,\"original_format\":\"mp3\",")
+				.append("\"license\":\"all-rights-reserved\",\"uri\":\"https://api.soundcloud.com/tracks/").append(id)
+				.append("\",\"user\":{\"id\":12345,\"kind\":\"user\",\"permalink\":\"heedthesound\",")
+				.append("\"username\":\"Heed The Sound\",\"uri\":\"https://api.soundcloud.com/users/12345\",")
+				.append("\"permalink_url\":\"http://soundcloud.com/heedthesound\",")
+				.append("\"avatar_url\":\"https://i1.sndcdn.com/avatars-000000000000-aaaaaa-large.jpg\"},")
+				.append("\"permalink_url\":\"http://soundcloud.com/heedthesound/track-").append(i)
+				.append("\",\"artwork_url\":null,\"waveform_url\":\"https://w1.sndcdn.com/abcdefghijk").append(i)
+				.append("_m.png\",\"stream_url\":\"https://api.soundcloud.com/tracks/").append(id).append("/stream\",")
+				.append("\"playback_count\":1234,\"download_count\":0,\"favoritings_count\":56,\"comment_count\":7,")
+				.append("\"attachments_uri\":\"https://api.soundcloud.com/tracks/").append(id).append("/attachments\"}");
+		}
+		return sb.append("]").toString();
+	}
+}
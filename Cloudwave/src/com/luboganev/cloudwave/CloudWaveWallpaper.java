@@ -1,35 +1,26 @@
 package com.luboganev.cloudwave;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicReference;
+
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapFactory.Options;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
-import android.graphics.Rect;
 import android.net.Uri;
 import android.service.wallpaper.WallpaperService;
-import android.support.v4.content.LocalBroadcastManager;
-import android.text.Layout.Alignment;
-import android.text.StaticLayout;
-import android.text.TextPaint;
-import android.util.TypedValue;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 
-import com.luboganev.cloudwave.data.LocalStorageManager;
-import com.luboganev.cloudwave.data.Track;
-import com.luboganev.cloudwave.receivers.AlarmReceiver;
-import com.luboganev.cloudwave.service.ChangeWallpaperService;
+import com.luboganev.cloudwave.data.StorageRepository;
+import com.luboganev.cloudwave.data.StorageSnapshot;
+import com.luboganev.cloudwave.render.FrameGeometry;
+import com.luboganev.cloudwave.render.RenderThread;
+import com.luboganev.cloudwave.render.TrackLoader;
+import com.luboganev.cloudwave.render.TrackRenderState;
+import com.luboganev.cloudwave.service.ChangeScheduler;
+import com.luboganev.cloudwave.service.DownloadEngine;
+import com.luboganev.cloudwave.service.PrefetchSettings;
 
 /**
  * This live wallpaper draws the soundwave and name of a random Soundcloud track by an artist.
@@ -37,21 +28,63 @@ import com.luboganev.cloudwave.service.ChangeWallpaperService;
  */
 public class CloudWaveWallpaper extends WallpaperService {
 	private CubeEngine mWallpaperEngine;
-	private ChangedWallpaperReceiver mChangeWallpaperReceiver = new ChangedWallpaperReceiver();
+	private StorageSubscriber mStorageSubscriber = new StorageSubscriber();
 	
 	@Override
 	public void onCreate() {
 		super.onCreate();
 		LogUtils.d(this, "onCreate");
-		LocalBroadcastManager.getInstance(getApplicationContext()).registerReceiver(
-				mChangeWallpaperReceiver, new IntentFilter(ChangeWallpaperService.INTENT_ACTION_NOTIFY_WALLPAPER_CHANGE));
+		StorageRepository.getInstance(getApplicationContext()).subscribe(mStorageSubscriber);
 	}
 	
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
 		LogUtils.d(this, "onDestroy");
-		LocalBroadcastManager.getInstance(getApplicationContext()).unregisterReceiver(mChangeWallpaperReceiver);
+		StorageRepository.getInstance(getApplicationContext()).unsubscribe(mStorageSubscriber);
+	}
+	
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		// adb shell dumpsys activity service com.luboganev.cloudwave/.CloudWaveWallpaper [trace on|off] [export]
+		// [prefetch [default|<depth> <max bytes per run> <concurrency> <soundwave byte budget>|lookahead <bytes>]]
+		if(args != null && args.length == 1 && "export".equals(args[0])) {
+			// kept on the device, e.g. to be pulled after a long test run
+			File file = Metrics.exportToFile(getApplicationContext());
+			writer.println(file != null ? "Metrics exported to " + file.getPath() : "Cannot export the metrics");
+			writer.flush();
+			return;
+		}
+		if(args != null && args.length == 2 && "trace".equals(args[0])) {
+			LogUtils.setTracingEnabled("on".equals(args[1]), LogUtils.DEFAULT_TRACE_CAPACITY);
+			writer.println("Tracing " + (LogUtils.isTracingEnabled() ? "enabled" : "disabled"));
+			writer.flush();
+			return;
+		}
+		if(args != null && args.length >= 1 && "prefetch".equals(args[0])) {
+			PrefetchSettings settings = new PrefetchSettings(getApplicationContext());
+			try {
+				if(args.length == 2 && "default".equals(args[1])) {
+					settings.clear();
+				}
+				else if(args.length == 3 && "lookahead".equals(args[1])) {
+					settings.setLookAheadMemoryCeiling(Integer.parseInt(args[2]));
+				}
+				else if(args.length == 5) {
+					settings.set(Integer.parseInt(args[1]), Long.parseLong(args[2]), 
+							Integer.parseInt(args[3]), Long.parseLong(args[4]));
+				}
+			} catch (NumberFormatException e) {
+				writer.println("Invalid prefetch settings");
+			}
+			CubeEngine engine = mWallpaperEngine;
+			if(engine != null) engine.setLookAheadMemoryCeiling(settings.getLookAheadMemoryCeiling());
+			writer.println("Prefetch " + settings);
+			writer.flush();
+			return;
+		}
+		Metrics.dump(writer);
+		LogUtils.dumpTrace(writer);
 	}
 	
     @Override
@@ -61,59 +94,79 @@ public class CloudWaveWallpaper extends WallpaperService {
         return mWallpaperEngine;
     }
     
-    private class ChangedWallpaperReceiver extends BroadcastReceiver {
+    /**
+     * Follows the snapshots of the local storage. The first snapshot only 
+     * tells the state at subscribing, the engine loads that state itself.
+     */
+    private class StorageSubscriber implements StorageRepository.Subscriber {
+    	private StorageSnapshot mLastSnapshot;
+    	
     	@Override
-		public void onReceive(Context context, Intent intent) {
-    		LogUtils.d(this, "onReceiveWallpaperChange");
-    		if(mWallpaperEngine != null) {
-				mWallpaperEngine.changeWallpaper();
+		public void onStorageChanged(StorageSnapshot snapshot) {
+    		StorageSnapshot last = mLastSnapshot;
+    		mLastSnapshot = snapshot;
+    		if(last == null) return;
+    		if(snapshot.trackChangesCount != last.trackChangesCount && snapshot.currentTrack != null) {
+    			LogUtils.d(this, "onWallpaperChange");
+    			if(mWallpaperEngine != null) {
+    				mWallpaperEngine.changeWallpaper(snapshot.getCurrentTrackId());
+    			}
+    			//schedule the next time
+    			ChangeScheduler.getInstance(getApplicationContext()).onWallpaperChanged();
+    		}
+    		else if(snapshot.nextSoundwaveReady 
+    				&& (!last.nextSoundwaveReady || snapshot.getNextTrackId() != last.getNextTrackId())) {
+    			LogUtils.d(this, "onNextTrackReady");
+    			if(mWallpaperEngine != null) {
+    				mWallpaperEngine.prepareNextTrack();
+    			}
     		}
-    		//schedule the next time
-    		AlarmReceiver.setOneTimeAlarm(getApplicationContext(), 60 * 60 * 1000);
     	}
     }
     
-    class CubeEngine extends Engine  {
-        private Bitmap mCurrentSoundwave;
-        private String mTitle;
-        private String mPermalinkUrl;
+    class CubeEngine extends Engine implements TrackLoader.Callback, RenderThread.Callback {
+        /** The currently shown track. It is swapped as a whole once the next one is loaded */
+        private final AtomicReference<TrackRenderState> mRenderState = new AtomicReference<TrackRenderState>();
         private boolean mIsVisible;
         private GestureDetector mGestureDetector;
+        private RenderThread mRenderThread;
+        private TrackLoader mTrackLoader;
 
         CubeEngine() {
         	LogUtils.d(this, "CubeEngine constructor");
         	mIsVisible = false;
         }
         
-        private void loadDefaultTrack() {
-        	LogUtils.d(this, "loading default" + " preview:" + isPreview());
-    		mPermalinkUrl = getResources().getString(R.string.heed_the_sound_sample_permalink);
-    		mTitle = getResources().getString(R.string.heed_the_sound_sample_title);
-    		Options opt = new Options();
-    		opt.inPreferredConfig = Config.ALPHA_8;
-    		mCurrentSoundwave = BitmapFactory.decodeResource(getResources(), R.drawable.heed_the_sound_sample, opt);
+        @Override
+        public void onTrackLoaded(TrackRenderState state) {
+        	LogUtils.d(this, "onTrackLoaded");
+        	mRenderState.set(state);
+        	if(mIsVisible || isPreview()) redraw();
+        	if(!isPreview()) mTrackLoader.prepareNextTrack();
         }
-        
-        private void reloadTrack() {
-        	LogUtils.d(this, "reloadTrack");
-        	LocalStorageManager manager = new LocalStorageManager(getApplicationContext());
-        	if(mCurrentSoundwave != null) mCurrentSoundwave.recycle();
-        	if(manager.hasSavedLocalStorage()) {
-        		LogUtils.d(this, "from file");
-        		manager.loadFromFile();
-        		Track track = manager.getCurrentTrack();
-        		Options opt = new Options();
-				opt.inPreferredConfig = Config.ALPHA_8;
-				mPermalinkUrl = track.permalinkUrl;
-				mTitle = track.title;
-				mCurrentSoundwave = BitmapFactory.decodeFile(manager.generateSoundwaveFileUri(track.id).getPath(), opt);
-        	}
-        	else {
-        		// nothing downloaded, so we load the sample data
-        		loadDefaultTrack();
-        	}
+
+        @Override
+        public TrackRenderState getRenderState() {
+        	return mRenderState.get();
+        }
+
+        @Override
+        public void onFrameGeometryChanged(FrameGeometry geometry) {
+        	// upcoming tracks get laid out for the new surface
+        	mTrackLoader.setFrameGeometry(geometry);
         }
 
+        /**
+         * Applies a new memory ceiling to the next track prepared in advance
+         * 
+         * @param bytes
+         * 		The ceiling in bytes. Zero disables preparing tracks in advance.
+         */
+        void setLookAheadMemoryCeiling(int bytes) {
+        	TrackLoader trackLoader = mTrackLoader;
+        	if(trackLoader != null) trackLoader.setLookAheadMemoryCeiling(bytes);
+        }
+        
         @Override
         public void onCreate(SurfaceHolder surfaceHolder) {
             super.onCreate(surfaceHolder);
@@ -122,35 +175,64 @@ public class CloudWaveWallpaper extends WallpaperService {
             
             mGestureDetector = new GestureDetector(getApplicationContext(), new DoubleTapListener());
             
+            mTrackLoader = new TrackLoader(getApplicationContext(), this);
+            mTrackLoader.setLookAheadMemoryCeiling(
+            		new PrefetchSettings(getApplicationContext()).getLookAheadMemoryCeiling());
+            mRenderThread = new RenderThread(getApplicationContext(), this);
             if(!isPreview()) {
-            	AlarmReceiver.setOneTimeAlarm(getApplicationContext(), 0);
-            	reloadTrack();
+            	// the changes are only made while the wallpaper is visible
+            	ChangeScheduler.getInstance(getApplicationContext()).start();
+            	mTrackLoader.loadCurrentTrack();
             }
-            else loadDefaultTrack();
+            else mTrackLoader.loadDefaultTrack();
         }
 
         @Override
         public void onDestroy() {
             super.onDestroy();
-            LogUtils.d(this, "onDestroy" + " preview:" + isPreview());
+            LogUtils.d(this, "onDestroy preview:{}", isPreview());
             if(!isPreview()) {
-            	AlarmReceiver.cancelAlarm(getApplicationContext());
+            	ChangeScheduler.getInstance(getApplicationContext()).stop();
+            	// the wallpaper has been removed, so nothing needs the downloads anymore
+            	DownloadEngine.getInstance(getApplicationContext()).cancelAll();
             }
+            mTrackLoader.quit();
+            mRenderThread.quit();
         }
 
-//        @Override
-//        public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-//            super.onSurfaceChanged(holder, format, width, height);
-//            LogUtils.d(this, "onSurfaceChanged visible:" + mIsVisible + " preview:" + isPreview());
-//            if(mIsVisible || isPreview()) redraw();
-//        }
+        @Override
+        public void onSurfaceCreated(SurfaceHolder holder) {
+        	super.onSurfaceCreated(holder);
+        	LogUtils.d(this, "onSurfaceCreated");
+        	mRenderThread.onSurfaceCreated(holder);
+        }
+
+        @Override
+        public void onSurfaceDestroyed(SurfaceHolder holder) {
+        	LogUtils.d(this, "onSurfaceDestroyed");
+        	// waits until the render thread has stopped drawing on the surface
+        	mRenderThread.onSurfaceDestroyed();
+        	super.onSurfaceDestroyed(holder);
+        }
+
+        @Override
+        public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            super.onSurfaceChanged(holder, format, width, height);
+            LogUtils.d(this, "onSurfaceChanged visible:{} preview:{}", mIsVisible, isPreview());
+            // the frame geometry is keyed by the surface size, so it gets rebuilt on the next redraw
+            if(mIsVisible || isPreview()) redraw();
+        }
 
         @Override
         public void onVisibilityChanged(boolean visible) {
         	super.onVisibilityChanged(visible);
         	if(visible) redraw();
-        	LogUtils.d(this, "onVisibilityChanged visible:" + mIsVisible);
+        	LogUtils.d(this, "onVisibilityChanged visible:{}", mIsVisible);
         	mIsVisible = visible;
+        	if(!isPreview()) {
+        		// a change which became due while hidden is caught up now
+        		ChangeScheduler.getInstance(getApplicationContext()).setWallpaperVisible(visible);
+        	}
         }
         
 		private class DoubleTapListener extends
@@ -164,8 +246,10 @@ public class CloudWaveWallpaper extends WallpaperService {
 			// event when double tap occurs
 			@Override
 			public boolean onDoubleTap(MotionEvent e) {
+				TrackRenderState state = mRenderState.get();
+				if(state == null) return false;
 				Intent i = new Intent(Intent.ACTION_VIEW);
-				i.setData(Uri.parse(mPermalinkUrl));
+				i.setData(Uri.parse(state.permalinkUrl));
 				i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 				startActivity(i);
 				return true;
@@ -178,99 +262,39 @@ public class CloudWaveWallpaper extends WallpaperService {
             mGestureDetector.onTouchEvent(event);
         }
         
-        public void changeWallpaper() {
+        /**
+         * Shows the new current track
+         * 
+         * @param trackId
+         * 		The id of the new current track
+         */
+        public void changeWallpaper(long trackId) {
         	LogUtils.d(this, "changeWallpaper");
-        	reloadTrack();
-        	if(mIsVisible) redraw();
+        	TrackRenderState prepared = mTrackLoader.takePreparedTrack(trackId);
+        	if(prepared != null) {
+        		// the track was already prepared in advance, so just swap it
+        		Metrics.PREPARED_TRACK_HITS.increment();
+        		onTrackLoaded(prepared);
+        	}
+        	else {
+        		Metrics.PREPARED_TRACK_MISSES.increment();
+        		// the loaded track gets shown in onTrackLoaded
+        		mTrackLoader.loadCurrentTrack();
+        	}
         }
         
-		private int dipToPixels(int dipValue) {
-			Resources r = getResources();
-			int px = (int) TypedValue.applyDimension(
-					TypedValue.COMPLEX_UNIT_DIP, dipValue,
-					r.getDisplayMetrics());
-			return px;
-		}
+        /**
+         * Prepares the next track in advance
+         */
+        public void prepareNextTrack() {
+        	if(!isPreview()) mTrackLoader.prepareNextTrack();
+        }
         
+		/**
+		 * Requests a frame from the render thread
+		 */
 		private void redraw() {
-			LogUtils.d(this, "redraw");
-			SurfaceHolder holder = getSurfaceHolder();
-			Canvas c = null;
-			try {
-				c = holder.lockCanvas();
-				if (c != null) {
-					int width = c.getWidth();
-					int height = c.getHeight();
-					int soundWaveHeight = height / 3;
-					
-					Rect soundwaveBoundingRect = new Rect(0, soundWaveHeight, width, soundWaveHeight * 2);
-					Rect titleBoundingRect = new Rect(dipToPixels(8), 
-							soundwaveBoundingRect.bottom + dipToPixels(8), 
-							width - dipToPixels(8), 
-							soundwaveBoundingRect.bottom + soundWaveHeight / 2);
-					
-					c.drawColor(getApplicationContext().getResources().getColor(R.color.black));
-					c.save();
-					
-					// draw the inside of the sound wave
-		            int sc = c.saveLayer(0, 0, width, height, null,
-		                                      Canvas.MATRIX_SAVE_FLAG |
-		                                      Canvas.CLIP_SAVE_FLAG |
-		                                      Canvas.HAS_ALPHA_LAYER_SAVE_FLAG |
-		                                      Canvas.FULL_COLOR_LAYER_SAVE_FLAG |
-		                                      Canvas.CLIP_TO_LAYER_SAVE_FLAG);
-		            
-		            c.clipRect(soundwaveBoundingRect);
-		            
-		            Paint paint = new Paint();
-		            paint.setFilterBitmap(false);
-		            paint.setColor(getApplicationContext().getResources().getColor(R.color.orange));
-		            c.drawPaint(paint);
-		            paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
-		            c.drawBitmap(mCurrentSoundwave, 
-		            		new Rect(0,0,mCurrentSoundwave.getWidth(), mCurrentSoundwave.getHeight()), 
-		            		soundwaveBoundingRect, paint);
-		            paint.setXfermode(null);
-		            c.restore();
-		            c.restoreToCount(sc);
-		            
-		            // Draw the title
-		            int startTextSizeInPixels = dipToPixels(16);
-		            TextPaint textPaint = new TextPaint();
-		            textPaint.setTextSize(startTextSizeInPixels);
-		            textPaint.setColor(Color.WHITE);
-		            textPaint.setAntiAlias(true);
-		            
-		            // setup the bounding box for the text
-		            int maxRowsCount = (int)Math.floor(((double)titleBoundingRect.height()) / (1.5d * (double)startTextSizeInPixels));
-		            int maxTitleWidth = maxRowsCount * titleBoundingRect.width();
-		            float wholeWidth = textPaint.measureText(mTitle);
-		            StaticLayout sl;
-		            if(wholeWidth > maxTitleWidth) {
-		            	int symbolsCount = (int)(maxTitleWidth / (wholeWidth / mTitle.length())) - 4;
-		            	String truncated = mTitle.substring(0, symbolsCount) + "...";
-		            	sl = new StaticLayout(truncated, 0, truncated.length(), 
-		            			textPaint, titleBoundingRect.width(), 
-		            			Alignment.ALIGN_CENTER, 1.0f, 1.0f,
-		            			false, null, 0);
-		            }
-		            else {
-		            	sl = new StaticLayout(mTitle, 0, mTitle.length(), 
-		            			textPaint, titleBoundingRect.width(), 
-		            			Alignment.ALIGN_CENTER, 1.0f, 1.0f,
-		            			false, null, 0);
-		            }
-		            
-		            // draw the text
-		            c.save();
-		            c.translate(titleBoundingRect.left, titleBoundingRect.top);
-		            sl.draw(c);
-		            c.restore();
-				}
-			} finally {
-				if (c != null)
-					holder.unlockCanvasAndPost(c);
-			}
+			mRenderThread.requestRender();
 		}
     }
 }
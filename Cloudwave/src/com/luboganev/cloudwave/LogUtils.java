@@ -1,57 +1,333 @@
 package com.luboganev.cloudwave;
 
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
 import android.util.Log;
 
 /**
- * Useful class which logs debug or error messages 
+ * Useful class which logs debug or error messages
  * under a specific TAG when in debug mode
+ * <p>
+ * Messages are parameterized, every {} is replaced by the next argument, and
+ * there are overloads for primitive arguments. The message is only built when
+ * it is really logged, so a call allocates nothing while logging is disabled.
+ * <p>
+ * Independent of the debug mode, tracing can be enabled at runtime. The messages
+ * are then recorded with their raw arguments into a fixed size ring buffer instead
+ * of the system log, which can be dumped with {@link #dumpTrace(PrintWriter)}.
  */
 public class LogUtils {
 	public static final String TAG = "CloudWave";
-	
+
 	/**
-	 * 	This variable defines the current mode of the application. 
+	 * 	This variable defines the current mode of the application.
 	 * 	When it is being released, the debug mode will be set to false.
 	 */
 	public static final boolean DEBUG = false;
-	
+
+	/** Default number of events kept by the trace ring buffer */
+	public static final int DEFAULT_TRACE_CAPACITY = 512;
+
+	private static final int LEVEL_DEBUG = 0;
+	private static final int LEVEL_ERROR = 1;
+
+	private static final int ARG_NONE = 0;
+	private static final int ARG_LONG = 1;
+	private static final int ARG_BOOLEAN = 2;
+	private static final int ARG_OBJECT = 3;
+	/** Bits per argument type in the packed argument types */
+	private static final int ARG_TYPE_BITS = 2;
+
+	private static volatile TraceBuffer sTraceBuffer;
+
 	/**
 	 * 	Prints a debug message in the system log
-	 * 
+	 *
 	 * @param sender
 	 * 		A string with custom name or a class
 	 * @param message
 	 * 		The message to be logged
 	 */
 	public static void d(Object sender, String message) {
-		if(DEBUG) Log.d(TAG,  getSenderString(sender) + ": " + message);
+		if(DEBUG || sTraceBuffer != null) log(LEVEL_DEBUG, sender, message, ARG_NONE, 0, 0, null);
+	}
+
+	/**
+	 * 	Prints a debug message with a number in the system log
+	 *
+	 * @param sender
+	 * 		A string with custom name or a class
+	 * @param message
+	 * 		The message to be logged, {} is replaced by the argument
+	 * @param arg
+	 * 		The argument
+	 */
+	public static void d(Object sender, String message, long arg) {
+		if(DEBUG || sTraceBuffer != null) log(LEVEL_DEBUG, sender, message, ARG_LONG, arg, 0, null);
+	}
+
+	/**
+	 * 	Prints a debug message with two numbers in the system log
+	 *
+	 * @param sender
+	 * 		A string with custom name or a class
+	 * @param message
+	 * 		The message to be logged, each {} is replaced by the next argument
+	 * @param arg1
+	 * 		The first argument
+	 * @param arg2
+	 * 		The second argument
+	 */
+	public static void d(Object sender, String message, long arg1, long arg2) {
+		if(DEBUG || sTraceBuffer != null) {
+			log(LEVEL_DEBUG, sender, message, ARG_LONG | ARG_LONG << ARG_TYPE_BITS, arg1, arg2, null);
+		}
 	}
-	
+
+	/**
+	 * 	Prints a debug message with a flag in the system log
+	 *
+	 * @param sender
+	 * 		A string with custom name or a class
+	 * @param message
+	 * 		The message to be logged, {} is replaced by the argument
+	 * @param arg
+	 * 		The argument
+	 */
+	public static void d(Object sender, String message, boolean arg) {
+		if(DEBUG || sTraceBuffer != null) log(LEVEL_DEBUG, sender, message, ARG_BOOLEAN, arg ? 1 : 0, 0, null);
+	}
+
+	/**
+	 * 	Prints a debug message with two flags in the system log
+	 *
+	 * @param sender
+	 * 		A string with custom name or a class
+	 * @param message
+	 * 		The message to be logged, each {} is replaced by the next argument
+	 * @param arg1
+	 * 		The first argument
+	 * @param arg2
+	 * 		The second argument
+	 */
+	public static void d(Object sender, String message, boolean arg1, boolean arg2) {
+		if(DEBUG || sTraceBuffer != null) {
+			log(LEVEL_DEBUG, sender, message, ARG_BOOLEAN | ARG_BOOLEAN << ARG_TYPE_BITS,
+					arg1 ? 1 : 0, arg2 ? 1 : 0, null);
+		}
+	}
+
+	/**
+	 * 	Prints a debug message with an object in the system log
+	 *
+	 * @param sender
+	 * 		A string with custom name or a class
+	 * @param message
+	 * 		The message to be logged, {} is replaced by the string of the argument
+	 * @param arg
+	 * 		The argument, which should be immutable since it is kept in the trace
+	 */
+	public static void d(Object sender, String message, Object arg) {
+		if(DEBUG || sTraceBuffer != null) log(LEVEL_DEBUG, sender, message, ARG_OBJECT, 0, 0, arg);
+	}
+
 	/**
 	 * 	Prints an error message in the system log
-	 * 
+	 *
 	 * @param sender
 	 * 		A string with custom name or a class
 	 * @param message
 	 * 		The message to be logged
 	 */
 	public static void e(Object sender, String message) {
-		if(DEBUG) Log.e(TAG,  getSenderString(sender) + ": " + message);
+		if(DEBUG || sTraceBuffer != null) log(LEVEL_ERROR, sender, message, ARG_NONE, 0, 0, null);
+	}
+
+	/**
+	 * 	Prints an error message with two numbers in the system log
+	 *
+	 * @param sender
+	 * 		A string with custom name or a class
+	 * @param message
+	 * 		The message to be logged, each {} is replaced by the next argument
+	 * @param arg1
+	 * 		The first argument
+	 * @param arg2
+	 * 		The second argument
+	 */
+	public static void e(Object sender, String message, long arg1, long arg2) {
+		if(DEBUG || sTraceBuffer != null) {
+			log(LEVEL_ERROR, sender, message, ARG_LONG | ARG_LONG << ARG_TYPE_BITS, arg1, arg2, null);
+		}
+	}
+
+	/**
+	 * 	Prints an error message with an object in the system log
+	 *
+	 * @param sender
+	 * 		A string with custom name or a class
+	 * @param message
+	 * 		The message to be logged, {} is replaced by the string of the argument
+	 * @param arg
+	 * 		The argument, which should be immutable since it is kept in the trace
+	 */
+	public static void e(Object sender, String message, Object arg) {
+		if(DEBUG || sTraceBuffer != null) log(LEVEL_ERROR, sender, message, ARG_OBJECT, 0, 0, arg);
+	}
+
+	/**
+	 * Enables or disables the tracing into the ring buffer
+	 *
+	 * @param enabled
+	 * 		if the messages should be traced
+	 * @param capacity
+	 * 		The number of kept events, only used when the tracing gets enabled
+	 */
+	public static synchronized void setTracingEnabled(boolean enabled, int capacity) {
+		if(enabled == (sTraceBuffer != null)) return;
+		sTraceBuffer = enabled ? new TraceBuffer(Math.max(1, capacity)) : null;
+	}
+
+	/**
+	 * @return
+	 * 		if the messages are traced into the ring buffer
+	 */
+	public static boolean isTracingEnabled() {
+		return sTraceBuffer != null;
 	}
-	
+
+	/**
+	 * Prints the traced events from the oldest to the newest
+	 *
+	 * @param writer
+	 * 		The writer to print to
+	 */
+	public static void dumpTrace(PrintWriter writer) {
+		TraceBuffer buffer = sTraceBuffer;
+		if(buffer == null) writer.println("Tracing is disabled");
+		else buffer.dump(writer);
+		writer.flush();
+	}
+
+	private static void log(int level, Object sender, String message, int argTypes,
+			long arg1, long arg2, Object objectArg) {
+		TraceBuffer buffer = sTraceBuffer;
+		if(buffer != null) {
+			// the class name is only looked up when the trace is dumped
+			buffer.add(level, sender instanceof String ? sender : sender.getClass(),
+					message, argTypes, arg1, arg2, objectArg);
+		}
+		else if(DEBUG) {
+			String text = getSenderString(sender) + ": " + format(message, argTypes, arg1, arg2, objectArg);
+			if(level == LEVEL_ERROR) Log.e(TAG, text);
+			else Log.d(TAG, text);
+		}
+	}
+
+	/**
+	 * Replaces each {} in the message by the next argument
+	 */
+	private static String format(String message, int argTypes, long arg1, long arg2, Object objectArg) {
+		if(argTypes == ARG_NONE) return message;
+		StringBuilder sb = new StringBuilder(message.length() + 16);
+		int start = 0;
+		int argIndex = 0;
+		int type;
+		while ((type = (argTypes >> (argIndex * ARG_TYPE_BITS)) & ((1 << ARG_TYPE_BITS) - 1)) != ARG_NONE) {
+			int placeholder = message.indexOf("{}", start);
+			if(placeholder < 0) {
+				// more arguments than placeholders
+				sb.append(message, start, message.length()).append(' ');
+				start = message.length();
+			}
+			else {
+				sb.append(message, start, placeholder);
+				start = placeholder + 2;
+			}
+			long value = argIndex == 0 ? arg1 : arg2;
+			if(type == ARG_LONG) sb.append(value);
+			else if(type == ARG_BOOLEAN) sb.append(value != 0);
+			else sb.append(objectArg);
+			argIndex++;
+		}
+		sb.append(message, start, message.length());
+		return sb.toString();
+	}
+
 	/**
 	 * Gets the name of the Class of the input object
-	 * 
+	 *
 	 * @param sender
-	 * 		The input object 
+	 * 		The input object
 	 * @return
 	 */
 	private static String getSenderString(Object sender) {
 		if(sender instanceof String) {
 			return (String)sender;
 		}
+		else if(sender instanceof Class) {
+			return ((Class<?>)sender).getSimpleName();
+		}
 		else return sender.getClass().getSimpleName();
 	}
-}
 
+	/**
+	 * Fixed size ring buffer of events in preallocated arrays,
+	 * so adding an event allocates nothing
+	 */
+	private static class TraceBuffer {
+		private final long[] mTimes;
+		private final long[] mThreadIds;
+		private final int[] mLevels;
+		private final Object[] mSenders;
+		private final String[] mMessages;
+		private final int[] mArgTypes;
+		private final long[] mArgs1;
+		private final long[] mArgs2;
+		private final Object[] mObjectArgs;
+		/** The total number of added events */
+		private long mCount;
+
+		TraceBuffer(int capacity) {
+			mTimes = new long[capacity];
+			mThreadIds = new long[capacity];
+			mLevels = new int[capacity];
+			mSenders = new Object[capacity];
+			mMessages = new String[capacity];
+			mArgTypes = new int[capacity];
+			mArgs1 = new long[capacity];
+			mArgs2 = new long[capacity];
+			mObjectArgs = new Object[capacity];
+		}
 
+		synchronized void add(int level, Object sender, String message, int argTypes,
+				long arg1, long arg2, Object objectArg) {
+			int i = (int) (mCount++ % mTimes.length);
+			mTimes[i] = System.currentTimeMillis();
+			mThreadIds[i] = Thread.currentThread().getId();
+			mLevels[i] = level;
+			mSenders[i] = sender;
+			mMessages[i] = message;
+			mArgTypes[i] = argTypes;
+			mArgs1[i] = arg1;
+			mArgs2[i] = arg2;
+			mObjectArgs[i] = objectArg;
+		}
+
+		synchronized void dump(PrintWriter writer) {
+			int capacity = mTimes.length;
+			long first = Math.max(0, mCount - capacity);
+			writer.println("Trace, " + (mCount - first) + " of " + mCount + " events");
+			SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+			for (long n = first; n < mCount; n++) {
+				int i = (int) (n % capacity);
+				writer.println(timeFormat.format(new Date(mTimes[i])) + " " + mThreadIds[i]
+						+ (mLevels[i] == LEVEL_ERROR ? " E " : " D ") + getSenderString(mSenders[i]) + ": "
+						+ format(mMessages[i], mArgTypes[i], mArgs1[i], mArgs2[i], mObjectArgs[i]));
+			}
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package com.luboganev.cloudwave;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.content.Context;
+import android.os.Build;
+
+/**
+ * Process wide instrumentation of the hot paths. Timings and sizes are recorded
+ * in histograms with power of two buckets and events are counted, both with a
+ * few atomic increments and without any allocation, so they are always on.
+ * The collected data can be printed with {@link #dump(PrintWriter)}, e.g. by
+ * dumpsys of the wallpaper service, or exported with {@link #exportToFile(Context)}.
+ */
+public class Metrics {
+	private static final String EXPORT_FILE_NAME = "metrics.txt";
+
+	/** Drawing a frame of the wallpaper in microseconds */
+	public static final Histogram REDRAW = new Histogram("redraw", "us");
+	/** Decoding a soundwave image into samples in microseconds */
+	public static final Histogram SOUNDWAVE_DECODE = new Histogram("soundwave_decode", "us");
+	/** Reading the samples of a saved soundwave in microseconds */
+	public static final Histogram SOUNDWAVE_LOAD = new Histogram("soundwave_load", "us");
+	/** Loading the local storage from disk in microseconds */
+	public static final Histogram STORAGE_LOAD = new Histogram("storage_load", "us");
+	/** Saving a snapshot of the local storage in microseconds */
+	public static final Histogram STORAGE_SAVE = new Histogram("storage_save", "us");
+	/** The time until the response of a request is available in milliseconds */
+	public static final Histogram NETWORK_LATENCY = new Histogram("network_latency", "ms");
+	/** The time of a whole request including the response body in milliseconds */
+	public static final Histogram NETWORK_DURATION = new Histogram("network_duration", "ms");
+	/** The bytes received per request */
+	public static final Histogram NETWORK_BYTES = new Histogram("network_bytes", "B");
+
+	/** Redraw requests which joined an already pending frame */
+	public static final Counter COALESCED_REDRAWS = new Counter("coalesced_redraws");
+	public static final Counter FRAME_CACHE_HITS = new Counter("frame_cache_hits");
+	public static final Counter FRAME_CACHE_MISSES = new Counter("frame_cache_misses");
+	public static final Counter TITLE_LAYOUT_CACHE_HITS = new Counter("title_layout_cache_hits");
+	public static final Counter TITLE_LAYOUT_CACHE_MISSES = new Counter("title_layout_cache_misses");
+	public static final Counter SOUNDWAVE_CACHE_HITS = new Counter("soundwave_cache_hits");
+	public static final Counter SOUNDWAVE_CACHE_MISSES = new Counter("soundwave_cache_misses");
+	public static final Counter PREPARED_TRACK_HITS = new Counter("prepared_track_hits");
+	public static final Counter PREPARED_TRACK_MISSES = new Counter("prepared_track_misses");
+	public static final Counter NETWORK_ERRORS = new Counter("network_errors");
+	/** Wallpaper changes which have been shown */
+	public static final Counter WALLPAPER_CHANGES = new Counter("wallpaper_changes");
+	/** Wallpaper changes which could not be made, e.g. without network */
+	public static final Counter SKIPPED_CHANGES = new Counter("skipped_changes");
+	/** Wallpaper changes which became due while the wallpaper was hidden and were deferred */
+	public static final Counter DEFERRED_CHANGES = new Counter("deferred_changes");
+	/** Opened windows for the deferrable background work */
+	public static final Counter MAINTENANCE_WINDOWS = new Counter("maintenance_windows");
+	/** Requests which were not made since their server was backed off */
+	public static final Counter REJECTED_REQUESTS = new Counter("rejected_requests");
+	/** Circuit breakers opened after repeated server errors or timeouts */
+	public static final Counter OPENED_BREAKERS = new Counter("opened_breakers");
+
+	private static final Histogram[] HISTOGRAMS = { REDRAW, SOUNDWAVE_DECODE, SOUNDWAVE_LOAD,
+		STORAGE_LOAD, STORAGE_SAVE, NETWORK_LATENCY, NETWORK_DURATION, NETWORK_BYTES };
+	private static final Counter[] COUNTERS = { COALESCED_REDRAWS, FRAME_CACHE_HITS, FRAME_CACHE_MISSES,
+		TITLE_LAYOUT_CACHE_HITS, TITLE_LAYOUT_CACHE_MISSES, SOUNDWAVE_CACHE_HITS, SOUNDWAVE_CACHE_MISSES,
+		PREPARED_TRACK_HITS, PREPARED_TRACK_MISSES, NETWORK_ERRORS, WALLPAPER_CHANGES, SKIPPED_CHANGES,
+		DEFERRED_CHANGES, MAINTENANCE_WINDOWS, REJECTED_REQUESTS, OPENED_BREAKERS };
+
+	/**
+	 * @return
+	 * 		The start time of a measurement for {@link Histogram#recordMicrosSince(long)}
+	 */
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Prints all histograms and counters
+	 *
+	 * @param writer
+	 * 		The writer to print to
+	 */
+	public static void dump(PrintWriter writer) {
+		writer.println("CloudWave metrics, " + Build.MANUFACTURER + " " + Build.MODEL
+				+ ", API " + Build.VERSION.SDK_INT);
+		for (Histogram histogram : HISTOGRAMS) {
+			histogram.dump(writer);
+		}
+		for (Counter counter : COUNTERS) {
+			writer.println(counter.mName + ": " + counter.get());
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Writes the output of {@link #dump(PrintWriter)} to a file in the files directory
+	 *
+	 * @param applicationContext
+	 * 		Needed to get the files directory
+	 * @return
+	 * 		The written file or null if it could not be written
+	 */
+	public static File exportToFile(Context applicationContext) {
+		File file = new File(applicationContext.getFilesDir(), EXPORT_FILE_NAME);
+		PrintWriter writer = null;
+		try {
+			writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+			dump(writer);
+			return writer.checkError() ? null : file;
+		} catch (IOException e) {
+			LogUtils.e("Metrics", "Cannot export the metrics");
+			return null;
+		} finally {
+			if(writer != null) writer.close();
+		}
+	}
+
+	/**
+	 * Clears all histograms and counters
+	 */
+	public static void reset() {
+		for (Histogram histogram : HISTOGRAMS) {
+			histogram.reset();
+		}
+		for (Counter counter : COUNTERS) {
+			counter.mValue.set(0);
+		}
+	}
+
+	/**
+	 * Distribution of recorded values. Bucket i counts the values
+	 * from 2^(i-1) to 2^i - 1, bucket 0 the values up to 0.
+	 */
+	public static class Histogram {
+		private static final int BUCKETS_COUNT = 40;
+
+		private final String mName;
+		private final String mUnit;
+		private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS_COUNT);
+		private final AtomicLong mCount = new AtomicLong();
+		private final AtomicLong mSum = new AtomicLong();
+		private final AtomicLong mMax = new AtomicLong();
+
+		Histogram(String name, String unit) {
+			mName = name;
+			mUnit = unit;
+		}
+
+		/**
+		 * @param value
+		 * 		The value in the unit of the histogram
+		 */
+		public void record(long value) {
+			int bucket = value <= 0 ? 0 : Math.min(BUCKETS_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+			mBuckets.incrementAndGet(bucket);
+			mCount.incrementAndGet();
+			mSum.addAndGet(value);
+			long max;
+			while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+				// retry with the new maximum
+			}
+		}
+
+		/**
+		 * Records the time since the start of a measurement in microseconds
+		 *
+		 * @param startNanos
+		 * 		The value of {@link Metrics#start()} at the start
+		 */
+		public void recordMicrosSince(long startNanos) {
+			record((System.nanoTime() - startNanos) / 1000);
+		}
+
+		/**
+		 * Records the time since the start of a measurement in milliseconds
+		 *
+		 * @param startNanos
+		 * 		The value of {@link Metrics#start()} at the start
+		 */
+		public void recordMillisSince(long startNanos) {
+			record((System.nanoTime() - startNanos) / 1000000);
+		}
+
+		/**
+		 * @return
+		 * 		The number of recorded values
+		 */
+		public long getCount() {
+			return mCount.get();
+		}
+
+		/**
+		 * Estimates a percentile from the buckets
+		 *
+		 * @param percent
+		 * 		The percentile, e.g. 50 for the median
+		 * @return
+		 * 		The upper bound of the bucket containing the percentile
+		 */
+		public long getPercentile(int percent) {
+			long count = mCount.get();
+			if(count == 0) return 0;
+			long rank = (count * percent + 99) / 100;
+			long seen = 0;
+			for (int i = 0; i < BUCKETS_COUNT; i++) {
+				seen += mBuckets.get(i);
+				if(seen >= rank) return Math.min(mMax.get(), i == 0 ? 0 : (1L << i) - 1);
+			}
+			return mMax.get();
+		}
+
+		private void dump(PrintWriter writer) {
+			long count = mCount.get();
+			writer.print(mName + ": count=" + count);
+			if(count > 0) {
+				writer.print(" mean=" + mSum.get() / count + mUnit + " p50=" + getPercentile(50) + mUnit
+						+ " p90=" + getPercentile(90) + mUnit + " p99=" + getPercentile(99) + mUnit
+						+ " max=" + mMax.get() + mUnit);
+			}
+			writer.println();
+		}
+
+		private void reset() {
+			for (int i = 0; i < BUCKETS_COUNT; i++) {
+				mBuckets.set(i, 0);
+			}
+			mCount.set(0);
+			mSum.set(0);
+			mMax.set(0);
+		}
+	}
+
+	/**
+	 * Counts events
+	 */
+	public static class Counter {
+		private final String mName;
+		private final AtomicLong mValue = new AtomicLong();
+
+		Counter(String name) {
+			mName = name;
+		}
+
+		/**
+		 * Counts one event
+		 */
+		public void increment() {
+			mValue.incrementAndGet();
+		}
+
+		/**
+		 * @return
+		 * 		The number of counted events
+		 */
+		public long get() {
+			return mValue.get();
+		}
+	}
+}
@@ -1,17 +1,27 @@
 package com.luboganev.cloudwave.data;
 
-import java.util.ArrayList;
-
 /**
- * Object used as a model for the local storage
+ * Object used as a model for the local storage. The transient fields are not part 
+ * of the json snapshot, they are stored in the separate catalog file.
+ * <p>
+ * It is the private working copy of the {@link LocalStorageManager} on the writer 
+ * thread of the {@link StorageRepository}. Readers only see {@link StorageSnapshot}s.
  */
-public class LocalStorage {
+class LocalStorage {
 	/** The name of the artist whose tracks we show in the live wallpaper */
 	public String artistUsername;
-	/** The list of tracks objects */
-	public ArrayList<Track> artistTracks;
+	/** The list of tracks */
+	public transient TrackCatalog artistTracks;
 	/** The currently shown track index from the list of tracks */
 	public int currentTrackIndex;
 	/** The random index of the next shown track from the list of tracks */
 	public int nextRandomIndex;
+	/** Shuffled permutation of all track indices, each track is shown once per cycle through it */
+	public transient int[] shuffleOrder;
+	/** The position in the shuffle order of the track which follows the next track */
+	public int shuffleCursor;
+	/** Incremented with every written snapshot, so that older journal entries can be recognized */
+	public int generation;
+	/** The generation of the snapshot which has written the catalog file with the tracks and the shuffle order */
+	public int catalogGeneration;
 }
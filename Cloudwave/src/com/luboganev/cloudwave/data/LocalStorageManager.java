@@ -1,5 +1,8 @@
 package com.luboganev.cloudwave.data;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -7,8 +10,12 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import android.content.Context;
@@ -16,24 +23,66 @@ import android.content.Context;
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.Metrics;
 
 /**
- * The local storage manager is responsible for reading and writing all locally cached data
+ * The local storage manager is responsible for reading and writing all locally cached data.
+ * The whole {@link LocalStorage} is persisted as a snapshot, while the frequent changes 
+ * of the selected tracks are only appended to a {@link SelectionJournal}.
+ * <p>
+ * The snapshot itself is a small json file, the tracks and the shuffle order are kept 
+ * in a binary catalog file, which is only rewritten when they change. The catalog file 
+ * is memory mapped, so loading the storage and reading a single track does not depend 
+ * on the number of tracks. The shuffle order is only read when a track is picked.
  */
 public class LocalStorageManager {
 	private static final String LOCAL_STORAGE_FILE_NAME="soundwave_storage_json.txt";
+	private static final String SELECTION_JOURNAL_FILE_NAME="soundwave_selection_journal.txt";
+	private static final String SYNC_STATE_FILE_NAME="soundwave_sync_state_json.txt";
+	private static final String SYNCED_TRACKS_FILE_NAME="soundwave_synced_tracks.txt";
+	private static final String CATALOG_FILE_PREFIX="soundwave_catalog_";
+	private static final String CATALOG_FILE_SUFFIX=".bin";
+	/** The journal is compacted into a new snapshot when it gets that many entries */
+	private static final int MAX_JOURNAL_ENTRIES = 100;
+	/** How many positions of the shuffle order are searched for a track with cached soundwave */
+	private static final int PREFER_CACHED_LOOK_AHEAD = 32;
 	private LocalStorage mLocalStorage;
+	/** The shuffle order or the tracks have been changed, which cannot be journaled but needs a new snapshot */
+	private boolean mShuffleOrderChanged;
+	/** The position swapped to the cursor by the last pick, which gets journaled with the next selection */
+	private int mUnjournaledSwap = -1;
+	/** The shuffle order has swaps which are only recorded in the journal and not in the catalog file */
+	private boolean mSwapsJournaled;
+	/** The journaled swaps, which are applied once the shuffle order is read from the catalog file */
+	private List<int[]> mReplayedSwaps;
+	/** The catalog file contains the loaded tracks and shuffle order */
+	private boolean mCatalogSaved;
+	/** The number of track changes since this manager was created */
+	private int mTrackChangesCount;
+	/** The part of the mapped catalog file after the tracks, from which the shuffle order is read on first use */
+	private ByteBuffer mMappedShuffleOrder;
+	private final Random mRandom = new Random();
 	private final Gson mGson;
 	private final Context mApplicationContext;
+	private final SelectionJournal mSelectionJournal;
+	private final SoundwaveCache mSoundwaveCache;
 	
 	private static final String SOUNDWAVE_FILE_PREFIX = "soundwave_";
-	private static final String SOUNDWAVE_FILE_SUFFIX = ".png";
+	private static final String SOUNDWAVE_FILE_SUFFIX = ".wave";
+	private static final String SOUNDWAVE_IMAGE_FILE_SUFFIX = ".png";
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
 	private static final String SOUNDWAVE_FILES_DIR = "soundwaves";
 	
 	public LocalStorageManager(Context applicationContext) {
 		mApplicationContext = applicationContext;
-		mGson = new GsonBuilder().setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES).create();
+		mGson = new GsonBuilder().setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+				.registerTypeAdapter(TrackCatalog.class, new TrackCatalog.JsonAdapter()).create();
+		mSelectionJournal = new SelectionJournal(new File(applicationContext.getFilesDir(), SELECTION_JOURNAL_FILE_NAME));
+		mSoundwaveCache = SoundwaveCache.getInstance(applicationContext, 
+				applicationContext.getDir(SOUNDWAVE_FILES_DIR, Context.MODE_PRIVATE), 
+				SOUNDWAVE_FILE_PREFIX, SOUNDWAVE_FILE_SUFFIX, SOUNDWAVE_IMAGE_FILE_SUFFIX);
 	}
 	
 	/**
@@ -49,36 +98,208 @@ public class LocalStorageManager {
 
 	/**
 	 * @return
-	 * 		Loads a previously saved local storage from disk
+	 * 		if a local storage has been loaded or created
+	 */
+	public boolean isLoaded() {
+		return mLocalStorage != null;
+	}
+
+	/**
+	 * Forgets the loaded local storage, e.g. after it could not be read completely
+	 */
+	public void unload() {
+		mLocalStorage = null;
+		mMappedShuffleOrder = null;
+		mCatalogSaved = false;
+		mShuffleOrderChanged = false;
+		resetSwaps();
+	}
+
+	private void resetSwaps() {
+		mUnjournaledSwap = -1;
+		mSwapsJournaled = false;
+		mReplayedSwaps = null;
+	}
+
+	/**
+	 * @return
+	 * 		Loads a previously saved local storage from disk 
+	 * 		and applies the latest journaled selection state. 
+	 * 		Returns false if the saved storage cannot be read or is corrupt.
 	 */
 	public boolean loadFromFile() {
+		long start = Metrics.start();
 		FileInputStream fis = null;
 		try {
 			fis = mApplicationContext.openFileInput(LOCAL_STORAGE_FILE_NAME);
 			String jsonString = readStreamAsString(fis);
 			mLocalStorage = mGson.fromJson(jsonString, LocalStorage.class);
+			if(mLocalStorage == null) {
+				LogUtils.e(this, "The file is empty");
+				return false;
+			}
+			mShuffleOrderChanged = false;
+			mMappedShuffleOrder = null;
+			resetSwaps();
+			mCatalogSaved = mapCatalogFile();
+			boolean migrate = false;
+			if(!mCatalogSaved) {
+				// saved before the catalog file existed, the tracks are still part of the snapshot
+				LegacyCatalog legacy = mGson.fromJson(jsonString, LegacyCatalog.class);
+				migrate = legacy.artistTracks != null;
+				mLocalStorage.artistTracks = migrate ? legacy.artistTracks : TrackCatalog.empty();
+				mLocalStorage.shuffleOrder = legacy.shuffleOrder;
+			}
+			int tracksCount = mLocalStorage.artistTracks.size();
+			if(mLocalStorage.shuffleOrder != null && mLocalStorage.shuffleOrder.length != tracksCount) {
+				mLocalStorage.shuffleOrder = null;
+			}
+			if(mLocalStorage.currentTrackIndex >= tracksCount) mLocalStorage.currentTrackIndex = -1;
+			if(mLocalStorage.nextRandomIndex >= tracksCount) mLocalStorage.nextRandomIndex = -1;
+			ArrayList<int[]> swaps = new ArrayList<int[]>();
+			int[] selection = mSelectionJournal.replay(mLocalStorage.generation, swaps);
+			if(selection != null && selection[0] < tracksCount && selection[1] < tracksCount
+					&& selection[2] <= tracksCount) {
+				mLocalStorage.currentTrackIndex = selection[0];
+				mLocalStorage.nextRandomIndex = selection[1];
+				mLocalStorage.shuffleCursor = selection[2];
+				if(!swaps.isEmpty()) {
+					mSwapsJournaled = true;
+					if(mLocalStorage.shuffleOrder != null) applySwaps(mLocalStorage.shuffleOrder, swaps);
+					else mReplayedSwaps = swaps;
+				}
+			}
+			if(migrate) {
+				// moves the tracks into the catalog file once, so the next start can map them
+				saveToFile();
+			}
+			Metrics.STORAGE_LOAD.recordMicrosSince(start);
 			return true;
 		} catch (IOException x) {
 			LogUtils.e(this, "Cannot read the file");
 			return false;
+		} catch (JsonParseException x) {
+			LogUtils.e(this, "Cannot parse the file");
+			return false;
 		} finally {
 			closeStreamSilently(fis);
 		}
 	}
 	
+	/**
+	 * Maps the catalog file of the loaded snapshot and uses the tracks directly from it
+	 * 
+	 * @return
+	 * 		if the catalog file exists and is valid
+	 */
+	private boolean mapCatalogFile() {
+		File catalogFile = getCatalogFile(mLocalStorage.catalogGeneration);
+		if(!catalogFile.exists()) return false;
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(catalogFile);
+			FileChannel channel = fis.getChannel();
+			// the mapping stays valid after the channel is closed
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			TrackCatalog tracks = TrackCatalog.wrap(buffer);
+			buffer.position(tracks.getByteCount());
+			mMappedShuffleOrder = buffer.slice();
+			mLocalStorage.artistTracks = tracks;
+			mLocalStorage.shuffleOrder = null;
+			return true;
+		} catch (IOException x) {
+			LogUtils.e(this, "Cannot map the catalog file");
+			return false;
+		} finally {
+			closeStreamSilently(fis);
+		}
+	}
+	
+	/**
+	 * Gets the shuffle order, which is read from the catalog file on first use 
+	 * or shuffled anew if it is missing or broken
+	 */
+	private int[] getShuffleOrder() {
+		if(mLocalStorage.shuffleOrder == null) {
+			int tracksCount = mLocalStorage.artistTracks.size();
+			int[] order = readMappedShuffleOrder(tracksCount);
+			boolean reshuffle = order == null;
+			if(reshuffle) {
+				order = new int[tracksCount];
+				for (int i = 0; i < tracksCount; i++) {
+					order[i] = i;
+				}
+			}
+			else if(mReplayedSwaps != null) applySwaps(order, mReplayedSwaps);
+			mReplayedSwaps = null;
+			mLocalStorage.shuffleOrder = order;
+			if(reshuffle) startShuffleCycle();
+		}
+		return mLocalStorage.shuffleOrder;
+	}
+	
+	/**
+	 * Applies the swaps of the shuffle order replayed from the selection journal
+	 */
+	private static void applySwaps(int[] order, List<int[]> swaps) {
+		for (int[] positions : swaps) {
+			if(positions[0] < 0 || positions[0] >= order.length 
+					|| positions[1] < 0 || positions[1] >= order.length) continue;
+			swap(order, positions[0], positions[1]);
+		}
+	}
+	
+	/**
+	 * @return
+	 * 		The shuffle order from the mapped catalog file 
+	 * 		or null if it does not contain every track once
+	 */
+	private int[] readMappedShuffleOrder(int tracksCount) {
+		if(mMappedShuffleOrder == null) return null;
+		ByteBuffer buffer = mMappedShuffleOrder.duplicate();
+		if(buffer.remaining() < 4 || buffer.getInt() != tracksCount 
+				|| buffer.remaining() < tracksCount * 4) return null;
+		int[] order = new int[tracksCount];
+		buffer.asIntBuffer().get(order);
+		boolean[] seen = new boolean[tracksCount];
+		for (int index : order) {
+			if(index < 0 || index >= tracksCount || seen[index]) return null;
+			seen[index] = true;
+		}
+		return order;
+	}
+	
+	private File getCatalogFile(int generation) {
+		return new File(mApplicationContext.getFilesDir(), CATALOG_FILE_PREFIX + generation + CATALOG_FILE_SUFFIX);
+	}
+	
+	/**
+	 * The parts of a snapshot written before the catalog file existed
+	 */
+	private static class LegacyCatalog {
+		public TrackCatalog artistTracks;
+		public int[] shuffleOrder;
+	}
+	
 	/**
 	 * Loads a default empty storage for the default artist
 	 */
 	public void loadDefaultStorage() {
 		mLocalStorage = new LocalStorage();
 		mLocalStorage.artistUsername = "heedthesound";
-		mLocalStorage.artistTracks = new ArrayList<Track>();
+		mLocalStorage.artistTracks = TrackCatalog.empty();
 		mLocalStorage.currentTrackIndex = -1;
 		mLocalStorage.nextRandomIndex = -1;
+		mLocalStorage.shuffleOrder = new int[0];
+		mLocalStorage.shuffleCursor = 0;
+		mMappedShuffleOrder = null;
+		mCatalogSaved = false;
+		resetSwaps();
 	}
 	
 	/**
-	 * Adds a new track object to the list of tracks
+	 * Adds a new track object to the list of tracks. This copies the whole 
+	 * list of tracks, new catalogs are merged with {@link #mergeSyncedTracks()}.
 	 * 
 	 * @param id
 	 * 		Track id
@@ -90,20 +311,132 @@ public class LocalStorageManager {
 	 * 		Track waveform url
 	 */
 	public void addTrack(long id, String title, String permalinkUrl, String waveformUrl) {
-		Track newTrack = new Track();
-		newTrack.id = id;
-		newTrack.title = title;
-		newTrack.permalinkUrl = permalinkUrl;
-		newTrack.waveformUrl = waveformUrl;
-		mLocalStorage.artistTracks.add(newTrack);
+		TrackCatalog tracks = mLocalStorage.artistTracks;
+		TrackCatalog.Builder builder = new TrackCatalog.Builder(tracks.size() + 1);
+		for (int i = 0; i < tracks.size(); i++) {
+			builder.add(tracks, i);
+		}
+		int[] order = getShuffleOrder();
+		mLocalStorage.artistTracks = builder.add(id, title, permalinkUrl, waveformUrl).build();
+		int[] newOrder = new int[order.length + 1];
+		System.arraycopy(order, 0, newOrder, 0, order.length);
+		newOrder[order.length] = mLocalStorage.artistTracks.size() - 1;
+		shuffleIntoCycle(newOrder, order.length, mLocalStorage.shuffleCursor);
+		mLocalStorage.shuffleOrder = newOrder;
+		mShuffleOrderChanged = true;
+	}
+	
+	/**
+	 * @return
+	 * 		The number of tracks in the list of tracks
+	 */
+	public int getTracksCount() {
+		return mLocalStorage.artistTracks.size();
 	}
 	
 	/**
-	 * Picks a new random index from the tracks list as next track index
+	 * Picks the next track from the shuffle order
 	 */
 	public void pickNewNextRandomTrack() {
-		Random r = new Random(System.currentTimeMillis());
-		mLocalStorage.nextRandomIndex = r.nextInt(mLocalStorage.artistTracks.size());
+		pickNewNextRandomTrack(false);
+	}
+	
+	/**
+	 * Picks the next track from the shuffle order, which contains every track once 
+	 * per cycle, so no track is repeated before all others have been shown. 
+	 * Every pick only advances the cursor, a new order is shuffled once per cycle.
+	 * 
+	 * @param preferCached
+	 * 		If a track with cached soundwave from a little further in the shuffle order 
+	 * 		should be taken instead of one which needs to be downloaded, e.g. when offline 
+	 * 		or on a metered network
+	 */
+	public void pickNewNextRandomTrack(boolean preferCached) {
+		int[] order = getShuffleOrder();
+		if(order.length == 0) {
+			mLocalStorage.nextRandomIndex = -1;
+			return;
+		}
+		if(mLocalStorage.shuffleCursor >= order.length) {
+			startShuffleCycle();
+		}
+		if(preferCached) {
+			preferCachedTrack();
+		}
+		mLocalStorage.nextRandomIndex = order[mLocalStorage.shuffleCursor];
+		mLocalStorage.shuffleCursor++;
+	}
+	
+	/**
+	 * Shuffles the whole order for a new cycle
+	 */
+	private void startShuffleCycle() {
+		int[] order = mLocalStorage.shuffleOrder;
+		for (int i = order.length - 1; i > 0; i--) {
+			swap(order, i, mRandom.nextInt(i + 1));
+		}
+		// the new cycle should not start with the track shown at the end of the last one
+		if(order.length > 1 && order[0] == mLocalStorage.currentTrackIndex) {
+			swap(order, 0, 1 + mRandom.nextInt(order.length - 1));
+		}
+		mLocalStorage.shuffleCursor = 0;
+		mShuffleOrderChanged = true;
+	}
+	
+	/**
+	 * Moves the first track with cached soundwave within the look ahead 
+	 * to the cursor, unless the track at the cursor is cached already. 
+	 * The swap is journaled with the next selection, so it does not need 
+	 * a new catalog file.
+	 */
+	private void preferCachedTrack() {
+		int[] order = mLocalStorage.shuffleOrder;
+		int cursor = mLocalStorage.shuffleCursor;
+		if(hasSoundwave(mLocalStorage.artistTracks.getId(order[cursor]))) return;
+		int end = Math.min(order.length, cursor + PREFER_CACHED_LOOK_AHEAD);
+		for (int i = cursor + 1; i < end; i++) {
+			if(hasSoundwave(mLocalStorage.artistTracks.getId(order[i]))) {
+				swap(order, cursor, i);
+				// a journal entry records a single swap, an older one needs a new catalog file
+				if(mUnjournaledSwap >= 0) mShuffleOrderChanged = true;
+				mUnjournaledSwap = i;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Moves the track at a position of the order to a random position 
+	 * of the part of the cycle which has not been shown yet
+	 */
+	private void shuffleIntoCycle(int[] order, int position, int cursor) {
+		swap(order, position, cursor + mRandom.nextInt(position - cursor + 1));
+	}
+	
+	private static void swap(int[] array, int i, int j) {
+		int temp = array[i];
+		array[i] = array[j];
+		array[j] = temp;
+	}
+	
+	/**
+	 * Gets the tracks which will be shown next, starting with the next track.
+	 * The upcoming tracks are taken from the rest of the current shuffle cycle.
+	 * 
+	 * @param count
+	 * 		The maximum number of tracks
+	 * @return
+	 * 		The next track followed by the upcoming tracks
+	 */
+	public List<Track> getUpcomingTracks(int count) {
+		ArrayList<Track> tracks = new ArrayList<Track>(count);
+		Track next = getNextTrack();
+		if(next != null && count > 0) tracks.add(next);
+		int[] order = getShuffleOrder();
+		for (int i = mLocalStorage.shuffleCursor; i < order.length && tracks.size() < count; i++) {
+			tracks.add(mLocalStorage.artistTracks.getTrack(order[i]));
+		}
+		return tracks;
 	}
 	
 	/**
@@ -112,16 +445,18 @@ public class LocalStorageManager {
 	 */
 	public Track getNextTrack() {
 		if(mLocalStorage.nextRandomIndex >= 0)
-			return mLocalStorage.artistTracks.get(mLocalStorage.nextRandomIndex);
+			return mLocalStorage.artistTracks.getTrack(mLocalStorage.nextRandomIndex);
 		else return null;
 	}
 	
 	/**
 	 * @return
-	 * 		The current track
+	 * 		The current track or null if no track has been shown yet
 	 */
 	public Track getCurrentTrack() {
-		return mLocalStorage.artistTracks.get(mLocalStorage.currentTrackIndex);
+		if(mLocalStorage.currentTrackIndex >= 0)
+			return mLocalStorage.artistTracks.getTrack(mLocalStorage.currentTrackIndex);
+		else return null;
 	}
 	
 	/**
@@ -129,6 +464,16 @@ public class LocalStorageManager {
 	 */
 	public void setNextAsCurrentTrack() {
 		mLocalStorage.currentTrackIndex = mLocalStorage.nextRandomIndex;
+		mTrackChangesCount++;
+	}
+	
+	/**
+	 * @return
+	 * 		The number of track changes since this manager was created, 
+	 * 		which also counts changes to the same track
+	 */
+	public int getTrackChangesCount() {
+		return mTrackChangesCount;
 	}
 	
 	/**
@@ -140,21 +485,285 @@ public class LocalStorageManager {
 	}
 	
 	/**
-	 * Persists the currently loaded {@link LocalStorage}
+	 * Persists the currently loaded {@link LocalStorage} as a new snapshot. 
+	 * The snapshot is written to a temporary file, which then replaces the 
+	 * old one, so a crash never leaves a partially written snapshot behind. 
+	 * The selection journal is compacted into the snapshot. If the tracks or 
+	 * the shuffle order have changed, a new catalog file is written first 
+	 * and the old one is deleted once the snapshot refers to the new one.
 	 */
 	public void saveToFile() {
-		String json = mGson.toJson(mLocalStorage);
-		FileOutputStream fos = null;
+		long start = Metrics.start();
+		int previousCatalogGeneration = mLocalStorage.catalogGeneration;
+		mLocalStorage.generation++;
+		boolean writeCatalog = mShuffleOrderChanged || mSwapsJournaled || mUnjournaledSwap >= 0 || !mCatalogSaved;
+		File storageFile = new File(mApplicationContext.getFilesDir(), LOCAL_STORAGE_FILE_NAME);
 		try {
-			fos = mApplicationContext.openFileOutput(LOCAL_STORAGE_FILE_NAME, Context.MODE_PRIVATE);
-			fos.write(json.getBytes());
+			if(writeCatalog) {
+				writeCatalogFile(mLocalStorage.generation);
+				mLocalStorage.catalogGeneration = mLocalStorage.generation;
+			}
+			String json = mGson.toJson(mLocalStorage);
+			writeFileAtomically(storageFile, json.getBytes());
+			mSelectionJournal.clear();
+			mShuffleOrderChanged = false;
+			mUnjournaledSwap = -1;
+			mSwapsJournaled = false;
+			mCatalogSaved = true;
+			if(writeCatalog) getCatalogFile(previousCatalogGeneration).delete();
+			Metrics.STORAGE_SAVE.recordMicrosSince(start);
 		} catch (IOException x) {
 			LogUtils.e(this, "Cannot create or write to file");
+			if(writeCatalog) getCatalogFile(mLocalStorage.generation).delete();
+			mLocalStorage.generation--;
+			mLocalStorage.catalogGeneration = previousCatalogGeneration;
+		}
+	}
+	
+	/**
+	 * Writes the tracks followed by the number of tracks and the shuffle order 
+	 * to the catalog file of a generation
+	 */
+	private void writeCatalogFile(int generation) throws IOException {
+		TrackCatalog tracks = mLocalStorage.artistTracks;
+		int[] order = getShuffleOrder();
+		ByteBuffer buffer = ByteBuffer.allocate(tracks.getByteCount() + 4 + order.length * 4);
+		tracks.writeTo(buffer);
+		buffer.putInt(order.length);
+		buffer.asIntBuffer().put(order);
+		writeFileAtomically(getCatalogFile(generation), buffer.array());
+	}
+	
+	/**
+	 * Writes the whole contents of a file to a temporary file, 
+	 * which then replaces the original one
+	 */
+	private void writeFileAtomically(File file, byte[] contents) throws IOException {
+		File tempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(tempFile);
+			fos.write(contents);
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+			if(!tempFile.renameTo(file)) {
+				throw new IOException("Cannot replace " + file.getName());
+			}
+		} catch (IOException x) {
+			tempFile.delete();
+			throw x;
 		} finally {
 			closeStreamSilently(fos);
 		}
 	}
+	
+	/**
+	 * Persists only the selection state of the currently loaded {@link LocalStorage}, 
+	 * i.e. the current and next track index. This appends a small entry to the 
+	 * selection journal instead of rewriting the whole snapshot, which happens 
+	 * only once in a while to compact the journal or when the shuffle order has changed. 
+	 * A track swapped to the cursor by the pick of the next track is journaled as well.
+	 */
+	public void saveSelection() {
+		if(mShuffleOrderChanged || mSelectionJournal.getEntriesCount() >= MAX_JOURNAL_ENTRIES 
+				|| !mSelectionJournal.append(mLocalStorage.generation, mLocalStorage.currentTrackIndex, 
+						mLocalStorage.nextRandomIndex, mLocalStorage.shuffleCursor, mUnjournaledSwap)) {
+			saveToFile();
+			return;
+		}
+		if(mUnjournaledSwap >= 0) mSwapsJournaled = true;
+		mUnjournaledSwap = -1;
+	}
+
+	/**
+	 * @return
+	 * 		The number of selections journaled since the last snapshot, 
+	 * 		which are compacted by {@link #saveToFile()}
+	 */
+	public int getJournaledSelectionsCount() {
+		return mSelectionJournal.getEntriesCount();
+	}
 
+	/**
+	 * @return
+	 * 		The persisted state of the catalog synchronization
+	 * 		or a new state if there is none
+	 */
+	public SyncState loadSyncState() {
+		FileInputStream fis = null;
+		try {
+			fis = mApplicationContext.openFileInput(SYNC_STATE_FILE_NAME);
+			SyncState state = mGson.fromJson(readStreamAsString(fis), SyncState.class);
+			if(state != null) return state;
+		} catch (FileNotFoundException x) {
+			// never synchronized
+		} catch (IOException x) {
+			LogUtils.e(this, "Cannot read the sync state file");
+		} catch (JsonParseException x) {
+			LogUtils.e(this, "Cannot parse the sync state file");
+		} finally {
+			closeStreamSilently(fis);
+		}
+		return new SyncState();
+	}
+	
+	/**
+	 * Persists the state of the catalog synchronization
+	 * 
+	 * @param state
+	 * 		The state
+	 * @return
+	 * 		if the state was saved
+	 */
+	public boolean saveSyncState(SyncState state) {
+		try {
+			writeFileAtomically(new File(mApplicationContext.getFilesDir(), SYNC_STATE_FILE_NAME), 
+					mGson.toJson(state).getBytes());
+			return true;
+		} catch (IOException x) {
+			LogUtils.e(this, "Cannot write the sync state file");
+			return false;
+		}
+	}
+	
+	/**
+	 * Appends tracks fetched by the catalog synchronization to the 
+	 * staging file. They are applied to the catalog with {@link #mergeSyncedTracks()}.
+	 * 
+	 * @param tracks
+	 * 		The fetched tracks
+	 * @return
+	 * 		if the tracks were written
+	 */
+	public boolean appendSyncedTracks(List<Track> tracks) {
+		StringBuilder sb = new StringBuilder();
+		for (Track track : tracks) {
+			sb.append(mGson.toJson(track)).append('\n');
+		}
+		FileOutputStream fos = null;
+		try {
+			fos = mApplicationContext.openFileOutput(SYNCED_TRACKS_FILE_NAME, Context.MODE_PRIVATE | Context.MODE_APPEND);
+			fos.write(sb.toString().getBytes("UTF-8"));
+			fos.getFD().sync();
+			return true;
+		} catch (IOException x) {
+			LogUtils.e(this, "Cannot write the synced tracks file");
+			return false;
+		} finally {
+			closeStreamSilently(fos);
+		}
+	}
+	
+	/**
+	 * Deletes all staged tracks of the catalog synchronization
+	 */
+	public void clearSyncedTracks() {
+		new File(mApplicationContext.getFilesDir(), SYNCED_TRACKS_FILE_NAME).delete();
+	}
+	
+	/**
+	 * Merges the complete list of staged tracks into the loaded catalog. 
+	 * New tracks are appended, changed tracks are updated and tracks which 
+	 * are not staged anymore are removed. The order of the remaining tracks 
+	 * is kept and the current and next track indices are updated accordingly.
+	 * A removed current or next track resets the respective index to -1. 
+	 * New tracks are shuffled into the rest of the current shuffle cycle.
+	 * 
+	 * @return
+	 * 		if the catalog changed
+	 */
+	public boolean mergeSyncedTracks() {
+		TrackCatalog.Builder stagedTracks = new TrackCatalog.Builder(mLocalStorage.artistTracks.size());
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					mApplicationContext.openFileInput(SYNCED_TRACKS_FILE_NAME), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				try {
+					Track track = mGson.fromJson(line, Track.class);
+					if(track != null) stagedTracks.add(track);
+				} catch (JsonParseException x) {
+					// incomplete line after an interruption
+				}
+			}
+		} catch (IOException x) {
+			LogUtils.e(this, "Cannot read the synced tracks file");
+			return false;
+		} finally {
+			if(reader != null) {
+				try {
+					reader.close();
+				} catch (IOException x) {
+					// nothing to do
+				}
+			}
+		}
+		TrackCatalog synced = stagedTracks.build();
+		if(synced.isEmpty()) {
+			// never drop the whole catalog because of an empty response
+			return false;
+		}
+		
+		TrackCatalog oldTracks = mLocalStorage.artistTracks;
+		int[] order = getShuffleOrder();
+		TrackCatalog.Builder newTracks = new TrackCatalog.Builder(synced.size());
+		int newCurrentIndex = -1;
+		int newNextIndex = -1;
+		int[] newIndices = new int[oldTracks.size()];
+		boolean[] merged = new boolean[synced.size()];
+		boolean changed = false;
+		for (int i = 0; i < oldTracks.size(); i++) {
+			// a page fetched twice after an interruption is found at its first position
+			int syncedIndex = synced.indexOf(oldTracks.getId(i));
+			if(syncedIndex < 0 || merged[syncedIndex]) {
+				// removed from the artist's tracks
+				newIndices[i] = -1;
+				changed = true;
+				continue;
+			}
+			merged[syncedIndex] = true;
+			newIndices[i] = newTracks.size();
+			Track syncedTrack = synced.getTrack(syncedIndex);
+			if(!oldTracks.matches(i, syncedTrack)) {
+				changed = true;
+			}
+			if(i == mLocalStorage.currentTrackIndex) newCurrentIndex = newTracks.size();
+			if(i == mLocalStorage.nextRandomIndex) newNextIndex = newTracks.size();
+			newTracks.add(syncedTrack);
+		}
+		for (int i = 0; i < synced.size(); i++) {
+			if(merged[i] || synced.indexOf(synced.getId(i)) != i) continue;
+			// the rest are new tracks
+			changed = true;
+			newTracks.add(synced, i);
+		}
+		if(changed) {
+			mLocalStorage.artistTracks = newTracks.build();
+			mLocalStorage.currentTrackIndex = newCurrentIndex;
+			mLocalStorage.nextRandomIndex = newNextIndex;
+			int[] newOrder = new int[newTracks.size()];
+			int size = 0;
+			int newCursor = 0;
+			for (int i = 0; i < order.length; i++) {
+				int newIndex = newIndices[order[i]];
+				if(newIndex < 0) continue;
+				if(i < mLocalStorage.shuffleCursor) newCursor++;
+				newOrder[size++] = newIndex;
+			}
+			// the remaining indices belong to the new tracks
+			for (int newIndex = size; newIndex < newOrder.length; newIndex++) {
+				newOrder[newIndex] = newIndex;
+				shuffleIntoCycle(newOrder, newIndex, newCursor);
+			}
+			mLocalStorage.shuffleOrder = newOrder;
+			mLocalStorage.shuffleCursor = newCursor;
+			mShuffleOrderChanged = true;
+		}
+		return changed;
+	}
+	
 	/**
 	 * Helper method which reads all inputstream contents 
 	 * and writes them to an outputstream
@@ -220,7 +829,7 @@ public class LocalStorageManager {
 	}
 	
 	/**
-	 * Gets a file of the local soundwave image of a particular track
+	 * Gets a file of the local soundwave samples of a particular track
 	 * 
 	 * @param trackId
 	 * 		The id of the track
@@ -232,4 +841,162 @@ public class LocalStorageManager {
 		File trackSoundwave = new File(soundwaveDir, SOUNDWAVE_FILE_PREFIX + trackId + SOUNDWAVE_FILE_SUFFIX);
 		return trackSoundwave;
 	}
+	
+	/**
+	 * Checks if the soundwave samples of a track are cached. 
+	 * This is an in-memory lookup and does not touch the file system.
+	 * 
+	 * @param trackId
+	 * 		The id of the track
+	 * @return
+	 * 		if the soundwave of the track is available
+	 */
+	public boolean hasSoundwave(long trackId) {
+		return mSoundwaveCache.contains(trackId);
+	}
+	
+	/**
+	 * Marks the soundwave of a track as the most recently shown one, 
+	 * so it is the last to be evicted
+	 * 
+	 * @param trackId
+	 * 		The id of the shown track
+	 */
+	public void markSoundwaveShown(long trackId) {
+		mSoundwaveCache.markShown(trackId);
+	}
+	
+	/**
+	 * Sets the maximum size of all cached soundwaves, 
+	 * which is enforced by {@link #trimSoundwaves(int)}
+	 * 
+	 * @param bytes
+	 * 		The budget in bytes
+	 */
+	public void setSoundwaveByteBudget(long bytes) {
+		mSoundwaveCache.setByteBudget(bytes);
+	}
+	
+	/**
+	 * @return
+	 * 		if the cached soundwaves exceed the byte budget and should be trimmed
+	 */
+	public boolean isOverSoundwaveByteBudget() {
+		return mSoundwaveCache.isOverBudget();
+	}
+	
+	/**
+	 * Evicts the least recently shown soundwaves which exceed the byte budget. 
+	 * The soundwaves of the current track and the upcoming tracks of the loaded 
+	 * {@link LocalStorage} are kept in any case.
+	 * 
+	 * @param upcomingCount
+	 * 		The number of upcoming tracks, starting with the next track, 
+	 * 		whose soundwaves should be kept
+	 */
+	public void trimSoundwaves(int upcomingCount) {
+		List<Track> upcoming = getUpcomingTracks(Math.max(1, upcomingCount));
+		long[] keepTrackIds = new long[upcoming.size() + 1];
+		Track current = getCurrentTrack();
+		keepTrackIds[0] = current != null ? current.id : -1;
+		for (int i = 0; i < upcoming.size(); i++) {
+			keepTrackIds[i + 1] = upcoming.get(i).id;
+		}
+		mSoundwaveCache.trim(keepTrackIds);
+	}
+	
+	/**
+	 * Gets a temporary file for the downloaded soundwave image of a particular track.
+	 * The image is only kept until it gets reduced with {@link #saveSoundwaveSamples(long, File)}.
+	 * 
+	 * @param trackId
+	 * 		The id of the track
+	 * @return
+	 * 		A File object with proper name
+	 */
+	public File generateSoundwaveImageFile(long trackId) {
+		return new File(mApplicationContext.getCacheDir(), SOUNDWAVE_FILE_PREFIX + trackId + SOUNDWAVE_IMAGE_FILE_SUFFIX);
+	}
+	
+	/**
+	 * Reduces a downloaded soundwave image to {@link WaveformSamples} and 
+	 * persists them as the soundwave of the track. The image file is deleted afterwards.
+	 * 
+	 * @param trackId
+	 * 		The id of the track
+	 * @param imageFile
+	 * 		The downloaded soundwave image
+	 * @return
+	 * 		if the samples were saved successfully
+	 */
+	public boolean saveSoundwaveSamples(long trackId, File imageFile) {
+		try {
+			WaveformSamples samples = SoundwaveDecoder.decodeFile(mApplicationContext, imageFile.getPath());
+			if(samples == null) return false;
+			return saveSoundwaveSamples(trackId, samples);
+		} finally {
+			imageFile.delete();
+		}
+	}
+	
+	/**
+	 * Persists the soundwave samples of a track
+	 * 
+	 * @param trackId
+	 * 		The id of the track
+	 * @param samples
+	 * 		The soundwave samples
+	 * @return
+	 * 		if the samples were saved successfully
+	 */
+	public boolean saveSoundwaveSamples(long trackId, WaveformSamples samples) {
+		File file = generateSoundwaveFileUri(trackId);
+		File tempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+		OutputStream os = null;
+		try {
+			os = new BufferedOutputStream(new FileOutputStream(tempFile));
+			samples.writeTo(os);
+			os.close();
+			os = null;
+			if(!tempFile.renameTo(file)) {
+				LogUtils.e(this, "Cannot rename soundwave samples file");
+				tempFile.delete();
+				return false;
+			}
+			mSoundwaveCache.put(trackId, file.length());
+			return true;
+		} catch (IOException x) {
+			LogUtils.e(this, "Cannot write soundwave samples file");
+			tempFile.delete();
+			return false;
+		} finally {
+			closeStreamSilently(os);
+		}
+	}
+	
+	/**
+	 * Loads the persisted soundwave samples of a track
+	 * 
+	 * @param trackId
+	 * 		The id of the track
+	 * @return
+	 * 		The loaded samples or null if they cannot be read
+	 */
+	public WaveformSamples loadSoundwaveSamples(long trackId) {
+		long start = Metrics.start();
+		InputStream is = null;
+		try {
+			is = new BufferedInputStream(new FileInputStream(generateSoundwaveFileUri(trackId)));
+			WaveformSamples samples = WaveformSamples.readFrom(is);
+			Metrics.SOUNDWAVE_LOAD.recordMicrosSince(start);
+			return samples;
+		} catch (IOException x) {
+			LogUtils.e(this, "Cannot read soundwave samples file");
+			// do not count on it anymore, it gets downloaded again
+			mSoundwaveCache.remove(trackId);
+			return null;
+		} finally {
+			closeStreamSilently(is);
+		}
+	}
 }
@@ -0,0 +1,201 @@
+package com.luboganev.cloudwave.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import com.luboganev.cloudwave.LogUtils;
+
+/**
+ * Append-only journal of the track selection state. Every change of the
+ * current and next track indices and of the position in the shuffle order
+ * is appended as a single short line instead
+ * of rewriting the whole {@link LocalStorage} snapshot. A pick which swapped a
+ * track of the shuffle order to the cursor records the swapped position as well,
+ * so the order only gets rewritten when the journal is compacted. Each entry
+ * carries the generation of the snapshot it belongs to, so that entries left
+ * over from an older snapshot are ignored. An incomplete last line, e.g. after a crash
+ * during writing, is ignored as well and the next entry starts on a new line.
+ */
+public class SelectionJournal {
+	private static final String ENTRY_PREFIX = "S";
+	private static final String SEPARATOR = " ";
+
+	private final File mFile;
+	private int mEntriesCount;
+	/** If the journal is known to end with a complete line, set once checked or written */
+	private boolean mEndsWithNewline;
+
+	/**
+	 * @param file
+	 * 		The journal file
+	 */
+	public SelectionJournal(File file) {
+		mFile = file;
+	}
+
+	/**
+	 * Reads the journal and finds the latest selection state for a snapshot
+	 *
+	 * @param generation
+	 * 		The generation of the loaded snapshot
+	 * @param swaps
+	 * 		Receives the swaps of the shuffle order recorded for the snapshot in the
+	 * 		order they were made, each as the two swapped positions
+	 * @return
+	 * 		Array with the current and next track index and the shuffle cursor
+	 * 		or null if there is no entry for the snapshot
+	 */
+	public int[] replay(int generation, List<int[]> swaps) {
+		mEntriesCount = 0;
+		if(!mFile.exists()) return null;
+		int[] selection = null;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				mEntriesCount++;
+				int[] entry = parseEntry(line, generation);
+				if(entry == null) continue;
+				selection = entry;
+				// the track at the swapped position was picked, i.e. it was swapped with the one before the cursor
+				if(entry[3] >= 0) swaps.add(new int[] { entry[2] - 1, entry[3] });
+			}
+		} catch (IOException e) {
+			LogUtils.e(this, "Cannot read the selection journal");
+		} finally {
+			if(reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+		return selection == null ? null : new int[] { selection[0], selection[1], selection[2] };
+	}
+
+	/**
+	 * Parses an entry with the format "S generation current next cursor swapped checksum".
+	 * Entries written before the shuffle order existed lack the cursor, which is then 0,
+	 * and older entries lack the swapped position, which is then -1.
+	 *
+	 * @return
+	 * 		The current and next index, the cursor and the swapped position or null
+	 * 		if the entry is incomplete or belongs to another snapshot
+	 */
+	private static int[] parseEntry(String line, int generation) {
+		String[] parts = line.split(SEPARATOR);
+		if(parts.length < 5 || parts.length > 7 || !ENTRY_PREFIX.equals(parts[0])) return null;
+		try {
+			int entryGeneration = Integer.parseInt(parts[1]);
+			int current = Integer.parseInt(parts[2]);
+			int next = Integer.parseInt(parts[3]);
+			int cursor = 0;
+			int swapped = -1;
+			int expectedChecksum = checksum(entryGeneration, current, next);
+			if(parts.length >= 6) {
+				cursor = Integer.parseInt(parts[4]);
+				expectedChecksum = expectedChecksum * 31 + cursor;
+			}
+			if(parts.length == 7) {
+				swapped = Integer.parseInt(parts[5]);
+				expectedChecksum = expectedChecksum * 31 + swapped;
+			}
+			int checksum = Integer.parseInt(parts[parts.length - 1]);
+			if(checksum != expectedChecksum) return null;
+			if(entryGeneration != generation) return null;
+			return new int[] { current, next, cursor, swapped };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static int checksum(int generation, int current, int next) {
+		return (generation * 31 + current) * 31 + next;
+	}
+
+	/**
+	 * Appends a new selection state and syncs it to disk
+	 *
+	 * @param generation
+	 * 		The generation of the snapshot the state belongs to
+	 * @param current
+	 * 		The current track index
+	 * @param next
+	 * 		The next track index
+	 * @param cursor
+	 * 		The position in the shuffle order
+	 * @param swapped
+	 * 		The position swapped with the one before the cursor by the pick
+	 * 		of the next track or -1 if the order was not changed
+	 * @return
+	 * 		if the entry was written
+	 */
+	public boolean append(int generation, int current, int next, int cursor, int swapped) {
+		String entry = ENTRY_PREFIX + SEPARATOR + generation + SEPARATOR + current + SEPARATOR
+				+ next + SEPARATOR + cursor + SEPARATOR + swapped + SEPARATOR
+				+ ((checksum(generation, current, next) * 31 + cursor) * 31 + swapped) + "\n";
+		FileOutputStream fos = null;
+		try {
+			// an entry appended to an incomplete line would be lost with it
+			if(!mEndsWithNewline && !endsWithNewline()) entry = "\n" + entry;
+			fos = new FileOutputStream(mFile, true);
+			fos.write(entry.getBytes("UTF-8"));
+			fos.getFD().sync();
+			mEntriesCount++;
+			mEndsWithNewline = true;
+			return true;
+		} catch (IOException e) {
+			LogUtils.e(this, "Cannot append to the selection journal");
+			mEndsWithNewline = false;
+			return false;
+		} finally {
+			if(fos != null) {
+				try {
+					fos.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return
+	 * 		if the journal is empty or its last line is complete
+	 */
+	private boolean endsWithNewline() throws IOException {
+		if(mFile.length() == 0) return true;
+		RandomAccessFile file = new RandomAccessFile(mFile, "r");
+		try {
+			file.seek(file.length() - 1);
+			return file.read() == '\n';
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The number of entries in the journal
+	 */
+	public int getEntriesCount() {
+		return mEntriesCount;
+	}
+
+	/**
+	 * Deletes all entries. Called after they were compacted into a new snapshot.
+	 */
+	public void clear() {
+		mFile.delete();
+		mEntriesCount = 0;
+		mEndsWithNewline = true;
+	}
+}
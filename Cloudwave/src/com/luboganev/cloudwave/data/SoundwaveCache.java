@@ -0,0 +1,372 @@
+package com.luboganev.cloudwave.data;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+
+import com.luboganev.cloudwave.LogUtils;
+
+/**
+ * Keeps the directory of downloaded soundwaves within a byte budget. It holds
+ * an in-memory index of the cached soundwaves in the order they were last shown,
+ * so looking up a soundwave never touches the file system. The order is
+ * persisted and the least recently shown soundwaves are evicted first. The
+ * soundwaves of the current and upcoming tracks are never evicted.
+ * <p>
+ * Soundwave images cached by older versions are converted into samples
+ * once, when the index is built for the first time after an update.
+ */
+public class SoundwaveCache {
+	/** Default maximum size of all cached soundwaves */
+	public static final long DEFAULT_BYTE_BUDGET = 1024 * 1024;
+
+	private static final String INDEX_FILE_NAME = "soundwave_cache_index.txt";
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	/** Temporary files younger than this may still be written by another thread and are kept */
+	private static final long STALE_TEMP_FILE_AGE = 60 * 1000;
+
+	private static SoundwaveCache sInstance;
+
+	private final Context mApplicationContext;
+	private final File mDirectory;
+	private final File mIndexFile;
+	private final String mFilePrefix;
+	private final String mFileSuffix;
+	private final String mLegacyFileSuffix;
+	/** Track id to file size, ordered from least to most recently shown */
+	private LinkedHashMap<Long, Long> mIndex;
+	private long mTotalBytes;
+	private long mByteBudget = DEFAULT_BYTE_BUDGET;
+
+	/**
+	 * Gets the process wide cache
+	 *
+	 * @param applicationContext
+	 * 		Needed to get the files directory and to decode old soundwave images
+	 * @param directory
+	 * 		The directory of the soundwave files
+	 * @param filePrefix
+	 * 		The prefix of the soundwave file names, followed by the track id
+	 * @param fileSuffix
+	 * 		The suffix of the soundwave file names
+	 * @param legacyFileSuffix
+	 * 		The suffix of the soundwave images cached by older versions
+	 * @return
+	 * 		The cache
+	 */
+	static synchronized SoundwaveCache getInstance(Context applicationContext, File directory,
+			String filePrefix, String fileSuffix, String legacyFileSuffix) {
+		if(sInstance == null) {
+			sInstance = new SoundwaveCache(applicationContext, directory, 
+					new File(applicationContext.getFilesDir(), INDEX_FILE_NAME), filePrefix, fileSuffix, legacyFileSuffix);
+		}
+		return sInstance;
+	}
+
+	private SoundwaveCache(Context applicationContext, File directory, File indexFile, 
+			String filePrefix, String fileSuffix, String legacyFileSuffix) {
+		mApplicationContext = applicationContext;
+		mDirectory = directory;
+		mIndexFile = indexFile;
+		mFilePrefix = filePrefix;
+		mFileSuffix = fileSuffix;
+		mLegacyFileSuffix = legacyFileSuffix;
+	}
+
+	/**
+	 * Sets the maximum size of all cached soundwaves
+	 *
+	 * @param bytes
+	 * 		The budget in bytes
+	 */
+	public synchronized void setByteBudget(long bytes) {
+		mByteBudget = bytes;
+	}
+
+	/**
+	 * @param trackId
+	 * 		The id of the track
+	 * @return
+	 * 		if the soundwave of the track is cached
+	 */
+	public synchronized boolean contains(long trackId) {
+		ensureIndex();
+		// do not use get(), it changes the access order
+		return mIndex.containsKey(trackId);
+	}
+
+	/**
+	 * Adds a newly saved soundwave to the index
+	 *
+	 * @param trackId
+	 * 		The id of the track
+	 * @param bytes
+	 * 		The size of the soundwave file
+	 */
+	public synchronized void put(long trackId, long bytes) {
+		ensureIndex();
+		Long previous = mIndex.put(trackId, bytes);
+		if(previous != null) mTotalBytes -= previous;
+		mTotalBytes += bytes;
+		saveIndex();
+	}
+
+	/**
+	 * Removes a soundwave from the index, e.g. because it cannot be read
+	 *
+	 * @param trackId
+	 * 		The id of the track
+	 */
+	public synchronized void remove(long trackId) {
+		ensureIndex();
+		Long bytes = mIndex.remove(trackId);
+		if(bytes != null) {
+			mTotalBytes -= bytes;
+			saveIndex();
+		}
+	}
+
+	/**
+	 * Marks a soundwave as the most recently shown one
+	 *
+	 * @param trackId
+	 * 		The id of the shown track
+	 */
+	public synchronized void markShown(long trackId) {
+		ensureIndex();
+		if(mIndex.get(trackId) != null) saveIndex();
+	}
+
+	/**
+	 * @return
+	 * 		if the cached soundwaves exceed the byte budget
+	 */
+	public synchronized boolean isOverBudget() {
+		ensureIndex();
+		return mTotalBytes > mByteBudget;
+	}
+
+	/**
+	 * Deletes the least recently shown soundwaves until the cache fits in the byte budget
+	 *
+	 * @param keepTrackIds
+	 * 		The ids of the tracks which are never evicted, e.g. the current and next track
+	 * @return
+	 * 		The number of evicted soundwaves
+	 */
+	public synchronized int trim(long[] keepTrackIds) {
+		ensureIndex();
+		int evicted = 0;
+		Iterator<Map.Entry<Long, Long>> iterator = mIndex.entrySet().iterator();
+		while (mTotalBytes > mByteBudget && iterator.hasNext()) {
+			Map.Entry<Long, Long> entry = iterator.next();
+			long trackId = entry.getKey();
+			if(contains(keepTrackIds, trackId)) continue;
+			File file = new File(mDirectory, mFilePrefix + trackId + mFileSuffix);
+			if(file.delete() || !file.exists()) {
+				mTotalBytes -= entry.getValue();
+				iterator.remove();
+				evicted++;
+			}
+		}
+		if(evicted > 0) {
+			LogUtils.d(this, "Evicted {} soundwaves", evicted);
+			saveIndex();
+		}
+		return evicted;
+	}
+
+	private static boolean contains(long[] trackIds, long trackId) {
+		for (long id : trackIds) {
+			if(id == trackId) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Loads the persisted index and reconciles it with the directory.
+	 * This lists the directory once per process and converts old soundwave images.
+	 */
+	private void ensureIndex() {
+		if(mIndex != null) return;
+		mIndex = new LinkedHashMap<Long, Long>(64, 0.75f, true);
+		mTotalBytes = 0;
+		LinkedHashMap<Long, Long> files = new LinkedHashMap<Long, Long>();
+		ArrayList<File> legacyImages = new ArrayList<File>();
+		File[] listed = mDirectory.listFiles();
+		if(listed != null) {
+			for (File file : listed) {
+				long trackId = parseTrackId(file.getName(), mFileSuffix);
+				if(trackId >= 0) {
+					files.put(trackId, file.length());
+				}
+				else if(parseTrackId(file.getName(), mLegacyFileSuffix) >= 0) {
+					legacyImages.add(file);
+				}
+				else if(!file.getName().endsWith(TEMP_FILE_SUFFIX)
+						|| file.lastModified() < System.currentTimeMillis() - STALE_TEMP_FILE_AGE) {
+					// leftovers like temporary files of an interrupted write
+					file.delete();
+				}
+			}
+		}
+		int converted = 0;
+		for (File image : legacyImages) {
+			long trackId = parseTrackId(image.getName(), mLegacyFileSuffix);
+			if(files.containsKey(trackId)) {
+				image.delete();
+				continue;
+			}
+			long bytes = convertLegacyImage(trackId, image);
+			if(bytes >= 0) {
+				files.put(trackId, bytes);
+				converted++;
+			}
+		}
+		if(converted > 0) LogUtils.d(this, "Converted {} old soundwave images", converted);
+		// files unknown to the persisted index are treated as least recently shown
+		LinkedHashMap<Long, Long> ordered = readIndexOrder();
+		for (Map.Entry<Long, Long> entry : files.entrySet()) {
+			if(!ordered.containsKey(entry.getKey())) addToIndex(entry.getKey(), entry.getValue());
+		}
+		for (Long trackId : ordered.keySet()) {
+			Long bytes = files.get(trackId);
+			if(bytes != null) addToIndex(trackId, bytes);
+		}
+	}
+
+	private void addToIndex(long trackId, long bytes) {
+		mIndex.put(trackId, bytes);
+		mTotalBytes += bytes;
+	}
+
+	private long parseTrackId(String fileName, String fileSuffix) {
+		if(!fileName.startsWith(mFilePrefix) || !fileName.endsWith(fileSuffix)) return -1;
+		try {
+			return Long.parseLong(fileName.substring(mFilePrefix.length(), fileName.length() - fileSuffix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reduces a soundwave image cached by an older version to samples and
+	 * saves them as the soundwave of the track. The image is deleted once it
+	 * has been converted or if it cannot be decoded.
+	 *
+	 * @param trackId
+	 * 		The id of the track
+	 * @param image
+	 * 		The old soundwave image
+	 * @return
+	 * 		The size of the saved samples file or -1 if the conversion failed
+	 */
+	private long convertLegacyImage(long trackId, File image) {
+		WaveformSamples samples = SoundwaveDecoder.decodeFile(mApplicationContext, image.getPath());
+		if(samples == null) {
+			image.delete();
+			return -1;
+		}
+		File file = new File(mDirectory, mFilePrefix + trackId + mFileSuffix);
+		File tempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+		OutputStream os = null;
+		try {
+			os = new BufferedOutputStream(new FileOutputStream(tempFile));
+			samples.writeTo(os);
+			os.close();
+			os = null;
+			if(!tempFile.renameTo(file)) {
+				tempFile.delete();
+				return -1;
+			}
+			image.delete();
+			return file.length();
+		} catch (IOException e) {
+			// the image is kept and converted by the next process
+			LogUtils.e(this, "Cannot convert the old soundwave image");
+			tempFile.delete();
+			return -1;
+		} finally {
+			if(os != null) {
+				try {
+					os.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The persisted track ids from least to most recently shown
+	 */
+	private LinkedHashMap<Long, Long> readIndexOrder() {
+		LinkedHashMap<Long, Long> order = new LinkedHashMap<Long, Long>();
+		if(!mIndexFile.exists()) return order;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(mIndexFile), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				try {
+					order.put(Long.parseLong(line.trim()), 0L);
+				} catch (NumberFormatException e) {
+					// skip broken lines
+				}
+			}
+		} catch (IOException e) {
+			LogUtils.e(this, "Cannot read the soundwave cache index");
+		} finally {
+			if(reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Persists the access order through a temporary file
+	 */
+	private void saveIndex() {
+		StringBuilder sb = new StringBuilder(mIndex.size() * 12);
+		for (Long trackId : mIndex.keySet()) {
+			sb.append(trackId).append('\n');
+		}
+		File tempFile = new File(mIndexFile.getPath() + TEMP_FILE_SUFFIX);
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(tempFile);
+			fos.write(sb.toString().getBytes("UTF-8"));
+			fos.close();
+			fos = null;
+			if(!tempFile.renameTo(mIndexFile)) tempFile.delete();
+		} catch (IOException e) {
+			LogUtils.e(this, "Cannot write the soundwave cache index");
+			tempFile.delete();
+		} finally {
+			if(fos != null) {
+				try {
+					fos.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+	}
+}
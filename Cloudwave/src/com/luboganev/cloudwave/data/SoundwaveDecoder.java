@@ -0,0 +1,200 @@
+package com.luboganev.cloudwave.data;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
+import android.os.Build;
+import android.util.DisplayMetrics;
+
+import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.Metrics;
+
+/**
+ * Decodes SoundCloud waveform images into {@link WaveformSamples}. The images
+ * are decoded only as big as needed for the device's screen and the decoded
+ * bitmaps are kept in a small pool so that consecutive decodes can reuse them.
+ */
+public class SoundwaveDecoder {
+	/** Maximum number of bitmaps kept for reuse */
+	private static final int MAX_POOL_SIZE = 2;
+	private static final LinkedList<Bitmap> sBitmapPool = new LinkedList<Bitmap>();
+	/** Build.VERSION_CODES.KITKAT, which is not available in the project's build target */
+	private static final int VERSION_CODE_KITKAT = 19;
+
+	/**
+	 * Decodes a soundwave image file
+	 *
+	 * @param context
+	 * 		Needed to get the display size
+	 * @param path
+	 * 		The path of the image file
+	 * @return
+	 * 		The extracted samples or null if decoding failed
+	 */
+	public static WaveformSamples decodeFile(Context context, String path) {
+		long start = Metrics.start();
+		Options opt = new Options();
+		opt.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, opt);
+		if(!prepareOptions(context, opt)) return null;
+		Bitmap mask;
+		try {
+			mask = BitmapFactory.decodeFile(path, opt);
+		} catch (IllegalArgumentException e) {
+			// the pooled bitmap could not be reused
+			clearReusableBitmap(opt);
+			mask = BitmapFactory.decodeFile(path, opt);
+		}
+		WaveformSamples samples = reduce(mask);
+		Metrics.SOUNDWAVE_DECODE.recordMicrosSince(start);
+		return samples;
+	}
+
+	/**
+	 * Decodes a soundwave image resource
+	 *
+	 * @param context
+	 * 		Needed to get the resources and the display size
+	 * @param resId
+	 * 		The id of the image resource
+	 * @return
+	 * 		The extracted samples or null if decoding failed
+	 */
+	public static WaveformSamples decodeResource(Context context, int resId) {
+		long start = Metrics.start();
+		Resources res = context.getResources();
+		Options opt = new Options();
+		// the image is not density specific
+		opt.inScaled = false;
+		opt.inJustDecodeBounds = true;
+		BitmapFactory.decodeResource(res, resId, opt);
+		if(!prepareOptions(context, opt)) return null;
+		Bitmap mask;
+		try {
+			mask = BitmapFactory.decodeResource(res, resId, opt);
+		} catch (IllegalArgumentException e) {
+			// the pooled bitmap could not be reused
+			clearReusableBitmap(opt);
+			mask = BitmapFactory.decodeResource(res, resId, opt);
+		}
+		WaveformSamples samples = reduce(mask);
+		Metrics.SOUNDWAVE_DECODE.recordMicrosSince(start);
+		return samples;
+	}
+
+	/**
+	 * Sets up the decoding options after the bounds of the image are known
+	 *
+	 * @return
+	 * 		false if the image bounds could not be decoded
+	 */
+	private static boolean prepareOptions(Context context, Options opt) {
+		if(opt.outWidth <= 0 || opt.outHeight <= 0) {
+			LogUtils.e("SoundwaveDecoder", "Cannot decode soundwave image bounds");
+			return false;
+		}
+		DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+		// the soundwave spans the whole width in both orientations and a third of the height
+		int maxDimension = Math.max(metrics.widthPixels, metrics.heightPixels);
+		int targetWidth = maxDimension;
+		int targetHeight = Math.min(WaveformSamples.MAX_EXTENT + 1, maxDimension / 3);
+		opt.inSampleSize = calculateSampleSize(opt.outWidth, opt.outHeight, targetWidth, targetHeight);
+		opt.inJustDecodeBounds = false;
+		opt.inPreferredConfig = Config.ALPHA_8;
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			setReusableBitmap(opt);
+		}
+		return true;
+	}
+
+	/**
+	 * Calculates the biggest power of two sample size,
+	 * which still keeps the image at least as big as the target size
+	 *
+	 * @param width
+	 * 		Image width
+	 * @param height
+	 * 		Image height
+	 * @param targetWidth
+	 * 		Minimum decoded width
+	 * @param targetHeight
+	 * 		Minimum decoded height
+	 * @return
+	 * 		The sample size
+	 */
+	static int calculateSampleSize(int width, int height, int targetWidth, int targetHeight) {
+		int sampleSize = 1;
+		while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	private static WaveformSamples reduce(Bitmap mask) {
+		if(mask == null) {
+			LogUtils.e("SoundwaveDecoder", "Cannot decode soundwave image");
+			return null;
+		}
+		WaveformSamples samples = WaveformSamples.fromMask(mask);
+		releaseBitmap(mask);
+		return samples;
+	}
+
+	/**
+	 * Takes a pooled bitmap, which can hold the decoded image
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static void setReusableBitmap(Options opt) {
+		opt.inMutable = true;
+		int width = (opt.outWidth + opt.inSampleSize - 1) / opt.inSampleSize;
+		int height = (opt.outHeight + opt.inSampleSize - 1) / opt.inSampleSize;
+		synchronized (sBitmapPool) {
+			Iterator<Bitmap> iterator = sBitmapPool.iterator();
+			while (iterator.hasNext()) {
+				Bitmap candidate = iterator.next();
+				if(canReuse(candidate, opt, width, height)) {
+					iterator.remove();
+					opt.inBitmap = candidate;
+					return;
+				}
+			}
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static void clearReusableBitmap(Options opt) {
+		opt.inBitmap = null;
+	}
+
+	private static boolean canReuse(Bitmap candidate, Options opt, int width, int height) {
+		if(candidate.getConfig() != opt.inPreferredConfig) return false;
+		if(Build.VERSION.SDK_INT >= VERSION_CODE_KITKAT) {
+			// any bitmap with enough memory will do, ALPHA_8 takes one byte per pixel
+			return candidate.getRowBytes() * candidate.getHeight() >= width * height;
+		}
+		// older versions can only reuse bitmaps of the exact same size
+		return opt.inSampleSize == 1 && candidate.getWidth() == width && candidate.getHeight() == height;
+	}
+
+	/**
+	 * Returns a decoded bitmap to the pool or recycles it if the pool is full
+	 */
+	private static void releaseBitmap(Bitmap bitmap) {
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && bitmap.isMutable()) {
+			synchronized (sBitmapPool) {
+				if(sBitmapPool.size() < MAX_POOL_SIZE) {
+					sBitmapPool.addFirst(bitmap);
+					return;
+				}
+			}
+		}
+		bitmap.recycle();
+	}
+}
@@ -0,0 +1,264 @@
+package com.luboganev.cloudwave.data;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.luboganev.cloudwave.LogUtils;
+
+/**
+ * Process wide owner of the loaded {@link LocalStorage}. The storage is loaded
+ * once and kept in memory by a single {@link LocalStorageManager}, which is only
+ * used on the repository's writer thread, so all changes are serialized.
+ * <p>
+ * Readers do not load the storage themselves. They get the latest immutable
+ * {@link StorageSnapshot} or subscribe to it, and the subscribers are notified
+ * on the main thread after every transaction which changed it. Snapshots are
+ * published copy-on-write through an atomic reference, so readers never block 
+ * or take locks. A snapshot only holds what the readers need, i.e. the artist,
+ * the number of tracks, the current and next track and the state of the next
+ * soundwave, so publishing one never copies the track catalog.
+ * <p>
+ * A transaction changes the working copy of the manager and commits it to disk, 
+ * where every file is replaced atomically. If a transaction fails, its changes 
+ * are discarded and the next transaction starts from the committed storage.
+ * Transactions are kept short, i.e. requests run between them and never hold 
+ * the writer thread.
+ */
+public class StorageRepository implements TransactionExecutor {
+	/**
+	 * Changes the local storage on the writer thread
+	 *
+	 * @param <T>
+	 * 		The type of the result
+	 */
+	public interface Transaction<T> {
+		/**
+		 * @param manager
+		 * 		The manager of the loaded storage, which must not be kept after the transaction
+		 * @return
+		 * 		The result of the transaction
+		 */
+		T run(LocalStorageManager manager);
+	}
+
+	/**
+	 * Receives the snapshots of the local storage on the main thread
+	 */
+	public interface Subscriber {
+		/**
+		 * @param snapshot
+		 * 		The new state of the local storage
+		 */
+		void onStorageChanged(StorageSnapshot snapshot);
+	}
+
+	private static StorageRepository sInstance;
+
+	private final LocalStorageManager mManager;
+	private final ExecutorService mWriter;
+	private final Handler mMainHandler;
+	private final Future<?> mInitialLoad;
+	private final CopyOnWriteArrayList<Subscriber> mSubscribers = new CopyOnWriteArrayList<Subscriber>();
+	/** The latest published snapshot, null until the storage has been loaded */
+	private final AtomicReference<StorageSnapshot> mSnapshot = new AtomicReference<StorageSnapshot>();
+	private volatile Thread mWriterThread;
+
+	/**
+	 * Gets the process wide repository. The storage starts loading when it is first created.
+	 *
+	 * @param applicationContext
+	 * 		Needed to access the local storage
+	 * @return
+	 * 		The repository
+	 */
+	public static synchronized StorageRepository getInstance(Context applicationContext) {
+		if(sInstance == null) {
+			sInstance = new StorageRepository(applicationContext.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private StorageRepository(Context applicationContext) {
+		mManager = new LocalStorageManager(applicationContext);
+		mMainHandler = new Handler(Looper.getMainLooper());
+		mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "StorageRepository");
+				mWriterThread = thread;
+				return thread;
+			}
+		});
+		mInitialLoad = mWriter.submit(new Runnable() {
+			@Override
+			public void run() {
+				ensureLoaded();
+				publish();
+			}
+		});
+	}
+
+	/**
+	 * Runs a transaction on the writer thread and waits for it. The subscribers
+	 * are notified afterwards if the snapshot has changed. Transactions started
+	 * from within a transaction run right away.
+	 *
+	 * @param transaction
+	 * 		The transaction
+	 * @return
+	 * 		The result of the transaction or null if the waiting was interrupted
+	 */
+	@Override
+	public <T> T execute(final Transaction<T> transaction) {
+		if(Thread.currentThread() == mWriterThread) {
+			return transaction.run(mManager);
+		}
+		Future<T> future = mWriter.submit(new Callable<T>() {
+			@Override
+			public T call() {
+				ensureLoaded();
+				try {
+					return transaction.run(mManager);
+				} catch (RuntimeException e) {
+					LogUtils.e("StorageRepository", "Transaction failed, discarding its changes");
+					// go back to the last committed storage
+					mManager.unload();
+					ensureLoaded();
+					throw e;
+				} finally {
+					publish();
+				}
+			}
+		});
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Gets the latest state of the local storage. Only waits for the initial
+	 * loading of the storage, never for running transactions.
+	 *
+	 * @return
+	 * 		The snapshot
+	 */
+	public StorageSnapshot getSnapshot() {
+		StorageSnapshot snapshot = mSnapshot.get();
+		if(snapshot != null) return snapshot;
+		try {
+			mInitialLoad.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			LogUtils.e(this, "Cannot load the local storage");
+		}
+		snapshot = mSnapshot.get();
+		return snapshot != null ? snapshot : StorageSnapshot.empty();
+	}
+
+	/**
+	 * Subscribes to the changes of the local storage. The subscriber first
+	 * receives the current snapshot, once the storage is loaded. Notifications 
+	 * always carry the latest snapshot at the time they are delivered, so the 
+	 * same snapshot may be received twice, but never an older one after a newer one.
+	 *
+	 * @param subscriber
+	 * 		Notified on the main thread
+	 */
+	public void subscribe(Subscriber subscriber) {
+		if(mSubscribers.addIfAbsent(subscriber) && mSnapshot.get() != null) {
+			deliver(subscriber);
+		}
+	}
+
+	/**
+	 * @param subscriber
+	 * 		Receives no more snapshots, even if they are already on the way
+	 */
+	public void unsubscribe(Subscriber subscriber) {
+		mSubscribers.remove(subscriber);
+	}
+
+	/**
+	 * Notifies the subscribers, if the snapshot has changed. Must be called on the writer thread.
+	 */
+	private void publish() {
+		if(Thread.currentThread() != mWriterThread) {
+			throw new IllegalStateException("Not on the writer thread");
+		}
+		StorageSnapshot previous = mSnapshot.get();
+		StorageSnapshot snapshot = createSnapshot(previous != null ? previous.version + 1 : 1);
+		if(snapshot.isSameAs(previous)) return;
+		// the writer thread is the only one setting it
+		mSnapshot.set(snapshot);
+		for (Subscriber subscriber : mSubscribers) {
+			deliver(subscriber);
+		}
+	}
+
+	/**
+	 * @param trackId
+	 * 		The id of the track
+	 * @return
+	 * 		if the soundwave of the track is available
+	 */
+	public boolean hasSoundwave(long trackId) {
+		return mManager.hasSoundwave(trackId);
+	}
+
+	/**
+	 * Loads the soundwave samples of a track. Can be used from any thread.
+	 *
+	 * @param trackId
+	 * 		The id of the track
+	 * @return
+	 * 		The loaded samples or null if they cannot be read
+	 */
+	public WaveformSamples loadSoundwaveSamples(long trackId) {
+		return mManager.loadSoundwaveSamples(trackId);
+	}
+
+	private void deliver(final Subscriber subscriber) {
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if(mSubscribers.contains(subscriber)) subscriber.onStorageChanged(mSnapshot.get());
+			}
+		});
+	}
+
+	/**
+	 * Loads the saved storage, unless it is loaded already
+	 */
+	private void ensureLoaded() {
+		if(mManager.isLoaded() || !mManager.hasSavedLocalStorage()) return;
+		LogUtils.d(this, "Loading local storage from file");
+		if(!mManager.loadFromFile()) mManager.unload();
+	}
+
+	private StorageSnapshot createSnapshot(long version) {
+		if(!mManager.isLoaded()) return new StorageSnapshot(version, null, 0, null, null, false, 0);
+		Track nextTrack = mManager.getNextTrack();
+		return new StorageSnapshot(version, mManager.getArtistName(), mManager.getTracksCount(),
+				mManager.getCurrentTrack(), nextTrack, nextTrack != null && mManager.hasSoundwave(nextTrack.id),
+				mManager.getTrackChangesCount());
+	}
+}
@@ -0,0 +1,87 @@
+package com.luboganev.cloudwave.data;
+
+/**
+ * Immutable state of the local storage as seen by its readers. It is pushed
+ * by the {@link StorageRepository} to its subscribers whenever it changes.
+ * A snapshot is never modified, every change is published as a new version.
+ */
+public class StorageSnapshot {
+	/** Increases with every published snapshot */
+	public final long version;
+	/** The name of the artist or null if no storage has been loaded */
+	public final String artistUsername;
+	/** The number of tracks */
+	public final int tracksCount;
+	/** The current track or null if no track has been shown yet */
+	public final Track currentTrack;
+	/** The next track or null if there is none */
+	public final Track nextTrack;
+	/** If the soundwave of the next track is available */
+	public final boolean nextSoundwaveReady;
+	/** Changes whenever the next track is made current, even if it is the same track again */
+	public final int trackChangesCount;
+
+	StorageSnapshot(long version, String artistUsername, int tracksCount, Track currentTrack, Track nextTrack,
+			boolean nextSoundwaveReady, int trackChangesCount) {
+		this.version = version;
+		this.artistUsername = artistUsername;
+		this.tracksCount = tracksCount;
+		this.currentTrack = currentTrack;
+		this.nextTrack = nextTrack;
+		this.nextSoundwaveReady = nextSoundwaveReady;
+		this.trackChangesCount = trackChangesCount;
+	}
+
+	/**
+	 * @return
+	 * 		The snapshot of a storage which has not been loaded or does not exist yet
+	 */
+	static StorageSnapshot empty() {
+		return new StorageSnapshot(0, null, 0, null, null, false, 0);
+	}
+
+	/**
+	 * @return
+	 * 		The id of the current track or -1 if there is none
+	 */
+	public long getCurrentTrackId() {
+		return currentTrack != null ? currentTrack.id : -1;
+	}
+
+	/**
+	 * @return
+	 * 		The id of the next track or -1 if there is none
+	 */
+	public long getNextTrackId() {
+		return nextTrack != null ? nextTrack.id : -1;
+	}
+
+	/**
+	 * Checks if the subscribers would see any difference to another snapshot, 
+	 * regardless of the versions
+	 *
+	 * @param another
+	 * 		The other snapshot or null
+	 * @return
+	 * 		if both snapshots show the same state
+	 */
+	boolean isSameAs(StorageSnapshot another) {
+		return another != null && tracksCount == another.tracksCount
+				&& trackChangesCount == another.trackChangesCount
+				&& nextSoundwaveReady == another.nextSoundwaveReady
+				&& equal(artistUsername, another.artistUsername)
+				&& isSameTrack(currentTrack, another.currentTrack)
+				&& isSameTrack(nextTrack, another.nextTrack);
+	}
+
+	private static boolean isSameTrack(Track track, Track another) {
+		if(track == null || another == null) return track == another;
+		return track.id == another.id && equal(track.title, another.title)
+				&& equal(track.permalinkUrl, another.permalinkUrl)
+				&& equal(track.waveformUrl, another.waveformUrl);
+	}
+
+	private static boolean equal(String value, String another) {
+		return value == null ? another == null : value.equals(another);
+	}
+}
@@ -0,0 +1,27 @@
+package com.luboganev.cloudwave.data;
+
+/**
+ * Object used as a model for the persisted state of the catalog synchronization
+ */
+public class SyncState {
+	/** If a synchronization has been started but not completed yet */
+	public boolean inProgress;
+	/** The url of the next page to fetch by the synchronization in progress */
+	public String nextPageUrl;
+	/** The ETag of the first page fetched by the synchronization in progress */
+	public String pendingEtag;
+	/** The Last-Modified header of the first page fetched by the synchronization in progress */
+	public String pendingLastModified;
+	/** If the first page fetched by the synchronization in progress is the only one */
+	public boolean pendingSinglePage;
+	/** The ETag of the first page of the last completed synchronization */
+	public String etag;
+	/** The Last-Modified header of the first page of the last completed synchronization */
+	public String lastModified;
+	/** If the last completed synchronization fetched a single page, whose ETag and date cover the whole catalog */
+	public boolean singlePage;
+	/** The time of the last completed synchronization in milliseconds */
+	public long lastSyncTime;
+	/** The time of the last completed synchronization which walked all pages in milliseconds */
+	public long lastFullSyncTime;
+}
@@ -1,15 +1,31 @@
 package com.luboganev.cloudwave.data;
 
 /**
- * This object serves as a model for the the tracks that are shown in the live wallpaper
+ * This object serves as a model for the the tracks that are shown in the live wallpaper.
+ * It is immutable, so the same track can be handed to any thread.
  */
 public class Track {
 	/** The id of the track */
-	public long id;
+	public final long id;
 	/** The title of the track. It is shown under the sound wave */
-	public String title;
+	public final String title;
 	/** The permalink of the track. It is opened if the user double taps on the wallpaper */
-	public String permalinkUrl;
+	public final String permalinkUrl;
 	/** The url of the sound wave file on SoundCloud */
-	public String waveformUrl;
+	public final String waveformUrl;
+	
+	public Track(long id, String title, String permalinkUrl, String waveformUrl) {
+		this.id = id;
+		this.title = title;
+		this.permalinkUrl = permalinkUrl;
+		this.waveformUrl = waveformUrl;
+	}
+	
+	/**
+	 * Used by Gson, which sets the fields afterwards
+	 */
+	@SuppressWarnings("unused")
+	private Track() {
+		this(0, null, null, null);
+	}
 }
@@ -0,0 +1,487 @@
+package com.luboganev.cloudwave.data;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Immutable list of tracks stored in a single binary buffer instead of a
+ * {@link Track} object with three strings per track. The buffer starts with a
+ * header, followed by an index of fixed size records, one per track, and a
+ * table of all strings encoded as UTF-8, in which equal strings are stored only
+ * once. {@link Track} objects are only created when a single track is requested.
+ * Tracks can be found by id in constant time.
+ * <p>
+ * The buffer is exactly what is written to the catalog file, so a catalog can
+ * be used directly on top of the memory mapped file, in which case reading a
+ * track only touches its index record and strings. It can also be persisted
+ * by {@link JsonAdapter} in the same json format as a list of tracks.
+ */
+public class TrackCatalog {
+	private static final int MAGIC = 0x43575443;
+	private static final int VERSION = 1;
+	/** Magic, version, tracks count and the length of the whole catalog */
+	private static final int HEADER_SIZE = 16;
+	/** Id followed by offset and length of every string */
+	private static final int RECORD_SIZE = 32;
+	private static final int FIELD_TITLE = 0;
+	private static final int FIELD_PERMALINK_URL = 1;
+	private static final int FIELD_WAVEFORM_URL = 2;
+	private static final String CHARSET = "UTF-8";
+
+	private final ByteBuffer mBuffer;
+	private final int mSize;
+	private final int mStringsStart;
+	/** Open addressing hash table of track positions + 1 by id, 0 marks an empty slot. Built on first use. */
+	private volatile int[] mIdTable;
+
+	private TrackCatalog(ByteBuffer buffer, int size) {
+		mBuffer = buffer;
+		mSize = size;
+		mStringsStart = HEADER_SIZE + size * RECORD_SIZE;
+	}
+
+	/**
+	 * Uses a catalog written by {@link #writeTo(ByteBuffer)} without copying it
+	 *
+	 * @param buffer
+	 * 		The buffer, e.g. a memory mapped file, starting with the catalog at its position
+	 * @return
+	 * 		The catalog
+	 * @throws IOException
+	 * 		If the buffer does not contain a valid catalog
+	 */
+	public static TrackCatalog wrap(ByteBuffer buffer) throws IOException {
+		ByteBuffer catalogBuffer = buffer.slice();
+		if(catalogBuffer.remaining() < HEADER_SIZE || catalogBuffer.getInt(0) != MAGIC
+				|| catalogBuffer.getInt(4) != VERSION) {
+			throw new IOException("Not a track catalog");
+		}
+		int size = catalogBuffer.getInt(8);
+		int length = catalogBuffer.getInt(12);
+		if(size < 0 || length > catalogBuffer.remaining() || HEADER_SIZE + (long) size * RECORD_SIZE > length) {
+			throw new IOException("Truncated track catalog");
+		}
+		catalogBuffer.limit(length);
+		return new TrackCatalog(catalogBuffer.slice(), size);
+	}
+
+	/**
+	 * @return
+	 * 		An empty catalog
+	 */
+	public static TrackCatalog empty() {
+		return new Builder(0).build();
+	}
+
+	/**
+	 * @return
+	 * 		The number of tracks
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return
+	 * 		if there are no tracks
+	 */
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	/**
+	 * @return
+	 * 		The number of bytes written by {@link #writeTo(ByteBuffer)}
+	 */
+	public int getByteCount() {
+		return mBuffer.limit();
+	}
+
+	/**
+	 * Writes the binary catalog, which can be read with {@link #wrap(ByteBuffer)}
+	 *
+	 * @param target
+	 * 		The buffer with at least {@link #getByteCount()} remaining bytes
+	 */
+	public void writeTo(ByteBuffer target) {
+		ByteBuffer source = mBuffer.duplicate();
+		source.clear();
+		target.put(source);
+	}
+
+	/**
+	 * @param index
+	 * 		The position of the track
+	 * @return
+	 * 		The id of the track
+	 */
+	public long getId(int index) {
+		checkIndex(index);
+		return mBuffer.getLong(HEADER_SIZE + index * RECORD_SIZE);
+	}
+
+	/**
+	 * @param index
+	 * 		The position of the track
+	 * @return
+	 * 		The title of the track
+	 */
+	public String getTitle(int index) {
+		checkIndex(index);
+		return getString(index, FIELD_TITLE);
+	}
+
+	/**
+	 * Creates a new track object for a position
+	 *
+	 * @param index
+	 * 		The position of the track
+	 * @return
+	 * 		The track
+	 */
+	public Track getTrack(int index) {
+		checkIndex(index);
+		return new Track(mBuffer.getLong(HEADER_SIZE + index * RECORD_SIZE), getString(index, FIELD_TITLE),
+				getString(index, FIELD_PERMALINK_URL), getString(index, FIELD_WAVEFORM_URL));
+	}
+
+	/**
+	 * Finds the position of a track
+	 *
+	 * @param id
+	 * 		The id of the track
+	 * @return
+	 * 		The position of the track or -1 if there is no such track
+	 */
+	public int indexOf(long id) {
+		int[] idTable = getIdTable();
+		return idTable[findSlot(idTable, id)] - 1;
+	}
+
+	/**
+	 * Compares a track with the track at a position. ASCII strings are 
+	 * compared without creating any objects.
+	 *
+	 * @param index
+	 * 		The position of the track
+	 * @param track
+	 * 		The track to compare to
+	 * @return
+	 * 		if the id and all strings are equal
+	 */
+	public boolean matches(int index, Track track) {
+		checkIndex(index);
+		return mBuffer.getLong(HEADER_SIZE + index * RECORD_SIZE) == track.id
+				&& stringEquals(index, FIELD_TITLE, track.title)
+				&& stringEquals(index, FIELD_PERMALINK_URL, track.permalinkUrl)
+				&& stringEquals(index, FIELD_WAVEFORM_URL, track.waveformUrl);
+	}
+
+	private int[] getIdTable() {
+		int[] idTable = mIdTable;
+		if(idTable == null) {
+			// racing threads build equal tables, so no locking is needed
+			int tableSize = 2;
+			while (tableSize < mSize * 2) {
+				tableSize <<= 1;
+			}
+			idTable = new int[tableSize];
+			for (int i = 0; i < mSize; i++) {
+				int slot = findSlot(idTable, mBuffer.getLong(HEADER_SIZE + i * RECORD_SIZE));
+				if(idTable[slot] == 0) idTable[slot] = i + 1;
+			}
+			mIdTable = idTable;
+		}
+		return idTable;
+	}
+
+	private int findSlot(int[] idTable, long id) {
+		int mask = idTable.length - 1;
+		int slot = hash(id) & mask;
+		while (idTable[slot] != 0 && mBuffer.getLong(HEADER_SIZE + (idTable[slot] - 1) * RECORD_SIZE) != id) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int hash(long id) {
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private int stringRecord(int index, int field) {
+		return HEADER_SIZE + index * RECORD_SIZE + 8 + field * 8;
+	}
+
+	private String getString(int index, int field) {
+		int record = stringRecord(index, field);
+		int length = mBuffer.getInt(record + 4);
+		if(length < 0) return null;
+		byte[] bytes = new byte[length];
+		ByteBuffer source = mBuffer.duplicate();
+		source.position(mStringsStart + mBuffer.getInt(record));
+		source.get(bytes);
+		try {
+			return new String(bytes, CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private boolean stringEquals(int index, int field, String value) {
+		int record = stringRecord(index, field);
+		int length = mBuffer.getInt(record + 4);
+		if(value == null || length < 0) return value == null && length < 0;
+		int offset = mStringsStart + mBuffer.getInt(record);
+		// most strings are plain ASCII, which can be compared without decoding
+		if(value.length() == length) {
+			boolean ascii = true;
+			for (int i = 0; i < length; i++) {
+				char c = value.charAt(i);
+				byte b = mBuffer.get(offset + i);
+				if(c >= 0x80 || b < 0) {
+					ascii = false;
+					break;
+				}
+				if(b != c) return false;
+			}
+			if(ascii) return true;
+		}
+		return value.equals(getString(index, field));
+	}
+
+	private static byte[] encode(String value) {
+		try {
+			return value.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void checkIndex(int index) {
+		if(index < 0 || index >= mSize) {
+			throw new IndexOutOfBoundsException("Invalid index " + index + ", size is " + mSize);
+		}
+	}
+
+	/**
+	 * Collects tracks for a new {@link TrackCatalog}
+	 */
+	public static class Builder {
+		private static final int FIELDS_COUNT = 3;
+
+		private int mSize;
+		private long[] mIds;
+		/** Offset and length of every string, FIELDS_COUNT per track */
+		private int[] mStringOffsets;
+		private int[] mStringLengths;
+		private byte[] mBytes;
+		private int mBytesLength;
+		/** The offset and length of the strings already in the byte table */
+		private final HashMap<String, int[]> mInterned = new HashMap<String, int[]>();
+
+		/**
+		 * @param expectedSize
+		 * 		The expected number of tracks
+		 */
+		public Builder(int expectedSize) {
+			int capacity = Math.max(expectedSize, 16);
+			mIds = new long[capacity];
+			mStringOffsets = new int[capacity * FIELDS_COUNT];
+			mStringLengths = new int[capacity * FIELDS_COUNT];
+			mBytes = new byte[capacity * 64];
+		}
+
+		/**
+		 * Adds a track
+		 *
+		 * @param id
+		 * 		Track id
+		 * @param title
+		 * 		Track title
+		 * @param permalinkUrl
+		 * 		Track permalink url
+		 * @param waveformUrl
+		 * 		Track waveform url
+		 * @return
+		 * 		This builder
+		 */
+		public Builder add(long id, String title, String permalinkUrl, String waveformUrl) {
+			if(mSize == mIds.length) {
+				int capacity = mSize * 2;
+				long[] ids = new long[capacity];
+				System.arraycopy(mIds, 0, ids, 0, mSize);
+				mIds = ids;
+				int[] offsets = new int[capacity * FIELDS_COUNT];
+				System.arraycopy(mStringOffsets, 0, offsets, 0, mSize * FIELDS_COUNT);
+				mStringOffsets = offsets;
+				int[] lengths = new int[capacity * FIELDS_COUNT];
+				System.arraycopy(mStringLengths, 0, lengths, 0, mSize * FIELDS_COUNT);
+				mStringLengths = lengths;
+			}
+			mIds[mSize] = id;
+			int field = mSize * FIELDS_COUNT;
+			addString(field + FIELD_TITLE, title);
+			addString(field + FIELD_PERMALINK_URL, permalinkUrl);
+			addString(field + FIELD_WAVEFORM_URL, waveformUrl);
+			mSize++;
+			return this;
+		}
+
+		/**
+		 * Adds a track
+		 *
+		 * @param track
+		 * 		The track
+		 * @return
+		 * 		This builder
+		 */
+		public Builder add(Track track) {
+			return add(track.id, track.title, track.permalinkUrl, track.waveformUrl);
+		}
+
+		/**
+		 * Adds a track of another catalog
+		 *
+		 * @param catalog
+		 * 		The other catalog
+		 * @param index
+		 * 		The position of the track in the other catalog
+		 * @return
+		 * 		This builder
+		 */
+		public Builder add(TrackCatalog catalog, int index) {
+			return add(catalog.getTrack(index));
+		}
+
+		private void addString(int field, String value) {
+			if(value == null) {
+				mStringOffsets[field] = 0;
+				mStringLengths[field] = -1;
+				return;
+			}
+			int[] interned = mInterned.get(value);
+			if(interned == null) {
+				byte[] encoded = encode(value);
+				if(mBytesLength + encoded.length > mBytes.length) {
+					byte[] bytes = new byte[Math.max(mBytes.length * 2, mBytesLength + encoded.length)];
+					System.arraycopy(mBytes, 0, bytes, 0, mBytesLength);
+					mBytes = bytes;
+				}
+				System.arraycopy(encoded, 0, mBytes, mBytesLength, encoded.length);
+				interned = new int[] { mBytesLength, encoded.length };
+				mBytesLength += encoded.length;
+				mInterned.put(value, interned);
+			}
+			mStringOffsets[field] = interned[0];
+			mStringLengths[field] = interned[1];
+		}
+
+		/**
+		 * @return
+		 * 		The number of added tracks
+		 */
+		public int size() {
+			return mSize;
+		}
+
+		/**
+		 * @return
+		 * 		The new catalog
+		 */
+		public TrackCatalog build() {
+			int length = HEADER_SIZE + mSize * RECORD_SIZE + mBytesLength;
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(mSize).putInt(length);
+			for (int i = 0; i < mSize; i++) {
+				buffer.putLong(mIds[i]);
+				for (int field = 0; field < FIELDS_COUNT; field++) {
+					buffer.putInt(mStringOffsets[i * FIELDS_COUNT + field]);
+					buffer.putInt(mStringLengths[i * FIELDS_COUNT + field]);
+				}
+			}
+			buffer.put(mBytes, 0, mBytesLength);
+			buffer.clear();
+			return new TrackCatalog(buffer, mSize);
+		}
+	}
+
+	/**
+	 * Reads and writes a catalog as a json array of track objects, just like Gson
+	 * does for a list of {@link Track} objects with lower case field names with underscores.
+	 * The tracks are streamed directly into the catalog without creating track objects.
+	 */
+	public static class JsonAdapter extends TypeAdapter<TrackCatalog> {
+		private static final String FIELD_NAME_ID = "id";
+		private static final String FIELD_NAME_TITLE = "title";
+		private static final String FIELD_NAME_PERMALINK_URL = "permalink_url";
+		private static final String FIELD_NAME_WAVEFORM_URL = "waveform_url";
+
+		@Override
+		public void write(JsonWriter out, TrackCatalog catalog) throws IOException {
+			if(catalog == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginArray();
+			for (int i = 0; i < catalog.mSize; i++) {
+				out.beginObject();
+				out.name(FIELD_NAME_ID).value(catalog.getId(i));
+				out.name(FIELD_NAME_TITLE).value(catalog.getString(i, FIELD_TITLE));
+				out.name(FIELD_NAME_PERMALINK_URL).value(catalog.getString(i, FIELD_PERMALINK_URL));
+				out.name(FIELD_NAME_WAVEFORM_URL).value(catalog.getString(i, FIELD_WAVEFORM_URL));
+				out.endObject();
+			}
+			out.endArray();
+		}
+
+		@Override
+		public TrackCatalog read(JsonReader in) throws IOException {
+			if(in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			Builder builder = new Builder(0);
+			in.beginArray();
+			while (in.hasNext()) {
+				long id = 0;
+				String title = null;
+				String permalinkUrl = null;
+				String waveformUrl = null;
+				in.beginObject();
+				while (in.hasNext()) {
+					String name = in.nextName();
+					if(in.peek() == JsonToken.NULL) {
+						in.nextNull();
+					}
+					else if(FIELD_NAME_ID.equals(name)) {
+						id = in.nextLong();
+					}
+					else if(FIELD_NAME_TITLE.equals(name)) {
+						title = in.nextString();
+					}
+					else if(FIELD_NAME_PERMALINK_URL.equals(name)) {
+						permalinkUrl = in.nextString();
+					}
+					else if(FIELD_NAME_WAVEFORM_URL.equals(name)) {
+						waveformUrl = in.nextString();
+					}
+					else {
+						in.skipValue();
+					}
+				}
+				in.endObject();
+				builder.add(id, title, permalinkUrl, waveformUrl);
+			}
+			in.endArray();
+			return builder.build();
+		}
+	}
+}
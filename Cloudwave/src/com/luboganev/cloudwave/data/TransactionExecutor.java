@@ -0,0 +1,21 @@
+package com.luboganev.cloudwave.data;
+
+import com.luboganev.cloudwave.data.StorageRepository.Transaction;
+
+/**
+ * Runs transactions on the local storage, which the {@link StorageRepository}
+ * does for the whole process. Work which must not hold its writer thread,
+ * e.g. requests, runs between short transactions of an executor instead of
+ * within a single long one.
+ */
+public interface TransactionExecutor {
+	/**
+	 * Runs a transaction and waits for it
+	 *
+	 * @param transaction
+	 * 		The transaction
+	 * @return
+	 * 		The result of the transaction or null if the waiting was interrupted
+	 */
+	<T> T execute(Transaction<T> transaction);
+}
@@ -0,0 +1,225 @@
+package com.luboganev.cloudwave.data;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+/**
+ * Compact representation of a track's soundwave. For every column of the
+ * original SoundCloud waveform image it keeps only the top and bottom extent
+ * of the wave, scaled to the range 0..{@link #MAX_EXTENT}. A whole waveform
+ * takes a few KB instead of a full size mask bitmap. Coarser mip levels
+ * are precomputed, so that resampling for narrow surfaces stays cheap.
+ */
+public class WaveformSamples {
+	/** The value of an extent at the bottom edge of the waveform */
+	public static final int MAX_EXTENT = 255;
+
+	private static final int FILE_MAGIC = 0x43575746; // "CWWF"
+	private static final int FILE_VERSION = 1;
+	/** Mask pixels with lower alpha are part of the wave */
+	private static final int WAVE_ALPHA_THRESHOLD = 128;
+	/** No mip levels narrower than this are computed */
+	private static final int MIN_MIP_COLUMNS = 128;
+	/** Number of remembered resampling results, e.g. for portrait and landscape */
+	private static final int RESAMPLED_CACHE_SIZE = 2;
+
+	private final byte[] mTops;
+	private final byte[] mBottoms;
+	/** The next mip level with half as many columns */
+	private final WaveformSamples mCoarserLevel;
+	private final WaveformSamples[] mResampledCache;
+	private int mNextResampledSlot;
+
+	private WaveformSamples(byte[] tops, byte[] bottoms, boolean withMipLevels) {
+		mTops = tops;
+		mBottoms = bottoms;
+		if(withMipLevels) {
+			mCoarserLevel = tops.length / 2 >= MIN_MIP_COLUMNS ? resampleFrom(this, tops.length / 2, true) : null;
+			mResampledCache = new WaveformSamples[RESAMPLED_CACHE_SIZE];
+		}
+		else {
+			mCoarserLevel = null;
+			mResampledCache = null;
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The number of columns in the waveform
+	 */
+	public int getColumnsCount() {
+		return mTops.length;
+	}
+
+	/**
+	 * @param column
+	 * 		The column index
+	 * @return
+	 * 		The top extent of the wave in the column.
+	 * 		It is bigger than the bottom one if the column is empty.
+	 */
+	public int getTop(int column) {
+		return mTops[column] & 0xFF;
+	}
+
+	/**
+	 * @param column
+	 * 		The column index
+	 * @return
+	 * 		The bottom extent of the wave in the column
+	 */
+	public int getBottom(int column) {
+		return mBottoms[column] & 0xFF;
+	}
+
+	/**
+	 * @return
+	 * 		The approximate memory taken by the samples
+	 */
+	public int getByteCount() {
+		int byteCount = mTops.length + mBottoms.length;
+		if(mCoarserLevel != null) byteCount += mCoarserLevel.getByteCount();
+		return byteCount;
+	}
+
+	/**
+	 * Resamples the waveform to a different number of columns.
+	 * Every new column covers the extents of all columns it replaces.
+	 * The result is computed from the coarsest mip level which is still
+	 * wide enough and the last few results are remembered.
+	 *
+	 * @param columns
+	 * 		The number of columns of the result
+	 * @return
+	 * 		The resampled waveform
+	 */
+	public WaveformSamples resample(int columns) {
+		if(columns == mTops.length) return this;
+		if(mResampledCache == null) return resampleFrom(this, columns, false);
+		synchronized (mResampledCache) {
+			for (WaveformSamples cached : mResampledCache) {
+				if(cached != null && cached.mTops.length == columns) return cached;
+			}
+		}
+		WaveformSamples source = this;
+		while (source.mCoarserLevel != null && source.mCoarserLevel.mTops.length >= columns) {
+			source = source.mCoarserLevel;
+		}
+		WaveformSamples resampled = source.mTops.length == columns ? source : resampleFrom(source, columns, false);
+		synchronized (mResampledCache) {
+			mResampledCache[mNextResampledSlot] = resampled;
+			mNextResampledSlot = (mNextResampledSlot + 1) % RESAMPLED_CACHE_SIZE;
+		}
+		return resampled;
+	}
+	
+	private static WaveformSamples resampleFrom(WaveformSamples source, int columns, boolean withMipLevels) {
+		byte[] tops = new byte[columns];
+		byte[] bottoms = new byte[columns];
+		int sourceColumns = source.mTops.length;
+		for (int i = 0; i < columns; i++) {
+			int start = (int)((long)i * sourceColumns / columns);
+			int end = Math.max(start + 1, (int)((long)(i + 1) * sourceColumns / columns));
+			int top = MAX_EXTENT;
+			int bottom = 0;
+			for (int j = start; j < end; j++) {
+				top = Math.min(top, source.mTops[j] & 0xFF);
+				bottom = Math.max(bottom, source.mBottoms[j] & 0xFF);
+			}
+			tops[i] = (byte)top;
+			bottoms[i] = (byte)bottom;
+		}
+		return new WaveformSamples(tops, bottoms, withMipLevels);
+	}
+
+	/**
+	 * Reduces a SoundCloud waveform image to samples. In these images
+	 * the wave itself is transparent and its surroundings are opaque.
+	 *
+	 * @param mask
+	 * 		The decoded waveform image
+	 * @return
+	 * 		The extracted samples
+	 */
+	public static WaveformSamples fromMask(Bitmap mask) {
+		int width = mask.getWidth();
+		int height = mask.getHeight();
+		byte[] tops = new byte[width];
+		byte[] bottoms = new byte[width];
+		int[] firstRows = new int[width];
+		int[] lastRows = new int[width];
+		for (int x = 0; x < width; x++) {
+			firstRows[x] = -1;
+		}
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			mask.getPixels(row, 0, width, 0, y, width, 1);
+			for (int x = 0; x < width; x++) {
+				if(Color.alpha(row[x]) < WAVE_ALPHA_THRESHOLD) {
+					if(firstRows[x] < 0) firstRows[x] = y;
+					lastRows[x] = y;
+				}
+			}
+		}
+		for (int x = 0; x < width; x++) {
+			if(firstRows[x] < 0) {
+				// empty column
+				tops[x] = (byte)MAX_EXTENT;
+				bottoms[x] = 0;
+			}
+			else {
+				tops[x] = (byte)Math.round((float)firstRows[x] * MAX_EXTENT / height);
+				bottoms[x] = (byte)Math.round((float)(lastRows[x] + 1) * MAX_EXTENT / height);
+			}
+		}
+		return new WaveformSamples(tops, bottoms, true);
+	}
+
+	/**
+	 * Reads samples previously written with {@link #writeTo(OutputStream)}
+	 *
+	 * @param is
+	 * 		The input stream
+	 * @return
+	 * 		The read samples
+	 * @throws IOException
+	 * 		If reading fails or the data is not in the expected format
+	 */
+	public static WaveformSamples readFrom(InputStream is) throws IOException {
+		DataInputStream dis = new DataInputStream(is);
+		if(dis.readInt() != FILE_MAGIC || dis.readInt() != FILE_VERSION) {
+			throw new IOException("Not a soundwave samples file");
+		}
+		int columns = dis.readInt();
+		if(columns <= 0) throw new IOException("Invalid columns count " + columns);
+		byte[] tops = new byte[columns];
+		byte[] bottoms = new byte[columns];
+		dis.readFully(tops);
+		dis.readFully(bottoms);
+		return new WaveformSamples(tops, bottoms, true);
+	}
+
+	/**
+	 * Writes the samples in a compact binary format
+	 *
+	 * @param os
+	 * 		The output stream
+	 * @throws IOException
+	 * 		If writing fails
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		DataOutputStream dos = new DataOutputStream(os);
+		dos.writeInt(FILE_MAGIC);
+		dos.writeInt(FILE_VERSION);
+		dos.writeInt(mTops.length);
+		dos.write(mTops);
+		dos.write(mBottoms);
+		dos.flush();
+	}
+}
@@ -6,13 +6,13 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 
-import com.commonsware.cwac.wakeful.WakefulIntentService;
 import com.luboganev.cloudwave.LogUtils;
-import com.luboganev.cloudwave.service.ChangeWallpaperService;
+import com.luboganev.cloudwave.service.ChangeScheduler;
 
 /**
- * This receiver gets called on regular basis and starts the
- * change wallpaper service in a wakeful manner
+ * This receiver gets called when the next change of the wallpaper is due. 
+ * The alarm is only set while the wallpaper is shown, the {@link ChangeScheduler} 
+ * then starts the change wallpaper service in a wakeful manner.
  */
 public class AlarmReceiver extends BroadcastReceiver {
 	public static final String INTENT_ACTION = "com.luboganev.cloudwave.receivers.ALARM";
@@ -20,8 +20,7 @@ public class AlarmReceiver extends BroadcastReceiver {
 	@Override
 	public void onReceive(Context context, Intent intent) {
 		LogUtils.d(this, "Received change wallpaper alarm");
-		Intent serviceIntent = new Intent(context, ChangeWallpaperService.class);
-		WakefulIntentService.sendWakefulWork(context, serviceIntent);
+		ChangeScheduler.getInstance(context).onAlarm();
 	}
 	
 	/**
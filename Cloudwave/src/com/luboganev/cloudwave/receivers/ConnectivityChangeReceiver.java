@@ -1,32 +1,68 @@
 package com.luboganev.cloudwave.receivers;
 
-import com.commonsware.cwac.wakeful.WakefulIntentService;
 import com.luboganev.cloudwave.LogUtils;
-import com.luboganev.cloudwave.service.ChangeWallpaperService;
+import com.luboganev.cloudwave.service.ChangeScheduler;
 import com.luboganev.cloudwave.service.CommunicationUtils;
+import com.luboganev.cloudwave.service.NetworkResilience;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 
 /**
- * This broadcast receiver gets notified when network connectivity 
+ * This broadcast receiver gets notified when network connectivity
  * has changed. It is registered in the app's manifest but is not
  * enabled the whole time. It is being enabled when we want to get
- * some new sound wave image or other info from Soundcloud API, but 
- * there is currently no Internet connectivity. When the Internet 
- * connectivity is available again, it calls the execution of all 
- * the necessary work and disables itself again. 
+ * some new sound wave image or other info from Soundcloud API, but
+ * there is currently no Internet connectivity. When the Internet
+ * connectivity is available again, it calls the execution of all
+ * the necessary work and disables itself again.
+ * <p>
+ * A flapping network sends storms of broadcasts, so they are debounced.
+ * Every broadcast restarts a short settle alarm, which replaces the pending
+ * one, and only when the alarm goes off with the connectivity still
+ * available, the work is triggered once.
  */
 public class ConnectivityChangeReceiver extends BroadcastReceiver {
+	private static final String ACTION_SETTLED = "com.luboganev.cloudwave.receivers.CONNECTIVITY_SETTLED";
+	/** The time the connectivity must not change before the work is triggered */
+	private static final long SETTLE_DELAY = 30 * 1000;
+
 	@Override
 	public void onReceive(Context context, Intent intent) {
-		if(CommunicationUtils.hasInternetConnectivity(context)) {
+		boolean connected = CommunicationUtils.hasInternetConnectivity(context);
+		AlarmManager mgr = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+		if(!ACTION_SETTLED.equals(intent.getAction())) {
+			// restart waiting for the connectivity to settle
+			mgr.cancel(getSettledIntent(context));
+			if(connected) {
+				mgr.set(AlarmManager.RTC, System.currentTimeMillis() + SETTLE_DELAY, getSettledIntent(context));
+			}
+			return;
+		}
+		if(connected) {
 			LogUtils.d(this, "OMG, there is internet! Better start working then.");
-			// we have internet, have the change wallpaper service called
-			Intent serviceIntent = new Intent(context, ChangeWallpaperService.class);
-			WakefulIntentService.sendWakefulWork(context, serviceIntent);
+			// requests which failed without the connection may be retried right away
+			NetworkResilience.getInstance(context).onConnectivityRestored();
+			// we have internet, have the change made once the wallpaper is shown
+			ChangeScheduler.getInstance(context).onConnectivityRestored();
 			// disable this broadcastReceiver
 			CommunicationUtils.setConnectivityChangeReceiverEnabled(context, false);
 		}
 	}
+
+	/**
+	 * Generates the pending intent broadcasted when the connectivity has settled
+	 *
+	 * @param context
+	 * 		Context needed to build intents
+	 * @return
+	 */
+	private static PendingIntent getSettledIntent(Context context) {
+		Intent i = new Intent(context, ConnectivityChangeReceiver.class);
+		i.setAction(ACTION_SETTLED);
+		return PendingIntent.getBroadcast(context, 0, i, 0);
+	}
 }
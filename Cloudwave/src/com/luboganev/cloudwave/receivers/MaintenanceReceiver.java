@@ -0,0 +1,25 @@
+package com.luboganev.cloudwave.receivers;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.commonsware.cwac.wakeful.WakefulIntentService;
+import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.service.MaintenanceScheduler;
+import com.luboganev.cloudwave.service.MaintenanceService;
+
+/**
+ * This receiver gets called when the device is connected to power or a
+ * maintenance task reaches its deadline. It starts the maintenance service
+ * in a wakeful manner. It is registered in the app's manifest, but only
+ * enabled by the {@link MaintenanceScheduler} while the wallpaper is set.
+ */
+public class MaintenanceReceiver extends BroadcastReceiver {
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		LogUtils.d(this, "Opening maintenance window");
+		Intent serviceIntent = new Intent(context, MaintenanceService.class);
+		WakefulIntentService.sendWakefulWork(context, serviceIntent);
+	}
+}
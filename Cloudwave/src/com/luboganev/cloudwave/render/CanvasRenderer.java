@@ -0,0 +1,146 @@
+package com.luboganev.cloudwave.render;
+
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Paint.Cap;
+import android.graphics.Paint.Style;
+import android.graphics.Rect;
+import android.text.StaticLayout;
+import android.view.SurfaceHolder;
+
+import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.Metrics;
+import com.luboganev.cloudwave.R;
+import com.luboganev.cloudwave.data.WaveformSamples;
+
+/**
+ * Draws the wallpaper frames in software on a locked canvas of the surface.
+ * The composited frame is kept in a {@link FrameCache}, so unchanged frames
+ * are just blitted. It works on every device, so it is the fallback of the
+ * {@link GlRenderer}.
+ */
+public class CanvasRenderer implements WallpaperRenderer {
+	private final FrameCache mFrameCache = new FrameCache();
+	private final Paint mSoundwavePaint = new Paint();
+	private final int mBackgroundColor;
+	private SurfaceHolder mHolder;
+
+	/**
+	 * @param resources
+	 * 		Needed for the colors
+	 */
+	public CanvasRenderer(Resources resources) {
+		mBackgroundColor = resources.getColor(R.color.black);
+		mSoundwavePaint.setColor(resources.getColor(R.color.orange));
+		mSoundwavePaint.setStyle(Style.STROKE);
+		mSoundwavePaint.setStrokeWidth(1);
+		mSoundwavePaint.setStrokeCap(Cap.BUTT);
+	}
+
+	@Override
+	public boolean onSurfaceCreated(SurfaceHolder holder) {
+		mHolder = holder;
+		return true;
+	}
+
+	@Override
+	public boolean draw(TrackRenderState state, FrameGeometry geometry) {
+		if(mHolder == null) return true;
+		Canvas c = null;
+		try {
+			c = mHolder.lockCanvas();
+			if (c == null) return true;
+			if(state == null) {
+				// still loading
+				c.drawColor(mBackgroundColor);
+				return true;
+			}
+			if(mFrameCache.isValidFor(geometry.width, geometry.height, geometry.density, state.trackId)) {
+				Metrics.FRAME_CACHE_HITS.increment();
+			}
+			else {
+				LogUtils.d(this, "rendering frame cache");
+				Metrics.FRAME_CACHE_MISSES.increment();
+				Canvas frameCanvas = mFrameCache.beginRender(geometry.width, geometry.height,
+						geometry.density, state.trackId);
+				if(frameCanvas == null) {
+					// no memory for the offscreen frame, so draw directly on the surface
+					drawFrame(c, state, geometry);
+					return true;
+				}
+				drawFrame(frameCanvas, state, geometry);
+				mFrameCache.endRender();
+			}
+			mFrameCache.draw(c);
+			return true;
+		} finally {
+			if (c != null)
+				mHolder.unlockCanvasAndPost(c);
+		}
+	}
+
+	@Override
+	public void onSurfaceDestroyed() {
+		mHolder = null;
+	}
+
+	@Override
+	public void release() {
+		mHolder = null;
+		mFrameCache.release();
+	}
+
+	/**
+	 * Draws the soundwave as one vertical line per pixel column
+	 *
+	 * @param c
+	 * 		The canvas to draw on
+	 * @param bounds
+	 * 		The bounding rect of the soundwave
+	 * @param soundwave
+	 * 		The soundwave samples
+	 */
+	private void drawSoundwave(Canvas c, Rect bounds, WaveformSamples soundwave) {
+		int columns = bounds.width();
+		WaveformSamples samples = soundwave.resample(columns);
+		float scale = (float)bounds.height() / WaveformSamples.MAX_EXTENT;
+		float[] lines = new float[columns * 4];
+		int count = 0;
+		for (int i = 0; i < columns; i++) {
+			int top = samples.getTop(i);
+			int bottom = samples.getBottom(i);
+			if(bottom <= top) continue; // empty column
+			float x = bounds.left + i + 0.5f;
+			lines[count++] = x;
+			lines[count++] = bounds.top + top * scale;
+			lines[count++] = x;
+			lines[count++] = bounds.top + bottom * scale;
+		}
+		c.drawLines(lines, 0, count, mSoundwavePaint);
+	}
+
+	/**
+	 * Composites the whole wallpaper frame
+	 *
+	 * @param c
+	 * 		The canvas to draw on
+	 * @param state
+	 * 		The track to draw
+	 * @param geometry
+	 * 		The geometry of the frame
+	 */
+	private void drawFrame(Canvas c, TrackRenderState state, FrameGeometry geometry) {
+		c.drawColor(mBackgroundColor);
+
+		// draw the inside of the sound wave
+		if(state.soundwave != null) drawSoundwave(c, geometry.soundwaveBounds, state.soundwave);
+
+		// draw the text
+		StaticLayout sl = TitleLayoutCache.getInstance().getLayout(state.title, geometry);
+		c.save();
+		c.translate(geometry.titleBounds.left, geometry.titleBounds.top);
+		sl.draw(c);
+		c.restore();
+	}
+}
@@ -0,0 +1,112 @@
+package com.luboganev.cloudwave.render;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+
+import com.luboganev.cloudwave.LogUtils;
+
+/**
+ * Holds a fully composited wallpaper frame in an offscreen bitmap, so that
+ * unchanged frames can simply be blitted to the surface. The cached frame is
+ * keyed by surface width, height, display density and track id.
+ */
+public class FrameCache {
+	private Bitmap mFrame;
+	private Canvas mFrameCanvas;
+	private boolean mValid;
+	private int mWidth;
+	private int mHeight;
+	private float mDensity;
+	private long mTrackId;
+
+	/**
+	 * Checks if the cached frame was rendered for the given parameters
+	 *
+	 * @param width
+	 * 		Surface width in pixels
+	 * @param height
+	 * 		Surface height in pixels
+	 * @param density
+	 * 		Display density
+	 * @param trackId
+	 * 		The id of the shown track
+	 * @return
+	 * 		true if the cached frame can be drawn as it is
+	 */
+	public boolean isValidFor(int width, int height, float density, long trackId) {
+		return mValid && mFrame != null && mWidth == width && mHeight == height
+				&& mDensity == density && mTrackId == trackId;
+	}
+
+	/**
+	 * Prepares the offscreen bitmap for rendering a new frame. The bitmap
+	 * is reused if the surface size has not changed.
+	 *
+	 * @param width
+	 * 		Surface width in pixels
+	 * @param height
+	 * 		Surface height in pixels
+	 * @param density
+	 * 		Display density
+	 * @param trackId
+	 * 		The id of the shown track
+	 * @return
+	 * 		A canvas drawing into the cached frame or null if
+	 * 		the offscreen bitmap could not be allocated
+	 */
+	public Canvas beginRender(int width, int height, float density, long trackId) {
+		mValid = false;
+		if(mFrame == null || mWidth != width || mHeight != height) {
+			release();
+			try {
+				mFrame = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+			} catch (OutOfMemoryError e) {
+				LogUtils.e(this, "Cannot allocate frame cache");
+				return null;
+			}
+			mFrameCanvas = new Canvas(mFrame);
+		}
+		mWidth = width;
+		mHeight = height;
+		mDensity = density;
+		mTrackId = trackId;
+		return mFrameCanvas;
+	}
+
+	/**
+	 * Marks the frame rendered after {@link #beginRender(int, int, float, long)} as complete
+	 */
+	public void endRender() {
+		mValid = mFrame != null;
+	}
+
+	/**
+	 * Blits the cached frame
+	 *
+	 * @param c
+	 * 		The surface canvas
+	 */
+	public void draw(Canvas c) {
+		c.drawBitmap(mFrame, 0, 0, null);
+	}
+
+	/**
+	 * Forces the next frame to be rendered again
+	 */
+	public void invalidate() {
+		mValid = false;
+	}
+
+	/**
+	 * Frees the offscreen bitmap
+	 */
+	public void release() {
+		mValid = false;
+		mFrameCanvas = null;
+		if(mFrame != null) {
+			mFrame.recycle();
+			mFrame = null;
+		}
+	}
+}
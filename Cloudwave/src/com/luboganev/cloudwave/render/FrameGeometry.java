@@ -0,0 +1,75 @@
+package com.luboganev.cloudwave.render;
+
+import android.graphics.Rect;
+import android.util.DisplayMetrics;
+import android.util.TypedValue;
+
+/**
+ * Describes where the parts of a wallpaper frame are drawn 
+ * for a particular surface size and display density. 
+ * The bounding rects must not be modified.
+ */
+public class FrameGeometry {
+	/** Surface width in pixels */
+	public final int width;
+	/** Surface height in pixels */
+	public final int height;
+	/** Display density */
+	public final float density;
+	/** The bounding rect of the soundwave */
+	public final Rect soundwaveBounds;
+	/** The bounding rect of the title */
+	public final Rect titleBounds;
+	/** The size of the title text in pixels */
+	public final int titleTextSize;
+	
+	private FrameGeometry(int width, int height, DisplayMetrics metrics) {
+		this.width = width;
+		this.height = height;
+		this.density = metrics.density;
+		int soundWaveHeight = height / 3;
+		soundwaveBounds = new Rect(0, soundWaveHeight, width, soundWaveHeight * 2);
+		titleBounds = new Rect(dipToPixels(8, metrics), 
+				soundwaveBounds.bottom + dipToPixels(8, metrics), 
+				width - dipToPixels(8, metrics), 
+				soundwaveBounds.bottom + soundWaveHeight / 2);
+		titleTextSize = dipToPixels(16, metrics);
+	}
+	
+	/**
+	 * Gets the geometry for a surface
+	 * 
+	 * @param width
+	 * 		Surface width in pixels
+	 * @param height
+	 * 		Surface height in pixels
+	 * @param metrics
+	 * 		The display metrics
+	 * @return
+	 * 		The frame geometry
+	 */
+	public static FrameGeometry create(int width, int height, DisplayMetrics metrics) {
+		return new FrameGeometry(width, height, metrics);
+	}
+	
+	/**
+	 * Checks if the geometry was created for the given parameters
+	 * 
+	 * @param width
+	 * 		Surface width in pixels
+	 * @param height
+	 * 		Surface height in pixels
+	 * @param density
+	 * 		Display density
+	 * @return
+	 * 		true if it matches
+	 */
+	public boolean matches(int width, int height, float density) {
+		return this.width == width && this.height == height && this.density == density;
+	}
+	
+	private static int dipToPixels(int dipValue, DisplayMetrics metrics) {
+		return (int) TypedValue.applyDimension(
+				TypedValue.COMPLEX_UNIT_DIP, dipValue, metrics);
+	}
+}
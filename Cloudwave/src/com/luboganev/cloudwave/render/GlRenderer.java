@@ -0,0 +1,424 @@
+package com.luboganev.cloudwave.render;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ConfigurationInfo;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.os.Build;
+import android.text.StaticLayout;
+import android.view.SurfaceHolder;
+
+import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.R;
+import com.luboganev.cloudwave.data.WaveformSamples;
+
+/**
+ * Draws the wallpaper frames with OpenGL ES 2.0 on an EGL window surface of the
+ * engine's surface holder. The soundwave is uploaded once per track and geometry
+ * as a vertex buffer of vertical lines, which are filled orange by the fragment
+ * shader. The title is rendered once into a texture and drawn as a textured quad.
+ * So an unchanged frame costs just a few draw calls and no CPU rendering.
+ * <p>
+ * Any EGL or GL error makes the renderer release everything and report the
+ * failure, so the engine can fall back to the {@link CanvasRenderer}.
+ */
+@TargetApi(Build.VERSION_CODES.GINGERBREAD)
+public class GlRenderer implements WallpaperRenderer {
+	private static final int EGL_OPENGL_ES2_BIT = 4;
+	private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+	private static final int GL_ES_VERSION_2 = 0x20000;
+	private static final int BYTES_PER_FLOAT = 4;
+
+	/** Maps the pixel coordinates of the surface, with the origin at the top left, to clip space */
+	private static final String PIXEL_TO_CLIP =
+			"uniform vec2 uSurfaceSize;\n" +
+			"vec4 pixelToClip(vec2 p) {\n" +
+			"  return vec4(p.x / uSurfaceSize.x * 2.0 - 1.0, 1.0 - p.y / uSurfaceSize.y * 2.0, 0.0, 1.0);\n" +
+			"}\n";
+	private static final String SOUNDWAVE_VERTEX_SHADER = PIXEL_TO_CLIP +
+			"attribute vec2 aPosition;\n" +
+			"void main() {\n" +
+			"  gl_Position = pixelToClip(aPosition);\n" +
+			"}\n";
+	private static final String SOUNDWAVE_FRAGMENT_SHADER =
+			"precision mediump float;\n" +
+			"uniform vec4 uColor;\n" +
+			"void main() {\n" +
+			"  gl_FragColor = uColor;\n" +
+			"}\n";
+	private static final String TITLE_VERTEX_SHADER = PIXEL_TO_CLIP +
+			"attribute vec2 aPosition;\n" +
+			"attribute vec2 aTexCoord;\n" +
+			"varying vec2 vTexCoord;\n" +
+			"void main() {\n" +
+			"  vTexCoord = aTexCoord;\n" +
+			"  gl_Position = pixelToClip(aPosition);\n" +
+			"}\n";
+	private static final String TITLE_FRAGMENT_SHADER =
+			"precision mediump float;\n" +
+			"uniform sampler2D uTexture;\n" +
+			"varying vec2 vTexCoord;\n" +
+			"void main() {\n" +
+			"  gl_FragColor = texture2D(uTexture, vTexCoord);\n" +
+			"}\n";
+
+	private final int mBackgroundColor;
+	private final int mSoundwaveColor;
+
+	private EGL10 mEgl;
+	private EGLDisplay mDisplay;
+	private EGLContext mContext;
+	private EGLSurface mSurface;
+
+	private int mSoundwaveProgram;
+	private int mSoundwavePositionLocation;
+	private int mSoundwaveSurfaceSizeLocation;
+	private int mSoundwaveColorLocation;
+	private int mTitleProgram;
+	private int mTitlePositionLocation;
+	private int mTitleTexCoordLocation;
+	private int mTitleSurfaceSizeLocation;
+	private int mTitleTextureLocation;
+	/** The vertex buffers of the soundwave lines and of the title quad */
+	private final int[] mBuffers = new int[2];
+	private final int[] mTitleTexture = new int[1];
+
+	/** The track whose soundwave and title are uploaded, null if none is */
+	private TrackRenderState mUploadedState;
+	/** The geometry the uploaded track was laid out for */
+	private FrameGeometry mUploadedGeometry;
+	private int mSoundwaveVertexCount;
+
+	/**
+	 * Checks if the device can run the renderer, i.e. if it supports OpenGL ES 2.0
+	 * and the vertex buffer bindings, which came with Gingerbread
+	 *
+	 * @param context
+	 * 		Needed for the device configuration
+	 * @return
+	 * 		true if the renderer can be used
+	 */
+	public static boolean isSupported(Context context) {
+		if(Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD) return false;
+		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		ConfigurationInfo info = activityManager.getDeviceConfigurationInfo();
+		return info != null && info.reqGlEsVersion >= GL_ES_VERSION_2;
+	}
+
+	/**
+	 * @param resources
+	 * 		Needed for the colors
+	 */
+	public GlRenderer(Resources resources) {
+		mBackgroundColor = resources.getColor(R.color.black);
+		mSoundwaveColor = resources.getColor(R.color.orange);
+	}
+
+	@Override
+	public boolean onSurfaceCreated(SurfaceHolder holder) {
+		try {
+			createEglSurface(holder);
+			createPrograms();
+			GLES20.glGenBuffers(mBuffers.length, mBuffers, 0);
+			GLES20.glGenTextures(mTitleTexture.length, mTitleTexture, 0);
+			checkGlError("glGen");
+			return true;
+		} catch (GlException e) {
+			LogUtils.e(this, "Cannot set up OpenGL ES: {}", e.getMessage());
+			release();
+			return false;
+		}
+	}
+
+	@Override
+	public boolean draw(TrackRenderState state, FrameGeometry geometry) {
+		// nothing to draw on between the destruction and the creation of a surface
+		if(mSurface == null) return true;
+		try {
+			if(!mEgl.eglMakeCurrent(mDisplay, mSurface, mSurface, mContext)) {
+				throw new GlException("eglMakeCurrent", mEgl.eglGetError());
+			}
+			if(state != null && (state != mUploadedState || geometry != mUploadedGeometry)) {
+				LogUtils.d(this, "uploading track {}", state.trackId);
+				uploadSoundwave(state, geometry);
+				uploadTitle(state, geometry);
+				mUploadedState = state;
+				mUploadedGeometry = geometry;
+			}
+			GLES20.glViewport(0, 0, geometry.width, geometry.height);
+			GLES20.glClearColor(Color.red(mBackgroundColor) / 255f, Color.green(mBackgroundColor) / 255f,
+					Color.blue(mBackgroundColor) / 255f, 1f);
+			GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+			if(state != null) {
+				drawSoundwave(geometry);
+				drawTitle(geometry);
+			}
+			checkGlError("draw");
+			if(!mEgl.eglSwapBuffers(mDisplay, mSurface)) {
+				throw new GlException("eglSwapBuffers", mEgl.eglGetError());
+			}
+			return true;
+		} catch (GlException e) {
+			LogUtils.e(this, "Cannot draw with OpenGL ES: {}", e.getMessage());
+			release();
+			return false;
+		}
+	}
+
+	@Override
+	public void onSurfaceDestroyed() {
+		release();
+	}
+
+	@Override
+	public void release() {
+		if(mEgl == null) return;
+		if(mSurface != null && mEgl.eglMakeCurrent(mDisplay, mSurface, mSurface, mContext)) {
+			// the GL objects are freed with the context, but a clean context is freed faster
+			GLES20.glDeleteBuffers(mBuffers.length, mBuffers, 0);
+			GLES20.glDeleteTextures(mTitleTexture.length, mTitleTexture, 0);
+			GLES20.glDeleteProgram(mSoundwaveProgram);
+			GLES20.glDeleteProgram(mTitleProgram);
+		}
+		mEgl.eglMakeCurrent(mDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+		if(mSurface != null) mEgl.eglDestroySurface(mDisplay, mSurface);
+		if(mContext != null) mEgl.eglDestroyContext(mDisplay, mContext);
+		mEgl.eglTerminate(mDisplay);
+		mEgl = null;
+		mDisplay = null;
+		mContext = null;
+		mSurface = null;
+		mSoundwaveProgram = 0;
+		mTitleProgram = 0;
+		mBuffers[0] = mBuffers[1] = 0;
+		mTitleTexture[0] = 0;
+		mUploadedState = null;
+		mUploadedGeometry = null;
+	}
+
+	/**
+	 * Creates an OpenGL ES 2.0 context and a window surface on the holder and makes them current
+	 */
+	private void createEglSurface(SurfaceHolder holder) throws GlException {
+		mEgl = (EGL10) EGLContext.getEGL();
+		mDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+		if(mDisplay == EGL10.EGL_NO_DISPLAY || !mEgl.eglInitialize(mDisplay, new int[2])) {
+			throw new GlException("eglInitialize", mEgl.eglGetError());
+		}
+		int[] configAttributes = new int[] {
+				EGL10.EGL_RED_SIZE, 8,
+				EGL10.EGL_GREEN_SIZE, 8,
+				EGL10.EGL_BLUE_SIZE, 8,
+				EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+				EGL10.EGL_NONE };
+		EGLConfig[] configs = new EGLConfig[1];
+		int[] configsCount = new int[1];
+		if(!mEgl.eglChooseConfig(mDisplay, configAttributes, configs, 1, configsCount) || configsCount[0] == 0) {
+			throw new GlException("eglChooseConfig", mEgl.eglGetError());
+		}
+		int[] contextAttributes = new int[] { EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE };
+		mContext = mEgl.eglCreateContext(mDisplay, configs[0], EGL10.EGL_NO_CONTEXT, contextAttributes);
+		if(mContext == null || mContext == EGL10.EGL_NO_CONTEXT) {
+			mContext = null;
+			throw new GlException("eglCreateContext", mEgl.eglGetError());
+		}
+		mSurface = mEgl.eglCreateWindowSurface(mDisplay, configs[0], holder, null);
+		if(mSurface == null || mSurface == EGL10.EGL_NO_SURFACE) {
+			mSurface = null;
+			throw new GlException("eglCreateWindowSurface", mEgl.eglGetError());
+		}
+		if(!mEgl.eglMakeCurrent(mDisplay, mSurface, mSurface, mContext)) {
+			throw new GlException("eglMakeCurrent", mEgl.eglGetError());
+		}
+	}
+
+	private void createPrograms() throws GlException {
+		mSoundwaveProgram = createProgram(SOUNDWAVE_VERTEX_SHADER, SOUNDWAVE_FRAGMENT_SHADER);
+		mSoundwavePositionLocation = GLES20.glGetAttribLocation(mSoundwaveProgram, "aPosition");
+		mSoundwaveSurfaceSizeLocation = GLES20.glGetUniformLocation(mSoundwaveProgram, "uSurfaceSize");
+		mSoundwaveColorLocation = GLES20.glGetUniformLocation(mSoundwaveProgram, "uColor");
+		mTitleProgram = createProgram(TITLE_VERTEX_SHADER, TITLE_FRAGMENT_SHADER);
+		mTitlePositionLocation = GLES20.glGetAttribLocation(mTitleProgram, "aPosition");
+		mTitleTexCoordLocation = GLES20.glGetAttribLocation(mTitleProgram, "aTexCoord");
+		mTitleSurfaceSizeLocation = GLES20.glGetUniformLocation(mTitleProgram, "uSurfaceSize");
+		mTitleTextureLocation = GLES20.glGetUniformLocation(mTitleProgram, "uTexture");
+	}
+
+	private static int createProgram(String vertexSource, String fragmentSource) throws GlException {
+		int vertexShader = compileShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+		int fragmentShader = compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+		int program = GLES20.glCreateProgram();
+		GLES20.glAttachShader(program, vertexShader);
+		GLES20.glAttachShader(program, fragmentShader);
+		GLES20.glLinkProgram(program);
+		// the shaders are freed with the program
+		GLES20.glDeleteShader(vertexShader);
+		GLES20.glDeleteShader(fragmentShader);
+		int[] status = new int[1];
+		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+		if(status[0] == 0) {
+			String log = GLES20.glGetProgramInfoLog(program);
+			GLES20.glDeleteProgram(program);
+			throw new GlException("glLinkProgram " + log);
+		}
+		return program;
+	}
+
+	private static int compileShader(int type, String source) throws GlException {
+		int shader = GLES20.glCreateShader(type);
+		GLES20.glShaderSource(shader, source);
+		GLES20.glCompileShader(shader);
+		int[] status = new int[1];
+		GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+		if(status[0] == 0) {
+			String log = GLES20.glGetShaderInfoLog(shader);
+			GLES20.glDeleteShader(shader);
+			throw new GlException("glCompileShader " + log);
+		}
+		return shader;
+	}
+
+	/**
+	 * Uploads the soundwave as one vertical line per pixel column, nothing if the track has none
+	 */
+	private void uploadSoundwave(TrackRenderState state, FrameGeometry geometry) {
+		if(state.soundwave == null) {
+			mSoundwaveVertexCount = 0;
+			return;
+		}
+		Rect bounds = geometry.soundwaveBounds;
+		int columns = bounds.width();
+		WaveformSamples samples = state.soundwave.resample(columns);
+		float scale = (float)bounds.height() / WaveformSamples.MAX_EXTENT;
+		FloatBuffer vertices = createFloatBuffer(columns * 4);
+		for (int i = 0; i < columns; i++) {
+			int top = samples.getTop(i);
+			int bottom = samples.getBottom(i);
+			if(bottom <= top) continue; // empty column
+			float x = bounds.left + i + 0.5f;
+			vertices.put(x).put(bounds.top + top * scale);
+			vertices.put(x).put(bounds.top + bottom * scale);
+		}
+		mSoundwaveVertexCount = vertices.position() / 2;
+		vertices.position(0);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[0]);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mSoundwaveVertexCount * 2 * BYTES_PER_FLOAT,
+				vertices, GLES20.GL_STATIC_DRAW);
+	}
+
+	/**
+	 * Renders the title into the texture and uploads its quad
+	 */
+	private void uploadTitle(TrackRenderState state, FrameGeometry geometry) throws GlException {
+		StaticLayout sl = TitleLayoutCache.getInstance().getLayout(state.title, geometry);
+		int width = Math.max(1, sl.getWidth());
+		int height = Math.max(1, sl.getHeight());
+		Bitmap bitmap;
+		try {
+			bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+		} catch (OutOfMemoryError e) {
+			throw new GlException("Cannot allocate title bitmap");
+		}
+		sl.draw(new Canvas(bitmap));
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTitleTexture[0]);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+		// needed for textures which are not a power of two in size
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+		GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+		bitmap.recycle();
+
+		float left = geometry.titleBounds.left;
+		float top = geometry.titleBounds.top;
+		float right = left + width;
+		float bottom = top + height;
+		// a triangle strip of position and texture coordinates pairs
+		FloatBuffer quad = createFloatBuffer(16);
+		quad.put(left).put(top).put(0f).put(0f);
+		quad.put(left).put(bottom).put(0f).put(1f);
+		quad.put(right).put(top).put(1f).put(0f);
+		quad.put(right).put(bottom).put(1f).put(1f);
+		quad.position(0);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[1]);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, 16 * BYTES_PER_FLOAT, quad, GLES20.GL_STATIC_DRAW);
+	}
+
+	private void drawSoundwave(FrameGeometry geometry) {
+		if(mSoundwaveVertexCount == 0) return;
+		GLES20.glUseProgram(mSoundwaveProgram);
+		GLES20.glUniform2f(mSoundwaveSurfaceSizeLocation, geometry.width, geometry.height);
+		GLES20.glUniform4f(mSoundwaveColorLocation, Color.red(mSoundwaveColor) / 255f,
+				Color.green(mSoundwaveColor) / 255f, Color.blue(mSoundwaveColor) / 255f,
+				Color.alpha(mSoundwaveColor) / 255f);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[0]);
+		GLES20.glEnableVertexAttribArray(mSoundwavePositionLocation);
+		GLES20.glVertexAttribPointer(mSoundwavePositionLocation, 2, GLES20.GL_FLOAT, false, 0, 0);
+		GLES20.glLineWidth(1f);
+		GLES20.glDrawArrays(GLES20.GL_LINES, 0, mSoundwaveVertexCount);
+		GLES20.glDisableVertexAttribArray(mSoundwavePositionLocation);
+	}
+
+	private void drawTitle(FrameGeometry geometry) {
+		GLES20.glUseProgram(mTitleProgram);
+		GLES20.glUniform2f(mTitleSurfaceSizeLocation, geometry.width, geometry.height);
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTitleTexture[0]);
+		GLES20.glUniform1i(mTitleTextureLocation, 0);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[1]);
+		int stride = 4 * BYTES_PER_FLOAT;
+		GLES20.glEnableVertexAttribArray(mTitlePositionLocation);
+		GLES20.glVertexAttribPointer(mTitlePositionLocation, 2, GLES20.GL_FLOAT, false, stride, 0);
+		GLES20.glEnableVertexAttribArray(mTitleTexCoordLocation);
+		GLES20.glVertexAttribPointer(mTitleTexCoordLocation, 2, GLES20.GL_FLOAT, false, stride, 2 * BYTES_PER_FLOAT);
+		// the bitmap colors are premultiplied by their alpha
+		GLES20.glEnable(GLES20.GL_BLEND);
+		GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+		GLES20.glDisable(GLES20.GL_BLEND);
+		GLES20.glDisableVertexAttribArray(mTitlePositionLocation);
+		GLES20.glDisableVertexAttribArray(mTitleTexCoordLocation);
+	}
+
+	private static FloatBuffer createFloatBuffer(int size) {
+		return ByteBuffer.allocateDirect(size * BYTES_PER_FLOAT).order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+
+	private static void checkGlError(String operation) throws GlException {
+		int error = GLES20.glGetError();
+		if(error != GLES20.GL_NO_ERROR) throw new GlException(operation, error);
+	}
+
+	/**
+	 * A failed EGL or GL call
+	 */
+	private static class GlException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		GlException(String message) {
+			super(message);
+		}
+
+		GlException(String operation, int error) {
+			super(operation + " failed with error 0x" + Integer.toHexString(error));
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package com.luboganev.cloudwave.render;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.DisplayMetrics;
+import android.view.Choreographer;
+import android.view.SurfaceHolder;
+
+import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.Metrics;
+
+/**
+ * Draws the frames of a wallpaper engine on its own thread, so a slow frame does
+ * not block the touch and visibility handling on the main thread and vice versa.
+ * The main thread only posts requests to the message queue of the render thread,
+ * which owns the {@link WallpaperRenderer}.
+ * <p>
+ * Render requests are coalesced, so all requests made until the next frame
+ * result in a single draw. From Jelly Bean on the frame is drawn at the next
+ * vsync signalled by the {@link Choreographer}, before that right away.
+ */
+public class RenderThread implements Handler.Callback {
+	private static final int MSG_SURFACE_CREATED = 1;
+	private static final int MSG_SURFACE_DESTROYED = 2;
+	private static final int MSG_SCHEDULE_FRAME = 3;
+	private static final int MSG_QUIT = 4;
+
+	/**
+	 * Provides what is drawn. Its methods are called on the render thread.
+	 */
+	public interface Callback {
+		/**
+		 * @return
+		 * 		The track to draw or null while it is still loading
+		 */
+		public TrackRenderState getRenderState();
+
+		/**
+		 * @param geometry
+		 * 		The new geometry of the frames after the surface has changed
+		 */
+		public void onFrameGeometryChanged(FrameGeometry geometry);
+	}
+
+	private final Context mApplicationContext;
+	private final Callback mCallback;
+	private final HandlerThread mRenderThread;
+	private final Handler mRenderHandler;
+	private volatile boolean mQuit;
+	/** Set by the first render request until the next frame, which the following requests join */
+	private final AtomicBoolean mRenderRequested = new AtomicBoolean();
+	/** The fields below are only accessed on the render thread */
+	private WallpaperRenderer mRenderer;
+	private SurfaceHolder mHolder;
+	/** Set once OpenGL ES has failed, so the software renderer is used from then on */
+	private boolean mGlFailed;
+	/** The geometry of the last drawn frame */
+	private FrameGeometry mGeometry;
+	private VsyncCallback mVsyncCallback;
+
+	/**
+	 * @param applicationContext
+	 * 		Needed for the resources and the device configuration
+	 * @param callback
+	 * 		Provides what is drawn
+	 */
+	public RenderThread(Context applicationContext, Callback callback) {
+		mApplicationContext = applicationContext;
+		mCallback = callback;
+		mRenderThread = new HandlerThread("RenderThread", Process.THREAD_PRIORITY_DISPLAY);
+		mRenderThread.start();
+		mRenderHandler = new Handler(mRenderThread.getLooper(), this);
+	}
+
+	/**
+	 * Attaches a renderer to the newly created surface
+	 *
+	 * @param holder
+	 * 		The holder of the surface
+	 */
+	public void onSurfaceCreated(SurfaceHolder holder) {
+		if(mQuit) return;
+		mRenderHandler.obtainMessage(MSG_SURFACE_CREATED, holder).sendToTarget();
+	}
+
+	/**
+	 * Detaches the renderer from the surface. Blocks until the render thread
+	 * has stopped drawing on it, since it is gone once this returns.
+	 */
+	public void onSurfaceDestroyed() {
+		if(mQuit) return;
+		CountDownLatch released = new CountDownLatch(1);
+		mRenderHandler.obtainMessage(MSG_SURFACE_DESTROYED, released).sendToTarget();
+		try {
+			released.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Requests drawing a frame. Can be called from any thread.
+	 */
+	public void requestRender() {
+		if(mQuit) return;
+		if(mRenderRequested.getAndSet(true)) {
+			// the pending frame draws the latest state anyway
+			Metrics.COALESCED_REDRAWS.increment();
+			return;
+		}
+		mRenderHandler.sendEmptyMessage(MSG_SCHEDULE_FRAME);
+	}
+
+	/**
+	 * Releases the renderer and stops the render thread. Nothing is drawn afterwards.
+	 */
+	public void quit() {
+		mQuit = true;
+		mRenderHandler.removeCallbacksAndMessages(null);
+		// the renderer is released on the render thread, which quits afterwards
+		mRenderHandler.sendEmptyMessage(MSG_QUIT);
+	}
+
+	@Override
+	public boolean handleMessage(Message msg) {
+		switch (msg.what) {
+		case MSG_SURFACE_CREATED:
+			mHolder = (SurfaceHolder) msg.obj;
+			createRenderer();
+			return true;
+		case MSG_SURFACE_DESTROYED:
+			releaseRenderer();
+			mHolder = null;
+			((CountDownLatch) msg.obj).countDown();
+			return true;
+		case MSG_SCHEDULE_FRAME:
+			if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+				if(mVsyncCallback == null) mVsyncCallback = new VsyncCallback();
+				mVsyncCallback.postFrame();
+			}
+			else renderFrame();
+			return true;
+		case MSG_QUIT:
+			if(mVsyncCallback != null) mVsyncCallback.cancelFrame();
+			releaseRenderer();
+			mHolder = null;
+			Looper.myLooper().quit();
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private void createRenderer() {
+		if(!mGlFailed && GlRenderer.isSupported(mApplicationContext)) {
+			mRenderer = new GlRenderer(mApplicationContext.getResources());
+			if(mRenderer.onSurfaceCreated(mHolder)) return;
+			LogUtils.e(this, "OpenGL ES is not available, falling back to software rendering");
+			mGlFailed = true;
+		}
+		mRenderer = new CanvasRenderer(mApplicationContext.getResources());
+		mRenderer.onSurfaceCreated(mHolder);
+	}
+
+	private void releaseRenderer() {
+		if(mRenderer != null) {
+			mRenderer.release();
+			mRenderer = null;
+		}
+	}
+
+	/**
+	 * Draws the latest state of the engine
+	 */
+	private void renderFrame() {
+		// cleared first, so a request made while drawing gets a frame of its own
+		mRenderRequested.set(false);
+		if(mRenderer == null) return;
+		LogUtils.d(this, "redraw");
+		long start = Metrics.start();
+		Rect frame = mHolder.getSurfaceFrame();
+		DisplayMetrics metrics = mApplicationContext.getResources().getDisplayMetrics();
+		if(mGeometry == null || !mGeometry.matches(frame.width(), frame.height(), metrics.density)) {
+			mGeometry = FrameGeometry.create(frame.width(), frame.height(), metrics);
+			mCallback.onFrameGeometryChanged(mGeometry);
+		}
+		TrackRenderState state = mCallback.getRenderState();
+		if(!mRenderer.draw(state, mGeometry) && mRenderer instanceof GlRenderer) {
+			LogUtils.e(this, "OpenGL ES rendering failed, falling back to software rendering");
+			mGlFailed = true;
+			mRenderer = new CanvasRenderer(mApplicationContext.getResources());
+			mRenderer.onSurfaceCreated(mHolder);
+			mRenderer.draw(state, mGeometry);
+		}
+		Metrics.REDRAW.recordMicrosSince(start);
+	}
+
+	/**
+	 * Draws the frame at the next vsync. Only used from Jelly Bean on, which
+	 * introduced the {@link Choreographer}, and only on the render thread.
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private class VsyncCallback implements Choreographer.FrameCallback {
+		private final Choreographer mChoreographer = Choreographer.getInstance();
+		private boolean mFramePosted;
+
+		void postFrame() {
+			if(mFramePosted) return;
+			mFramePosted = true;
+			mChoreographer.postFrameCallback(this);
+		}
+
+		void cancelFrame() {
+			mFramePosted = false;
+			mChoreographer.removeFrameCallback(this);
+		}
+
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			mFramePosted = false;
+			renderFrame();
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package com.luboganev.cloudwave.render;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Color;
+import android.text.Layout.Alignment;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+
+import com.luboganev.cloudwave.Metrics;
+
+/**
+ * Lays out track titles so that they fit in the title bounding rect of a frame. 
+ * Titles which are too long are truncated at the exact position found by 
+ * a binary search on the measured text. The resulting layouts are cached by 
+ * title, bounding rect size, text size and density, so that titles are not 
+ * measured again as long as they are shown on the same surface.
+ * <p>
+ * Drawing a layout uses scratch state of the layout, so every layout is only
+ * handed to a single thread, i.e. each render thread gets layouts of its own.
+ * A layout prepared in advance goes to the first thread asking for it.
+ */
+public class TitleLayoutCache {
+	private static final String ELLIPSIS = "...";
+	/** The height of a row of text relative to the text size */
+	private static final double ROW_HEIGHT_FACTOR = 1.5d;
+	/** Enough for the current and the next track in both orientations of two engines, e.g. the preview */
+	private static final int MAX_ENTRIES = 16;
+	/** The owner of prepared layouts, which no thread has asked for yet */
+	private static final long NO_OWNER = -1;
+	/** The approximate memory taken by a layout without its text and lines */
+	private static final int LAYOUT_BYTE_COUNT = 256;
+	/** The approximate memory taken by the metrics and directions of a line */
+	private static final int LINE_BYTE_COUNT = 48;
+	
+	private static final TitleLayoutCache sInstance = new TitleLayoutCache();
+	
+	private final LinkedHashMap<LayoutKey, StaticLayout> mLayouts = 
+			new LinkedHashMap<LayoutKey, StaticLayout>(MAX_ENTRIES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<LayoutKey, StaticLayout> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	
+	/**
+	 * @return
+	 * 		The process wide cache
+	 */
+	public static TitleLayoutCache getInstance() {
+		return sInstance;
+	}
+	
+	/**
+	 * Gets the layout of a title for the calling thread, laying it out if it is not cached yet.
+	 * The layout must not be passed to other threads.
+	 * 
+	 * @param title
+	 * 		The track title
+	 * @param geometry
+	 * 		The geometry of the frame
+	 * @return
+	 * 		The title layout
+	 */
+	public StaticLayout getLayout(String title, FrameGeometry geometry) {
+		LayoutKey key = createKey(title, geometry, Thread.currentThread().getId());
+		synchronized (mLayouts) {
+			StaticLayout layout = mLayouts.get(key);
+			if(layout == null) {
+				// a prepared layout becomes the calling thread's own
+				layout = mLayouts.remove(key.withOwner(NO_OWNER));
+				if(layout != null) mLayouts.put(key, layout);
+			}
+			if(layout != null) {
+				Metrics.TITLE_LAYOUT_CACHE_HITS.increment();
+				return layout;
+			}
+		}
+		Metrics.TITLE_LAYOUT_CACHE_MISSES.increment();
+		StaticLayout layout = layOut(key);
+		synchronized (mLayouts) {
+			mLayouts.put(key, layout);
+		}
+		return layout;
+	}
+	
+	/**
+	 * Lays out a title in advance, e.g. before its track is shown. 
+	 * The layout is handed to the first thread which asks for it.
+	 * 
+	 * @param title
+	 * 		The track title
+	 * @param geometry
+	 * 		The geometry of the frame
+	 * @return
+	 * 		The prepared layout, which must not be drawn by the calling thread
+	 */
+	public StaticLayout prepareLayout(String title, FrameGeometry geometry) {
+		LayoutKey key = createKey(title, geometry, NO_OWNER);
+		synchronized (mLayouts) {
+			StaticLayout layout = mLayouts.get(key);
+			if(layout != null) return layout;
+		}
+		Metrics.TITLE_LAYOUT_CACHE_MISSES.increment();
+		StaticLayout layout = layOut(key);
+		synchronized (mLayouts) {
+			mLayouts.put(key, layout);
+		}
+		return layout;
+	}
+	
+	/**
+	 * @param layout
+	 * 		A title layout
+	 * @return
+	 * 		The approximate memory taken by the layout
+	 */
+	public static int getByteCount(StaticLayout layout) {
+		return LAYOUT_BYTE_COUNT + layout.getText().length() * 2 + layout.getLineCount() * LINE_BYTE_COUNT;
+	}
+	
+	private static LayoutKey createKey(String title, FrameGeometry geometry, long owner) {
+		return new LayoutKey(title, geometry.titleBounds.width(), 
+				geometry.titleBounds.height(), geometry.titleTextSize, geometry.density, owner);
+	}
+	
+	private static StaticLayout layOut(LayoutKey key) {
+		TextPaint textPaint = new TextPaint();
+		textPaint.setTextSize(key.textSize);
+		textPaint.setColor(Color.WHITE);
+		textPaint.setAntiAlias(true);
+		
+		int maxRowsCount = Math.max(1, (int)Math.floor(key.height / (ROW_HEIGHT_FACTOR * key.textSize)));
+		String title = key.title;
+		StaticLayout whole = createLayout(title, textPaint, key.width);
+		if(whole.getLineCount() <= maxRowsCount) return whole;
+		
+		// The measured width of the kept text and the ellipsis cannot exceed all rows together.
+		// This gives an upper bound for the number of kept characters.
+		float maxTitleWidth = (float)maxRowsCount * key.width;
+		float ellipsisWidth = textPaint.measureText(ELLIPSIS);
+		int low = 0;
+		int high = title.length() - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if(textPaint.measureText(title, 0, middle) + ellipsisWidth <= maxTitleWidth) low = middle;
+			else high = middle - 1;
+		}
+		
+		// Line breaks waste some of the rows' width, so the bound may still not fit
+		int bound = low;
+		StaticLayout truncated = createLayout(truncate(title, bound), textPaint, key.width);
+		if(truncated.getLineCount() <= maxRowsCount) return truncated;
+		low = 0;
+		high = bound - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if(createLayout(truncate(title, middle), textPaint, key.width).getLineCount() <= maxRowsCount) low = middle;
+			else high = middle - 1;
+		}
+		return createLayout(truncate(title, low), textPaint, key.width);
+	}
+	
+	/**
+	 * Keeps the first characters of the title and appends an ellipsis. 
+	 * Surrogate pairs and trailing whitespace are not kept at the cut.
+	 */
+	private static String truncate(String title, int length) {
+		if(length > 0 && length < title.length() 
+				&& Character.isHighSurrogate(title.charAt(length - 1))) {
+			length--;
+		}
+		while (length > 0 && Character.isWhitespace(title.charAt(length - 1))) {
+			length--;
+		}
+		return title.substring(0, length) + ELLIPSIS;
+	}
+	
+	private static StaticLayout createLayout(String text, TextPaint textPaint, int width) {
+		return new StaticLayout(text, 0, text.length(), 
+				textPaint, width, 
+				Alignment.ALIGN_CENTER, 1.0f, 1.0f,
+				false, null, 0);
+	}
+	
+	/**
+	 * The parameters, which define a title layout
+	 */
+	private static class LayoutKey {
+		final String title;
+		final int width;
+		final int height;
+		final int textSize;
+		final float density;
+		/** The id of the thread the layout is handed to or {@link #NO_OWNER} */
+		final long owner;
+		
+		LayoutKey(String title, int width, int height, int textSize, float density, long owner) {
+			this.title = title;
+			this.width = width;
+			this.height = height;
+			this.textSize = textSize;
+			this.density = density;
+			this.owner = owner;
+		}
+		
+		LayoutKey withOwner(long owner) {
+			return new LayoutKey(title, width, height, textSize, density, owner);
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) return true;
+			if(!(o instanceof LayoutKey)) return false;
+			LayoutKey other = (LayoutKey)o;
+			return width == other.width && height == other.height && textSize == other.textSize
+					&& density == other.density && owner == other.owner && title.equals(other.title);
+		}
+		
+		@Override
+		public int hashCode() {
+			int result = title.hashCode();
+			result = 31 * result + width;
+			result = 31 * result + height;
+			result = 31 * result + textSize;
+			result = 31 * result + Float.floatToIntBits(density);
+			result = 31 * result + (int)(owner ^ (owner >>> 32));
+			return result;
+		}
+	}
+}
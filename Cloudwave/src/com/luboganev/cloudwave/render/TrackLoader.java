@@ -0,0 +1,238 @@
+package com.luboganev.cloudwave.render;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.text.StaticLayout;
+
+import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.R;
+import com.luboganev.cloudwave.data.SoundwaveDecoder;
+import com.luboganev.cloudwave.data.StorageRepository;
+import com.luboganev.cloudwave.data.Track;
+import com.luboganev.cloudwave.data.WaveformSamples;
+
+/**
+ * Loads tracks on a background thread. The tracks are taken from the snapshot
+ * of the {@link StorageRepository}, reading and decoding the soundwave happen 
+ * off the main thread and the fully prepared 
+ * {@link TrackRenderState} is then handed to the {@link Callback} on the main thread.
+ * Pending load requests are coalesced, so only the latest one gets executed.
+ * <p>
+ * The loader can also prepare the next track in advance, i.e. decode its 
+ * soundwave and lay out its title, so that changing to it is a simple swap. 
+ * Prepared tracks bigger than the look-ahead memory ceiling, which includes 
+ * the title layout, are not kept.
+ */
+public class TrackLoader implements Handler.Callback {
+	private static final int MSG_LOAD_CURRENT_TRACK = 1;
+	private static final int MSG_LOAD_DEFAULT_TRACK = 2;
+	private static final int MSG_PREPARE_NEXT_TRACK = 3;
+	
+	/** Default maximum memory taken by a track prepared in advance */
+	public static final int DEFAULT_LOOK_AHEAD_MEMORY_CEILING = 64 * 1024;
+	
+	/**
+	 * Receives the loaded tracks on the main thread
+	 */
+	public interface Callback {
+		/**
+		 * @param state
+		 * 		The fully prepared state of the loaded track
+		 */
+		public void onTrackLoaded(TrackRenderState state);
+	}
+	
+	private final Context mApplicationContext;
+	private final StorageRepository mRepository;
+	private final Callback mCallback;
+	private final HandlerThread mWorkerThread;
+	private final Handler mWorkerHandler;
+	private final Handler mMainHandler;
+	private volatile boolean mQuit;
+	/** Only accessed on the worker thread */
+	private TrackRenderState mDefaultTrack;
+	private final AtomicReference<TrackRenderState> mPreparedTrack = new AtomicReference<TrackRenderState>();
+	private volatile FrameGeometry mFrameGeometry;
+	private volatile int mLookAheadMemoryCeiling = DEFAULT_LOOK_AHEAD_MEMORY_CEILING;
+	
+	/**
+	 * @param applicationContext
+	 * 		Needed to access the local storage and resources
+	 * @param callback
+	 * 		Receives the loaded tracks on the main thread
+	 */
+	public TrackLoader(Context applicationContext, Callback callback) {
+		mApplicationContext = applicationContext;
+		mRepository = StorageRepository.getInstance(applicationContext);
+		mCallback = callback;
+		mWorkerThread = new HandlerThread("TrackLoader", Process.THREAD_PRIORITY_BACKGROUND);
+		mWorkerThread.start();
+		mWorkerHandler = new Handler(mWorkerThread.getLooper(), this);
+		mMainHandler = new Handler(Looper.getMainLooper());
+	}
+	
+	/**
+	 * Loads the current track from the local storage. 
+	 * Falls back to the default track if there is none.
+	 */
+	public void loadCurrentTrack() {
+		requestLoad(MSG_LOAD_CURRENT_TRACK);
+	}
+	
+	/**
+	 * Loads the bundled sample track
+	 */
+	public void loadDefaultTrack() {
+		requestLoad(MSG_LOAD_DEFAULT_TRACK);
+	}
+	
+	/**
+	 * Prepares the next track from the local storage in advance.
+	 * Nothing is prepared if its soundwave has not been downloaded yet.
+	 */
+	public void prepareNextTrack() {
+		if(mQuit) return;
+		mWorkerHandler.removeMessages(MSG_PREPARE_NEXT_TRACK);
+		mWorkerHandler.sendEmptyMessage(MSG_PREPARE_NEXT_TRACK);
+	}
+	
+	/**
+	 * Takes the track prepared in advance
+	 * 
+	 * @param trackId
+	 * 		The id of the wanted track
+	 * @return
+	 * 		The prepared track or null if the wanted track is not prepared
+	 */
+	public TrackRenderState takePreparedTrack(long trackId) {
+		TrackRenderState prepared = mPreparedTrack.getAndSet(null);
+		if(prepared != null && prepared.trackId == trackId) return prepared;
+		else return null;
+	}
+	
+	/**
+	 * Sets the geometry of the frame, for which the titles of tracks prepared in advance are laid out
+	 * 
+	 * @param geometry
+	 * 		The current frame geometry
+	 */
+	public void setFrameGeometry(FrameGeometry geometry) {
+		mFrameGeometry = geometry;
+	}
+	
+	/**
+	 * Sets the maximum memory, which a track prepared in advance can take
+	 * 
+	 * @param bytes
+	 * 		The ceiling in bytes. Zero disables preparing tracks in advance.
+	 */
+	public void setLookAheadMemoryCeiling(int bytes) {
+		mLookAheadMemoryCeiling = bytes;
+		if(bytes <= 0) mPreparedTrack.set(null);
+	}
+	
+	/**
+	 * Stops the worker thread. No callbacks are delivered afterwards.
+	 */
+	public void quit() {
+		mQuit = true;
+		mPreparedTrack.set(null);
+		mWorkerHandler.removeCallbacksAndMessages(null);
+		mMainHandler.removeCallbacksAndMessages(null);
+		mWorkerThread.quit();
+	}
+	
+	private void requestLoad(int what) {
+		if(mQuit) return;
+		// any pending request is outdated now
+		mWorkerHandler.removeMessages(MSG_LOAD_CURRENT_TRACK);
+		mWorkerHandler.removeMessages(MSG_LOAD_DEFAULT_TRACK);
+		mWorkerHandler.sendEmptyMessage(what);
+	}
+	
+	@Override
+	public boolean handleMessage(Message msg) {
+		final TrackRenderState state;
+		switch (msg.what) {
+		case MSG_LOAD_CURRENT_TRACK:
+			state = loadCurrent();
+			break;
+		case MSG_LOAD_DEFAULT_TRACK:
+			state = loadDefault();
+			break;
+		case MSG_PREPARE_NEXT_TRACK:
+			prepareNext();
+			return true;
+		default:
+			return false;
+		}
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if(!mQuit) mCallback.onTrackLoaded(state);
+			}
+		});
+		return true;
+	}
+	
+	private TrackRenderState loadCurrent() {
+		LogUtils.d(this, "loading current track");
+		Track track = mRepository.getSnapshot().currentTrack;
+		if(track != null) {
+			WaveformSamples samples = mRepository.loadSoundwaveSamples(track.id);
+			if(samples != null) {
+				return new TrackRenderState(track.id, track.title, track.permalinkUrl, samples);
+			}
+		}
+		// nothing downloaded, so we load the sample data
+		return loadDefault();
+	}
+	
+	private void prepareNext() {
+		if(mLookAheadMemoryCeiling <= 0) return;
+		Track track = mRepository.getSnapshot().nextTrack;
+		if(track == null) return;
+		TrackRenderState prepared = mPreparedTrack.get();
+		if(prepared != null && prepared.trackId == track.id) return; // already done
+		if(!mRepository.hasSoundwave(track.id)) return; // not downloaded yet
+		WaveformSamples samples = mRepository.loadSoundwaveSamples(track.id);
+		if(samples == null) return;
+		LogUtils.d(this, "preparing next track");
+		TrackRenderState state = new TrackRenderState(track.id, track.title, track.permalinkUrl, samples);
+		StaticLayout titleLayout = null;
+		FrameGeometry geometry = mFrameGeometry;
+		if(geometry != null) {
+			// lay out the title now, so that the first frame finds it in the cache
+			titleLayout = TitleLayoutCache.getInstance().prepareLayout(track.title, geometry);
+		}
+		if(state.getByteCount(titleLayout) > mLookAheadMemoryCeiling) {
+			LogUtils.d(this, "next track exceeds the look-ahead memory ceiling");
+			mPreparedTrack.set(null);
+			return;
+		}
+		mPreparedTrack.set(state);
+	}
+	
+	private TrackRenderState loadDefault() {
+		if(mDefaultTrack != null) return mDefaultTrack;
+		LogUtils.d(this, "loading default track");
+		WaveformSamples samples = SoundwaveDecoder.decodeResource(mApplicationContext, R.drawable.heed_the_sound_sample);
+		TrackRenderState state = new TrackRenderState(TrackRenderState.DEFAULT_TRACK_ID, 
+				mApplicationContext.getResources().getString(R.string.heed_the_sound_sample_title), 
+				mApplicationContext.getResources().getString(R.string.heed_the_sound_sample_permalink), 
+				samples);
+		if(samples == null) {
+			// shown with the title only and not kept, so the next load tries decoding again
+			LogUtils.e(this, "Cannot decode the default soundwave");
+			return state;
+		}
+		mDefaultTrack = state;
+		return mDefaultTrack;
+	}
+}
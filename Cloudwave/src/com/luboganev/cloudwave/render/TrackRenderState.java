@@ -0,0 +1,50 @@
+package com.luboganev.cloudwave.render;
+
+import android.text.StaticLayout;
+
+import com.luboganev.cloudwave.data.WaveformSamples;
+
+/**
+ * Immutable state with everything needed to draw a track. It is fully
+ * prepared by the {@link TrackLoader} before it gets shown.
+ */
+public class TrackRenderState {
+	/** Track id used for the bundled sample track */
+	public static final long DEFAULT_TRACK_ID = -1;
+	
+	/** The id of the track */
+	public final long trackId;
+	/** The title of the track */
+	public final String title;
+	/** The permalink of the track */
+	public final String permalinkUrl;
+	/** The decoded soundwave of the track or null if it could not be decoded */
+	public final WaveformSamples soundwave;
+	
+	public TrackRenderState(long trackId, String title, String permalinkUrl, WaveformSamples soundwave) {
+		this.trackId = trackId;
+		this.title = title;
+		this.permalinkUrl = permalinkUrl;
+		this.soundwave = soundwave;
+	}
+	
+	/**
+	 * @return
+	 * 		The approximate memory taken by the state
+	 */
+	public int getByteCount() {
+		int soundwaveBytes = soundwave == null ? 0 : soundwave.getByteCount();
+		return soundwaveBytes + title.length() * 2 + permalinkUrl.length() * 2;
+	}
+	
+	/**
+	 * @param titleLayout
+	 * 		The layout of the title prepared for the state or null if there is none
+	 * @return
+	 * 		The approximate memory taken by the state and the layout of its title
+	 */
+	public int getByteCount(StaticLayout titleLayout) {
+		int titleLayoutBytes = titleLayout == null ? 0 : TitleLayoutCache.getByteCount(titleLayout);
+		return getByteCount() + titleLayoutBytes;
+	}
+}
@@ -0,0 +1,41 @@
+package com.luboganev.cloudwave.render;
+
+import android.view.SurfaceHolder;
+
+/**
+ * Draws the wallpaper frames on the surface of the wallpaper engine.
+ * All methods must be called from the same thread.
+ */
+public interface WallpaperRenderer {
+	/**
+	 * Attaches the renderer to a newly created surface
+	 *
+	 * @param holder
+	 * 		The holder of the surface
+	 * @return
+	 * 		false if the renderer cannot draw on the surface
+	 */
+	public boolean onSurfaceCreated(SurfaceHolder holder);
+
+	/**
+	 * Draws a whole frame
+	 *
+	 * @param state
+	 * 		The track to draw or null while it is still loading
+	 * @param geometry
+	 * 		The geometry of the frame
+	 * @return
+	 * 		false if the renderer has failed and cannot draw anymore
+	 */
+	public boolean draw(TrackRenderState state, FrameGeometry geometry);
+
+	/**
+	 * Detaches the renderer from the surface, which is about to be destroyed
+	 */
+	public void onSurfaceDestroyed();
+
+	/**
+	 * Frees all resources of the renderer
+	 */
+	public void release();
+}
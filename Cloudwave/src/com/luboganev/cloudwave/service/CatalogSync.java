@@ -0,0 +1,244 @@
+package com.luboganev.cloudwave.service;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+
+import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.data.LocalStorageManager;
+import com.luboganev.cloudwave.data.StorageRepository;
+import com.luboganev.cloudwave.data.StorageRepository.Transaction;
+import com.luboganev.cloudwave.data.SyncState;
+import com.luboganev.cloudwave.data.Track;
+import com.luboganev.cloudwave.data.TransactionExecutor;
+import com.luboganev.cloudwave.service.CommunicationUtils.TracksPageResponse;
+import com.luboganev.cloudwave.service.TracksResponseParser.TrackHandler;
+
+/**
+ * Synchronizes the locally stored catalog of tracks with the artist's tracks
+ * on SoundCloud. It walks all pages of the paginated API response and stages
+ * the fetched tracks on disk page by page. After the last page the changes,
+ * i.e. new, removed and retitled tracks, are merged into the loaded catalog,
+ * which is only rewritten if anything changed.
+ * <p>
+ * The first page is requested conditionally with the ETag and date of the last
+ * completed synchronization, so an unchanged catalog costs a single request.
+ * These only cover the first page though, so unless it was the only page, all
+ * pages are walked unconditionally once in a while to pick up the changes of
+ * the later pages. Without a loaded catalog, e.g. after the saved one could not
+ * be read, nothing is requested conditionally, since the kept synchronization
+ * state does not describe what is stored anymore.
+ * The progress is persisted after every page, so an interrupted synchronization
+ * resumes with the next page instead of starting over.
+ * <p>
+ * The requests run on the calling thread between short transactions, which
+ * read the state, stage a page or merge the staged tracks, so a slow server
+ * never holds the writer thread of the {@link StorageRepository}. Only one
+ * synchronization runs at a time, since they share the staged tracks.
+ */
+public class CatalogSync {
+	/** Minimum time between two synchronizations */
+	public static final long SYNC_INTERVAL = 24 * 60 * 60 * 1000;
+	/** Maximum time between two synchronizations walking all pages of a multi-page catalog */
+	public static final long FULL_SYNC_INTERVAL = 7 * SYNC_INTERVAL;
+	/** The number of tracks requested per page */
+	private static final int PAGE_SIZE = 200;
+	/** Held by the running synchronization */
+	private static final Object sSyncLock = new Object();
+
+	private final Context mApplicationContext;
+	private final TransactionExecutor mExecutor;
+	private final String mApiBaseUrl;
+
+	/**
+	 * @param applicationContext
+	 * 		Needed for the requests
+	 * @param executor
+	 * 		Runs the transactions on the local storage, e.g. the {@link StorageRepository}
+	 */
+	public CatalogSync(Context applicationContext, TransactionExecutor executor) {
+		this(applicationContext, executor, CommunicationUtils.SOUNDCLOUD_API_BASE_URL);
+	}
+
+	/**
+	 * @param applicationContext
+	 * 		Needed for the requests
+	 * @param executor
+	 * 		Runs the transactions on the local storage, e.g. the {@link StorageRepository}
+	 * @param apiBaseUrl
+	 * 		The base url of the API, e.g. of a local stand-in server injecting faults
+	 */
+	public CatalogSync(Context applicationContext, TransactionExecutor executor, String apiBaseUrl) {
+		mApplicationContext = applicationContext;
+		mExecutor = executor;
+		mApiBaseUrl = apiBaseUrl;
+	}
+
+	/**
+	 * Checks if a synchronization should be run
+	 *
+	 * @param manager
+	 * 		The local storage manager of a transaction
+	 * @return
+	 * 		true if the last synchronization is too old or one has been interrupted
+	 */
+	public static boolean isDue(LocalStorageManager manager) {
+		return System.currentTimeMillis() >= getNextSyncTime(manager);
+	}
+
+	/**
+	 * @param manager
+	 * 		The local storage manager of a transaction
+	 * @return
+	 * 		The time when the next synchronization is due, 0 if one has been interrupted
+	 */
+	public static long getNextSyncTime(LocalStorageManager manager) {
+		SyncState state = manager.loadSyncState();
+		return state.inProgress ? 0 : state.lastSyncTime + SYNC_INTERVAL;
+	}
+
+	/**
+	 * Runs or resumes the synchronization. If the catalog changes,
+	 * it is persisted together with the updated track selection.
+	 * Must not be called within a transaction.
+	 *
+	 * @return
+	 * 		false if the synchronization failed or was interrupted
+	 */
+	public boolean sync() {
+		synchronized (sSyncLock) {
+			Start start = mExecutor.execute(new Transaction<Start>() {
+				@Override
+				public Start run(LocalStorageManager manager) {
+					return start(manager);
+				}
+			});
+			if(start == null || start.pageUrl == null) return false;
+			return walk(start.state, start.pageUrl, start.conditional);
+		}
+	}
+
+	/**
+	 * Reads the state of the synchronization and finds the page to start with
+	 */
+	private Start start(LocalStorageManager manager) {
+		Start start = new Start();
+		start.state = manager.loadSyncState();
+		if(start.state.inProgress) {
+			LogUtils.d(this, "Resuming catalog sync");
+			start.pageUrl = start.state.nextPageUrl;
+		}
+		else {
+			LogUtils.d(this, "Starting catalog sync");
+			manager.clearSyncedTracks();
+			start.pageUrl = CommunicationUtils.buildArtistTracksUrl(mApiBaseUrl, manager.getArtistName(), PAGE_SIZE);
+			start.conditional = manager.getTracksCount() > 0 && (start.state.singlePage
+					|| System.currentTimeMillis() < start.state.lastFullSyncTime + FULL_SYNC_INTERVAL);
+			if(!start.conditional) LogUtils.d(this, "Walking all pages");
+		}
+		return start;
+	}
+
+	private boolean walk(final SyncState state, String pageUrl, boolean conditional) {
+		boolean firstPage = !state.inProgress;
+		final ArrayList<Track> pageTracks = new ArrayList<Track>(PAGE_SIZE);
+		TrackHandler handler = new TrackHandler() {
+			@Override
+			public void onTrack(long id, String title, String permalinkUrl, String waveformUrl) {
+				pageTracks.add(new Track(id, title, permalinkUrl, waveformUrl));
+			}
+		};
+		while (pageUrl != null) {
+			pageTracks.clear();
+			TracksPageResponse response;
+			if(firstPage && conditional) {
+				response = CommunicationUtils.executeFetchTracksPage(mApplicationContext, pageUrl, state.etag, state.lastModified, handler);
+			}
+			else {
+				response = CommunicationUtils.executeFetchTracksPage(mApplicationContext, pageUrl, null, null, handler);
+			}
+			if(response == null) {
+				LogUtils.e(this, "Catalog sync interrupted");
+				return false;
+			}
+			if(response.notModified) {
+				return Boolean.TRUE.equals(mExecutor.execute(new Transaction<Boolean>() {
+					@Override
+					public Boolean run(LocalStorageManager manager) {
+						if(manager.getTracksCount() == 0) {
+							// there is nothing which could be unchanged
+							LogUtils.e(CatalogSync.this, "Catalog not modified, but none is loaded");
+							return false;
+						}
+						LogUtils.d(CatalogSync.this, "Catalog not modified");
+						state.lastSyncTime = System.currentTimeMillis();
+						manager.saveSyncState(state);
+						return true;
+					}
+				}));
+			}
+			if(firstPage) {
+				state.pendingEtag = response.etag;
+				state.pendingLastModified = response.lastModified;
+				state.pendingSinglePage = response.nextPageUrl == null;
+				firstPage = false;
+			}
+			final String nextPageUrl = response.nextPageUrl;
+			boolean staged = Boolean.TRUE.equals(mExecutor.execute(new Transaction<Boolean>() {
+				@Override
+				public Boolean run(LocalStorageManager manager) {
+					if(!manager.appendSyncedTracks(pageTracks)) return false;
+					// a crash right here only causes the page to be staged twice, which merging tolerates
+					state.inProgress = true;
+					state.nextPageUrl = nextPageUrl;
+					return manager.saveSyncState(state);
+				}
+			}));
+			if(!staged) return false;
+			pageUrl = nextPageUrl;
+		}
+
+		return Boolean.TRUE.equals(mExecutor.execute(new Transaction<Boolean>() {
+			@Override
+			public Boolean run(LocalStorageManager manager) {
+				finish(manager, state);
+				return true;
+			}
+		}));
+	}
+
+	/**
+	 * Merges the staged tracks and completes the state of the synchronization
+	 */
+	private void finish(LocalStorageManager manager, SyncState state) {
+		if(manager.mergeSyncedTracks()) {
+			LogUtils.d(this, "Catalog changed");
+			if(manager.getNextTrack() == null && manager.getTracksCount() > 0) {
+				manager.pickNewNextRandomTrack();
+			}
+			manager.saveToFile();
+		}
+		state.inProgress = false;
+		state.nextPageUrl = null;
+		state.etag = state.pendingEtag;
+		state.lastModified = state.pendingLastModified;
+		state.singlePage = state.pendingSinglePage;
+		state.pendingEtag = null;
+		state.pendingLastModified = null;
+		state.lastSyncTime = System.currentTimeMillis();
+		state.lastFullSyncTime = state.lastSyncTime;
+		manager.saveSyncState(state);
+		manager.clearSyncedTracks();
+	}
+
+	/**
+	 * Where a synchronization starts
+	 */
+	private static class Start {
+		SyncState state;
+		/** The first page to fetch or null if the url cannot be built */
+		String pageUrl;
+		/** The first page is requested with the validators of the last synchronization */
+		boolean conditional;
+	}
+}
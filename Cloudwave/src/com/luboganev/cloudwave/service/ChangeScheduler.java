@@ -0,0 +1,248 @@
+package com.luboganev.cloudwave.service;
+
+import android.app.KeyguardManager;
+import android.app.WallpaperInfo;
+import android.app.WallpaperManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+
+import com.commonsware.cwac.wakeful.WakefulIntentService;
+import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.Metrics;
+import com.luboganev.cloudwave.receivers.AlarmReceiver;
+
+/**
+ * Decides when the wallpaper gets changed. Changes are only made while somebody
+ * can see the wallpaper, i.e. it is visible, the screen is on and the device is
+ * unlocked. While it is hidden no alarm is set, a change which becomes due just
+ * stays due and a single catch-up change is made as soon as the wallpaper is
+ * shown again, no matter how many intervals have passed. The catch-up change
+ * shows the next track, which the wallpaper usually has prepared already.
+ * <p>
+ * The time of the next change is kept in the shared preferences, so it survives
+ * the process and the recreation of the wallpaper engine. It is only forgotten
+ * when the wallpaper is removed. The scheduler must only be used on the main thread, except
+ * for {@link #retryChangeAt(long)}.
+ */
+public class ChangeScheduler {
+	/** The time between two changes of the wallpaper */
+	public static final long CHANGE_INTERVAL = 60 * 60 * 1000;
+
+	private static final String PREFERENCES_NAME = "change_scheduler";
+	private static final String KEY_NEXT_CHANGE_TIME = "next_change_time";
+
+	private static ChangeScheduler sInstance;
+
+	private final Context mApplicationContext;
+	private final SharedPreferences mPreferences;
+	private final Handler mMainHandler;
+	private final ScreenReceiver mScreenReceiver = new ScreenReceiver();
+	/** The number of started wallpaper engines */
+	private int mStartCount;
+	private boolean mWallpaperVisible;
+	private boolean mScreenOn;
+	private boolean mLocked;
+	/** if the change which is due now has already been counted as deferred */
+	private boolean mDeferredCounted;
+
+	/**
+	 * @param applicationContext
+	 * 		Needed for the alarms, broadcasts and preferences
+	 * @return
+	 * 		The process wide scheduler
+	 */
+	public static synchronized ChangeScheduler getInstance(Context applicationContext) {
+		if(sInstance == null) {
+			sInstance = new ChangeScheduler(applicationContext.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private ChangeScheduler(Context applicationContext) {
+		mApplicationContext = applicationContext;
+		mPreferences = applicationContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		mMainHandler = new Handler(Looper.getMainLooper());
+	}
+
+	/**
+	 * Starts scheduling the changes for a wallpaper engine.
+	 * The first change is due right away, if there has been none before.
+	 */
+	public void start() {
+		if(mStartCount++ > 0) return;
+		LogUtils.d(this, "Starting");
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(Intent.ACTION_SCREEN_ON);
+		filter.addAction(Intent.ACTION_SCREEN_OFF);
+		filter.addAction(Intent.ACTION_USER_PRESENT);
+		// screen broadcasts are only delivered to registered receivers
+		mApplicationContext.registerReceiver(mScreenReceiver, filter);
+		mScreenOn = ((PowerManager) mApplicationContext.getSystemService(Context.POWER_SERVICE)).isScreenOn();
+		mLocked = isKeyguardLocked();
+		MaintenanceScheduler.getInstance(mApplicationContext).start();
+		update();
+	}
+
+	/**
+	 * Stops scheduling the changes for a wallpaper engine. Once there is
+	 * no engine anymore, nothing gets scheduled. The time of the next change
+	 * is kept, unless the wallpaper has been removed.
+	 */
+	public void stop() {
+		if(mStartCount == 0 || --mStartCount > 0) return;
+		LogUtils.d(this, "Stopping");
+		mWallpaperVisible = false;
+		mApplicationContext.unregisterReceiver(mScreenReceiver);
+		AlarmReceiver.cancelAlarm(mApplicationContext);
+		MaintenanceScheduler.getInstance(mApplicationContext).stop();
+		// an engine recreated while the wallpaper stays set continues with the stored time
+		if(!isWallpaperSet()) mPreferences.edit().remove(KEY_NEXT_CHANGE_TIME).commit();
+	}
+
+	/**
+	 * @param visible
+	 * 		if the wallpaper is visible now
+	 */
+	public void setWallpaperVisible(boolean visible) {
+		if(mWallpaperVisible == visible) return;
+		mWallpaperVisible = visible;
+		update();
+	}
+
+	/**
+	 * Schedules the next change after the wallpaper has been changed
+	 */
+	public void onWallpaperChanged() {
+		setNextChangeTime(System.currentTimeMillis() + CHANGE_INTERVAL);
+		update();
+	}
+
+	/**
+	 * Makes the change, if it is due and the wallpaper is shown
+	 */
+	public void onAlarm() {
+		update();
+	}
+
+	/**
+	 * Retries a failed change earlier than after a whole interval,
+	 * e.g. once the backoff of the failed request is over. Can be called from any thread.
+	 *
+	 * @param time
+	 * 		The time of the retry
+	 */
+	public void retryChangeAt(final long time) {
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if(mStartCount == 0 || time >= getNextChangeTime()) return;
+				setNextChangeTime(time);
+				update();
+			}
+		});
+	}
+
+	/**
+	 * Makes a change which could not be made without internet.
+	 * It is deferred like any other change while the wallpaper is hidden.
+	 */
+	public void onConnectivityRestored() {
+		setNextChangeTime(0);
+		update();
+	}
+
+	/**
+	 * @return
+	 * 		if somebody can see the wallpaper
+	 */
+	private boolean isShown() {
+		return mStartCount > 0 && mWallpaperVisible && mScreenOn && !mLocked;
+	}
+
+	/**
+	 * Makes the due change or sets the alarm for the next one while the wallpaper
+	 * is shown, otherwise cancels the alarm and just keeps the change due
+	 */
+	private void update() {
+		AlarmReceiver.cancelAlarm(mApplicationContext);
+		if(mStartCount == 0) return;
+		long now = System.currentTimeMillis();
+		long delay = getNextChangeTime() - now;
+		if(!isShown()) {
+			if(delay <= 0 && !mDeferredCounted) {
+				Metrics.DEFERRED_CHANGES.increment();
+				mDeferredCounted = true;
+			}
+			LogUtils.d(this, "Wallpaper hidden, next change in {} ms", delay);
+			return;
+		}
+		if(delay > 0) {
+			AlarmReceiver.setOneTimeAlarm(mApplicationContext, delay);
+			return;
+		}
+		LogUtils.d(this, "Change due, changing the wallpaper");
+		mDeferredCounted = false;
+		// retried after an interval if the change cannot be made, the successful change reschedules
+		setNextChangeTime(now + CHANGE_INTERVAL);
+		AlarmReceiver.setOneTimeAlarm(mApplicationContext, CHANGE_INTERVAL);
+		Intent serviceIntent = new Intent(mApplicationContext, ChangeWallpaperService.class);
+		WakefulIntentService.sendWakefulWork(mApplicationContext, serviceIntent);
+	}
+
+	/**
+	 * @return
+	 * 		The time of the next change, 0 if it is due right away
+	 */
+	private long getNextChangeTime() {
+		return mPreferences.getLong(KEY_NEXT_CHANGE_TIME, 0);
+	}
+
+	private void setNextChangeTime(long time) {
+		mPreferences.edit().putLong(KEY_NEXT_CHANGE_TIME, time).commit();
+	}
+
+	/**
+	 * @return
+	 * 		if this is the current live wallpaper, which is already another one
+	 * 		when the engine of a replaced wallpaper is destroyed
+	 */
+	private boolean isWallpaperSet() {
+		WallpaperInfo info = WallpaperManager.getInstance(mApplicationContext).getWallpaperInfo();
+		return info != null && mApplicationContext.getPackageName().equals(info.getPackageName());
+	}
+
+	private boolean isKeyguardLocked() {
+		KeyguardManager keyguardManager = (KeyguardManager) mApplicationContext.getSystemService(Context.KEYGUARD_SERVICE);
+		return keyguardManager.inKeyguardRestrictedInputMode();
+	}
+
+	/**
+	 * Follows the screen and the lock of the device
+	 */
+	private class ScreenReceiver extends BroadcastReceiver {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			String action = intent.getAction();
+			if(Intent.ACTION_SCREEN_OFF.equals(action)) {
+				mScreenOn = false;
+				mLocked = isKeyguardLocked();
+			}
+			else if(Intent.ACTION_SCREEN_ON.equals(action)) {
+				mScreenOn = true;
+				// without a secure lock screen there might be no user present broadcast
+				mLocked = isKeyguardLocked();
+			}
+			else if(Intent.ACTION_USER_PRESENT.equals(action)) {
+				mLocked = false;
+			}
+			LogUtils.d(this, "Received {}", action);
+			update();
+		}
+	}
+}
@@ -1,22 +1,22 @@
 package com.luboganev.cloudwave.service;
 
-import java.io.File;
-
 import android.content.Intent;
-import android.support.v4.content.LocalBroadcastManager;
 
 import com.commonsware.cwac.wakeful.WakefulIntentService;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.Metrics;
 import com.luboganev.cloudwave.data.LocalStorageManager;
+import com.luboganev.cloudwave.data.StorageRepository;
+import com.luboganev.cloudwave.data.StorageRepository.Transaction;
 import com.luboganev.cloudwave.data.Track;
 
 /**
  *	This IntentService manages the automatic change 
- *  of random wallpaper in the background
+ *  of random wallpaper in the background. Its work on the local storage 
+ *  runs as short transactions of the {@link StorageRepository}, whose subscribers, 
+ *  i.e. the wallpaper, see the changed tracks without reading the storage again.
+ *  The requests for the tracks and soundwaves run between the transactions, 
+ *  so they never hold the writer thread.
  */
 public class ChangeWallpaperService extends WakefulIntentService {
 	public ChangeWallpaperService() {
@@ -26,83 +26,174 @@ public class ChangeWallpaperService extends WakefulIntentService {
 	@Override
 	protected void doWakefulWork(Intent intent) {
 		LogUtils.d(this, "Doing wakeful work");
-		
-		// load local storage
-		LocalStorageManager manager = new LocalStorageManager(getApplicationContext());
-		if(manager.hasSavedLocalStorage()) {
-			LogUtils.d(this, "Loading local storage from file");
-			manager.loadFromFile();
-		}
-		else {
-			if(CommunicationUtils.hasInternetConnectivity(getApplicationContext())) {
-				LogUtils.d(this, "Loading default storage");
-				manager.loadDefaultStorage();
-				
-				String userTracksString = CommunicationUtils.executeFetchArtistTracks(manager.getArtistName());
-				JsonArray jarrayTracks = new JsonParser().parse(userTracksString).getAsJsonArray();
-				for (JsonElement jsonElement : jarrayTracks) {
-					JsonObject track = jsonElement.getAsJsonObject();
-					long id = track.get("id").getAsLong();
-					String title = track.get("title").getAsString();
-					String permalinkUrl = track.get("permalink_url").getAsString();
-					String waveformUrl = track.get("waveform_url").getAsString();
-					manager.addTrack(id, title, permalinkUrl, waveformUrl);
-				}
-				if(jarrayTracks.size() > 0) {
-					manager.pickNewNextRandomTrack();
-				}
-				manager.saveToFile();
-			}
-			else {
-				// wait for internet connection
-				LogUtils.d(this, "Waiting for internet to load tracks");
-				CommunicationUtils.setConnectivityChangeReceiverEnabled(getApplicationContext(), true);
-				return; // we have no track so we cannot load any soundwaves anyway
-			}
+		StorageRepository repository = StorageRepository.getInstance(getApplicationContext());
+		if(changeWallpaper(repository)) {
+			// only after the change, so it never waits for the deferrable work
+			MaintenanceScheduler.getInstance(getApplicationContext()).runWindow(repository);
 		}
+	}
+	
+	/**
+	 * Changes to the next track, loading the tracks and its soundwave first if needed
+	 * 
+	 * @param repository
+	 * 		The repository running the transactions
+	 * @return
+	 * 		if the wallpaper has been changed
+	 */
+	private boolean changeWallpaper(StorageRepository repository) {
+		if(!loadTracks(repository)) return false;
 		
 		LogUtils.d(this, "Processing the soundwave");
 		
-		Track nextTrack = manager.getNextTrack();
+		Track nextTrack = repository.execute(new Transaction<Track>() {
+			@Override
+			public Track run(LocalStorageManager manager) {
+				return manager.getNextTrack();
+			}
+		});
 		if(nextTrack == null) {
 			// this means that there were no tracks for the Heed The Sound user,
 			// which is currently not possible cause it is my favorite user and
 			// I know there are many tracks there
+			LogUtils.e(this, "No next track");
+			Metrics.SKIPPED_CHANGES.increment();
+			retryLater(CommunicationUtils.SOUNDCLOUD_API_BASE_URL);
+			return false;
 		}
 		
-		File file = manager.generateSoundwaveFileUri(nextTrack.id);
-		if(file.exists()) {
+		if(repository.hasSoundwave(nextTrack.id)) {
 			// we already have it
-			manager.setNextAsCurrentTrack();
-			manager.pickNewNextRandomTrack();
-			manager.saveToFile();
-			notifyUpdateWallpaper();
+			Metrics.SOUNDWAVE_CACHE_HITS.increment();
+			return showNextTrack(repository);
 		}
 		else {
 			// we will need to download the soundwave from the server first
+			Metrics.SOUNDWAVE_CACHE_MISSES.increment();
 			if(CommunicationUtils.hasInternetConnectivity(getApplicationContext())) {
-				if(CommunicationUtils.executeSoundwaveDownload(nextTrack.waveformUrl, file)) {
-					// file downloaded successfully
-					manager.setNextAsCurrentTrack();
-					manager.pickNewNextRandomTrack();
-					manager.saveToFile();
-					notifyUpdateWallpaper();
+				new PrefetchSettings(getApplicationContext()).createPrefetcher(repository).prefetchNext();
+				if(repository.hasSoundwave(nextTrack.id)) {
+					// file downloaded and reduced successfully
+					return showNextTrack(repository);
+				}
+				else {
+					Metrics.SKIPPED_CHANGES.increment();
+					retryLater(nextTrack.waveformUrl);
+					return false;
 				}
 			}
 			else {
 				// wait for internet connection
 				LogUtils.d(this, "Waiting for internet to load track soundwave");
+				Metrics.SKIPPED_CHANGES.increment();
 				CommunicationUtils.setConnectivityChangeReceiverEnabled(getApplicationContext(), true);
+				return false;
 			}
 		}
 	}
 	
-	/** The callback intent action which clients can register for */
-    public static final String INTENT_ACTION_NOTIFY_WALLPAPER_CHANGE = "com.luboganev.cloudwave.service.ChangeWallpaperService.NOTIFY_WALLPAPER_CHANGE";
+	/**
+	 * Fetches the tracks unless they are loaded already
+	 * 
+	 * @param repository
+	 * 		The repository running the transactions
+	 * @return
+	 * 		if there are tracks to change to
+	 */
+	private boolean loadTracks(StorageRepository repository) {
+		Boolean loaded = repository.execute(new Transaction<Boolean>() {
+			@Override
+			public Boolean run(LocalStorageManager manager) {
+				// an empty catalog is fetched again as well, e.g. the saved one could not be read
+				return manager.isLoaded() && manager.hasSavedLocalStorage() && manager.getTracksCount() > 0;
+			}
+		});
+		if(loaded == null) return false; // interrupted
+		if(loaded) return true;
+		
+		if(!CommunicationUtils.hasInternetConnectivity(getApplicationContext())) {
+			// wait for internet connection
+			LogUtils.d(this, "Waiting for internet to load tracks");
+			Metrics.SKIPPED_CHANGES.increment();
+			CommunicationUtils.setConnectivityChangeReceiverEnabled(getApplicationContext(), true);
+			return false; // we have no track so we cannot load any soundwaves anyway
+		}
+		
+		LogUtils.d(this, "Loading default storage");
+		repository.execute(new Transaction<Void>() {
+			@Override
+			public Void run(LocalStorageManager manager) {
+				manager.loadDefaultStorage();
+				return null;
+			}
+		});
+		// the sync picks the next track and persists the storage once all tracks are fetched
+		boolean synced = new CatalogSync(getApplicationContext(), repository).sync();
+		Boolean saved = !synced ? null : repository.execute(new Transaction<Boolean>() {
+			@Override
+			public Boolean run(LocalStorageManager manager) {
+				return manager.hasSavedLocalStorage();
+			}
+		});
+		if(!Boolean.TRUE.equals(saved)) {
+			LogUtils.e(this, "Cannot fetch the artist's tracks");
+			Metrics.SKIPPED_CHANGES.increment();
+			retryLater(CommunicationUtils.SOUNDCLOUD_API_BASE_URL);
+			return false;
+		}
+		return true;
+	}
 	
-	private void notifyUpdateWallpaper() {
+	/**
+	 * Makes the next track current, picks a new next one and notifies the wallpaper
+	 * once the transaction is committed. Afterwards the soundwave of the new next 
+	 * track is downloaded in advance, so that the wallpaper can prepare it before 
+	 * the next change. The wallpaper learns that it is ready from the snapshot 
+	 * published after the transaction saving it.
+	 * 
+	 * @return
+	 * 		if the wallpaper has been changed
+	 */
+	private boolean showNextTrack(StorageRepository repository) {
+		// without a cheap network prefer a next track whose soundwave needs no download
+		final boolean preferCached = !CommunicationUtils.hasUnmeteredConnectivity(getApplicationContext());
+		Boolean changed = repository.execute(new Transaction<Boolean>() {
+			@Override
+			public Boolean run(LocalStorageManager manager) {
+				Track nextTrack = manager.getNextTrack();
+				if(nextTrack == null || !manager.hasSoundwave(nextTrack.id)) {
+					// changed by another transaction since its soundwave was checked
+					LogUtils.d(ChangeWallpaperService.this, "Next track changed meanwhile");
+					return false;
+				}
+				manager.setNextAsCurrentTrack();
+				manager.pickNewNextRandomTrack(preferCached);
+				manager.saveSelection();
+				manager.markSoundwaveShown(manager.getCurrentTrack().id);
+				return true;
+			}
+		});
+		if(!Boolean.TRUE.equals(changed)) {
+			Metrics.SKIPPED_CHANGES.increment();
+			return false;
+		}
 		LogUtils.d(this, "Done, notifying for wallpaper change");
-		Intent callbackIntent = new Intent(INTENT_ACTION_NOTIFY_WALLPAPER_CHANGE);
-    	LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(callbackIntent);
+		Metrics.WALLPAPER_CHANGES.increment();
+		
+		if(CommunicationUtils.hasInternetConnectivity(getApplicationContext())) {
+			new PrefetchSettings(getApplicationContext()).createPrefetcher(repository).prefetchNext();
+		}
+		return true;
+	}
+	
+	/**
+	 * Retries the failed change once the server of the failed request is not backed off anymore
+	 * 
+	 * @param url
+	 * 		The url of the failed request
+	 */
+	private void retryLater(String url) {
+		long retryTime = NetworkResilience.getInstance(getApplicationContext()).getRetryTime(url);
+		if(retryTime > 0) ChangeScheduler.getInstance(getApplicationContext()).retryChangeAt(retryTime);
 	}
 }
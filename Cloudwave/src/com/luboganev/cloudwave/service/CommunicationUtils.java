@@ -1,29 +1,34 @@
 package com.luboganev.cloudwave.service;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.SocketTimeoutException;
 import java.net.URLEncoder;
 import org.apache.http.HttpStatus;
 
+import com.luboganev.cloudwave.Metrics;
 import com.luboganev.cloudwave.receivers.ConnectivityChangeReceiver;
+import com.luboganev.cloudwave.service.TracksResponseParser.TrackHandler;
 
+import android.annotation.TargetApi;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Build;
 
 public class CommunicationUtils {
+	/** The base url of the SoundCloud API */
+	public static final String SOUNDCLOUD_API_BASE_URL = "https://api.soundcloud.com";
+	private static final String SOUNDCLOUD_CONSUMER_KEY = "f15a8f33d2b9a4eb9ab8e3f96f8baa35";
+	
 	/**
 	 * Checks if there is an usable Internet connection
 	 * 
@@ -41,6 +46,32 @@ public class CommunicationUtils {
 		else return false;
 	}
 	
+	/**
+	 * Checks if there is an Internet connection which is not metered, e.g. Wi-Fi
+	 * 
+	 * @param applicationContext
+	 * 		Needs the context to get the ConnectivityManager
+	 * @return
+	 * 		true if there is an active unmetered Internet connection.
+	 * 		false otherwise 
+	 */
+	public static boolean hasUnmeteredConnectivity(Context applicationContext) {
+		ConnectivityManager connManager = (ConnectivityManager)applicationContext.
+				   getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo info = connManager.getActiveNetworkInfo();
+		if(info == null || !info.isConnected()) return false;
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			return !isActiveNetworkMetered(connManager);
+		}
+		int type = info.getType();
+		return type == ConnectivityManager.TYPE_WIFI || type == ConnectivityManager.TYPE_ETHERNET;
+	}
+	
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static boolean isActiveNetworkMetered(ConnectivityManager connManager) {
+		return connManager.isActiveNetworkMetered();
+	}
+	
 	/**
 	 * This method enables or disables the {@link ConnectivityChangeReceiver}
 	 * 
@@ -58,167 +89,136 @@ public class CommunicationUtils {
 	}
 	
 	/**
-	 * This method implements the functionality of downloading a soundwave file
+	 * This method implements the functionality of downloading a soundwave file.
+	 * An interrupted download is resumed by the next call for the same file.
+	 * Nothing is requested while the server is backed off by the {@link NetworkResilience}.
 	 * 
+	 * @param applicationContext
+	 * 		Needed for the state of the {@link NetworkResilience}
 	 * @param serverUrl
 	 * 		The url of the soundwave
 	 * @param localFile
-	 * 		The local file where the downloaded soundwave image should be saved
+	 * 		The local file where the downloaded soundwave image should be saved. 
+	 * 		It only exists if the download was successful.
 	 * @return
 	 * 		if download was successful
 	 */
-	public static boolean executeSoundwaveDownload(String serverUrl, File localFile) {
-		InputStream input = null;
-		try {
-			localFile.createNewFile(); // create the file
-			HttpURLConnection conn = requestGet(serverUrl);
-			conn.connect();
-			if(conn.getResponseCode() == HttpStatus.SC_OK) {
-				input = new BufferedInputStream(conn.getInputStream());
-				readToFile(input, localFile);
-				input.close();
-			    return true;
-			}
-			else {
-				return false;
-			}
-		} catch (FileNotFoundException e) {
-			if(input != null) {
-				try {
-					input.close();
-				} catch (IOException e1) {
-					// should not happen
-				}
-			}
-            return false;
-        } catch (IOException e) {
-        	if(input != null) {
-        		try {
-					input.close();
-				} catch (IOException e1) {
-					// should not happen
-				}
-        	}
-        	if(localFile.exists()) localFile.delete(); // we need to delete the local file on error
-            return false;
-        }
+	public static boolean executeSoundwaveDownload(Context applicationContext, String serverUrl, File localFile) {
+		NetworkResilience resilience = NetworkResilience.getInstance(applicationContext);
+		if(!resilience.allowRequest(serverUrl)) return false;
+		HttpTransport.RequestStatus status = new HttpTransport.RequestStatus();
+		boolean success = HttpTransport.download(serverUrl, localFile, status);
+		resilience.onRequestFinished(serverUrl, status, success);
+		return success;
 	}
 	
 	/**
-	 * This method implements the functionality of fetching artist's tracks
-	 * for requested artist name
+	 * Builds the url of the first page of an artist's tracks
 	 * 
+	 * @param apiBaseUrl
+	 * 		The base url of the SoundCloud API, e.g. {@link #SOUNDCLOUD_API_BASE_URL}
 	 * @param artistName
 	 * 		The artist name
+	 * @param pageSize
+	 * 		The number of tracks per page
 	 * @return
-	 * 		The string with the JSON contents
+	 * 		The url or null if the artist name cannot be encoded
 	 */
-	public static String executeFetchArtistTracks(String artistName) {
+	public static String buildArtistTracksUrl(String apiBaseUrl, String artistName, int pageSize) {
 		String username = "";
 	    try {
 			username = URLEncoder.encode(artistName, "UTF-8");
 		} catch (UnsupportedEncodingException e1) {
 			return null;
 		}
-		String requestUrl = "https://api.soundcloud.com/users/"+username+"/tracks.json?consumer_key=f15a8f33d2b9a4eb9ab8e3f96f8baa35";
-		InputStream responseStream = null;
-		try {
-			HttpURLConnection conn = requestGet(requestUrl);
-			conn.connect();
-			if(conn.getResponseCode() == HttpStatus.SC_OK) {
-				responseStream = conn.getInputStream();
-				String response = readIt(responseStream);
-				responseStream.close();
-				return response;
-			}
-			else {
-				return null;
-			}
-		}
-		catch (IOException e) {
-			if(responseStream != null) {
-				try {
-					responseStream.close();
-				} catch (IOException e1) {
-					// this should never happen
-				}
-			}
-			return null;
-		}
+		return apiBaseUrl + "/users/" + username + "/tracks.json?consumer_key=" + SOUNDCLOUD_CONSUMER_KEY 
+				+ "&limit=" + pageSize + "&linked_partitioning=1";
 	}
 	
 	/**
-	 * Sets up and opens a new HttpURLConnection to perform a HTTP GET request. 
-	 * One can then directly call the {@link HttpURLConnection#connect()} and
-	 * read the response code and read the response through its InputStream.
-	 * 
-	 * @param url
-	 * 		The url of the request
-	 * @return
-	 * 		The setup HttpURLConnection object
-	 * @throws IOException
-	 * 		If something went wrong during establishing connection
+	 * The response of a tracks page request
 	 */
-	private static HttpURLConnection requestGet(String url) throws IOException {
-        URL getUrl = new URL(url);
-        HttpURLConnection conn = (HttpURLConnection) getUrl.openConnection();
-        conn.setReadTimeout(10000);
-        conn.setConnectTimeout(15000);
-        conn.setRequestMethod("GET");
-        conn.setDoInput(true);
-        return conn;
+	public static class TracksPageResponse {
+		/** If the page has not been modified since the conditional request's ETag or date */
+		public boolean notModified;
+		/** The url of the next page or null if this is the last one */
+		public String nextPageUrl;
+		/** The ETag of the response */
+		public String etag;
+		/** The Last-Modified header of the response */
+		public String lastModified;
 	}
 	
 	/**
-	 * Reads an InputStream as an UTF-8 string
+	 * This method implements the functionality of fetching a page of artist's tracks.
+	 * The response is parsed directly from the connection's stream and every 
+	 * track is passed to the handler. The request can be made conditional.
+	 * Nothing is requested while the API is backed off by the {@link NetworkResilience}.
 	 * 
-	 * @param stream
-	 * 		The InputStream
+	 * @param applicationContext
+	 * 		Needed for the state of the {@link NetworkResilience}
+	 * @param pageUrl
+	 * 		The url of the page
+	 * @param etag
+	 * 		The ETag of a previous response sent as If-None-Match or null
+	 * @param lastModified
+	 * 		The Last-Modified header of a previous response sent as If-Modified-Since or null
+	 * @param handler
+	 * 		Receives the fetched tracks
 	 * @return
-	 * 		The read string
-	 * @throws IOException
-	 * 		If reading fails
+	 * 		The response or null if the request failed
 	 */
-	private static String readIt(InputStream stream) throws IOException {
-		BufferedReader br = new BufferedReader(new InputStreamReader(stream));
-        StringBuilder sb = new StringBuilder();
-        String line;
-        while ((line = br.readLine()) != null) {
-            sb.append(line+"\n");
-        }
-        br.close();
-        return sb.toString();
+	public static TracksPageResponse executeFetchTracksPage(Context applicationContext, String pageUrl, 
+			String etag, String lastModified, TrackHandler handler) {
+		NetworkResilience resilience = NetworkResilience.getInstance(applicationContext);
+		if(!resilience.allowRequest(pageUrl)) return null;
+		HttpTransport.RequestStatus status = new HttpTransport.RequestStatus();
+		TracksPageResponse response = fetchTracksPage(pageUrl, etag, lastModified, handler, status);
+		resilience.onRequestFinished(pageUrl, status, response != null);
+		return response;
 	}
 	
-	/**
-	 * Reads the whole InputStream content into a local file
-	 * 
-	 * @param in
-	 *          The InputStream
-	 *  @param localFile
-	 *  		The local file
-	 * @throws IOException
-	 *             If reading or writing fails
-	 */
-	private static void readToFile(InputStream in, File localFile) throws IOException, FileNotFoundException {
-		OutputStream output = null;
+	private static TracksPageResponse fetchTracksPage(String pageUrl, String etag, String lastModified, 
+			TrackHandler handler, HttpTransport.RequestStatus status) {
+		InputStream responseStream = null;
+		long start = Metrics.start();
+		HttpTransport.ByteCounter counter = new HttpTransport.ByteCounter();
 		try {
-			output = new FileOutputStream(localFile);
-			// download the file
-			in = new BufferedInputStream(in);
-			byte data[] = new byte[1024];
-			int count;
-			while ((count = in.read(data)) != -1) {
-				output.write(data, 0, count);
+			HttpURLConnection conn = HttpTransport.openGet(pageUrl, true);
+			if(etag != null) conn.setRequestProperty("If-None-Match", etag);
+			if(lastModified != null) conn.setRequestProperty("If-Modified-Since", lastModified);
+			conn.connect();
+			int responseCode = conn.getResponseCode();
+			status.responseCode = responseCode;
+			Metrics.NETWORK_LATENCY.recordMillisSince(start);
+			TracksPageResponse response = new TracksPageResponse();
+			if(responseCode == HttpStatus.SC_NOT_MODIFIED) {
+				response.notModified = true;
+				HttpTransport.discardResponse(conn);
+				return response;
 			}
-			output.flush();
-			output.close();
+			else if(responseCode == HttpStatus.SC_OK) {
+				response.etag = conn.getHeaderField("ETag");
+				response.lastModified = conn.getHeaderField("Last-Modified");
+				responseStream = HttpTransport.getResponseStream(conn, counter);
+				Reader reader = new BufferedReader(new InputStreamReader(responseStream, "UTF-8"));
+				response.nextPageUrl = TracksResponseParser.parseTracksPage(reader, handler);
+				reader.close();
+				return response;
+			}
+			else {
+				HttpTransport.discardResponse(conn);
+				return null;
+			}
+		}
+		catch (IOException e) {
+			status.timedOut = e instanceof SocketTimeoutException;
+			HttpTransport.closeQuietly(responseStream);
+			Metrics.NETWORK_ERRORS.increment();
+			return null;
 		}
 		finally {
-			if(output != null) {
-				output.flush(); // close the local file in any case
-				output.close();
-			}
+			HttpTransport.recordRequest(start, counter);
 		}
 	}
 }
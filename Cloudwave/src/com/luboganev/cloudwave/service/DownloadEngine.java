@@ -0,0 +1,203 @@
+package com.luboganev.cloudwave.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.os.Process;
+
+import com.luboganev.cloudwave.LogUtils;
+
+/**
+ * Process wide engine which runs downloads on a bounded pool of worker threads.
+ * Downloads waiting for a worker are ordered by their priority. Requests for a
+ * url which is already being downloaded do not start another download, but
+ * share the future of the running one. All downloads can be cancelled at once,
+ * e.g. when the wallpaper is removed.
+ */
+public class DownloadEngine {
+	/** Priority of downloads made in advance */
+	public static final int PRIORITY_PREFETCH = 0;
+	/** Priority of the download of the next track's soundwave */
+	public static final int PRIORITY_NEXT_TRACK = 10;
+	/** The number of worker threads */
+	private static final int MAX_CONCURRENCY = 2;
+
+	/**
+	 * Processes a downloaded file on the worker thread
+	 */
+	public interface DownloadHandler {
+		/**
+		 * @param file
+		 * 		The downloaded file, owned by the handler from now on
+		 * @return
+		 * 		if the file was processed successfully
+		 */
+		boolean onDownloaded(File file);
+	}
+
+	private static DownloadEngine sInstance;
+
+	private final Context mApplicationContext;
+	private final ThreadPoolExecutor mExecutor;
+	/** The queued and running downloads by url */
+	private final HashMap<String, DownloadTask> mInFlight = new HashMap<String, DownloadTask>();
+	/** Keeps the order of requests with the same priority */
+	private final AtomicLong mSequence = new AtomicLong();
+
+	/**
+	 * @param applicationContext
+	 * 		Needed for the requests
+	 * @return
+	 * 		The process wide download engine
+	 */
+	public static synchronized DownloadEngine getInstance(Context applicationContext) {
+		if(sInstance == null) {
+			sInstance = new DownloadEngine(applicationContext.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private DownloadEngine(Context applicationContext) {
+		mApplicationContext = applicationContext;
+		mExecutor = new ThreadPoolExecutor(MAX_CONCURRENCY, MAX_CONCURRENCY, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+					private int mCount;
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						return new Thread(new Runnable() {
+							@Override
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+						}, "DownloadEngine-" + (++mCount));
+					}
+				});
+	}
+
+	/**
+	 * Requests the download of a url. If the url is already being downloaded,
+	 * the future of that download is returned and the handler is not called.
+	 * A queued download gets the higher priority of both requests.
+	 *
+	 * @param url
+	 * 		The url to download
+	 * @param target
+	 * 		The local file for the download
+	 * @param priority
+	 * 		The priority, e.g. {@link #PRIORITY_NEXT_TRACK}
+	 * @param handler
+	 * 		Processes the downloaded file
+	 * @return
+	 * 		The future result of the handler, false if the download failed.
+	 * 		It is shared, so it should not be cancelled by a single caller.
+	 */
+	public Future<Boolean> submit(String url, File target, int priority, DownloadHandler handler) {
+		synchronized (mInFlight) {
+			DownloadTask task = mInFlight.get(url);
+			if(task != null) {
+				LogUtils.d(this, "Joining download of {}", url);
+				// a task can only be reordered while it is waiting in the queue
+				if(priority > task.mPriority && mExecutor.remove(task)) {
+					task.mPriority = priority;
+					mExecutor.execute(task);
+				}
+				return task;
+			}
+			task = new DownloadTask(url, target, priority, mSequence.getAndIncrement(), handler);
+			mInFlight.put(url, task);
+			mExecutor.execute(task);
+			return task;
+		}
+	}
+
+	/**
+	 * Cancels all queued and running downloads
+	 */
+	public void cancelAll() {
+		ArrayList<DownloadTask> tasks;
+		synchronized (mInFlight) {
+			tasks = new ArrayList<DownloadTask>(mInFlight.values());
+		}
+		for (DownloadTask task : tasks) {
+			task.cancel(true);
+		}
+		mExecutor.purge();
+		LogUtils.d(this, "Cancelled {} downloads", tasks.size());
+	}
+
+	/**
+	 * Waits for the result of a download
+	 *
+	 * @param future
+	 * 		The future returned by {@link #submit(String, File, int, DownloadHandler)}
+	 * @return
+	 * 		false if the download failed, was cancelled or the waiting was interrupted
+	 */
+	public static boolean await(Future<Boolean> future) {
+		try {
+			return future.get();
+		} catch (CancellationException e) {
+			return false;
+		} catch (ExecutionException e) {
+			LogUtils.e("DownloadEngine", "Download failed");
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private class DownloadTask extends FutureTask<Boolean> implements Comparable<DownloadTask> {
+		private final String mUrl;
+		private final long mSequence;
+		/** Only changed while the task is not in the queue */
+		private volatile int mPriority;
+
+		public DownloadTask(final String url, final File target, int priority, long sequence,
+				final DownloadHandler handler) {
+			super(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					if(!CommunicationUtils.executeSoundwaveDownload(mApplicationContext, url, target)) return false;
+					if(Thread.currentThread().isInterrupted()) {
+						// cancelled right after the download
+						target.delete();
+						return false;
+					}
+					return handler.onDownloaded(target);
+				}
+			});
+			mUrl = url;
+			mPriority = priority;
+			mSequence = sequence;
+		}
+
+		@Override
+		protected void done() {
+			synchronized (mInFlight) {
+				if(mInFlight.get(mUrl) == this) mInFlight.remove(mUrl);
+			}
+		}
+
+		@Override
+		public int compareTo(DownloadTask another) {
+			if(mPriority != another.mPriority) return mPriority > another.mPriority ? -1 : 1;
+			if(mSequence != another.mSequence) return mSequence < another.mSequence ? -1 : 1;
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,387 @@
+package com.luboganev.cloudwave.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.HttpStatus;
+
+import android.os.Build;
+
+import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.Metrics;
+
+/**
+ * The HTTP layer of all requests. Responses are read completely and their streams
+ * closed, so that the connections are kept alive and reused by HttpURLConnection.
+ * API responses are requested gzipped, while files are requested uncompressed so
+ * that interrupted downloads can be resumed with a byte range.
+ * <p>
+ * Files are downloaded to a partial file next to the target, which is only renamed
+ * to the target after its length has been verified. The partial file and the
+ * validator of the response are kept after a failure, so the next attempt continues
+ * where the last one stopped if the file on the server has not changed.
+ * <p>
+ * The latency, duration and received bytes of all requests are recorded in the {@link Metrics}.
+ * How a request ended is reported in a {@link RequestStatus} for the {@link NetworkResilience}.
+ */
+public class HttpTransport {
+	private static final int READ_TIMEOUT = 10000;
+	private static final int CONNECT_TIMEOUT = 15000;
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final String PART_FILE_SUFFIX = ".part";
+	private static final String VALIDATOR_FILE_SUFFIX = ".part.validator";
+
+	/** Each download thread keeps its copy buffer */
+	private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	static {
+		if(Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+			// reused connections are broken before Froyo
+			System.setProperty("http.keepAlive", "false");
+		}
+	}
+
+	/**
+	 * Sets up a new HTTP GET request. One can then directly read the response code
+	 * and the response through {@link #getResponseStream(HttpURLConnection)}.
+	 *
+	 * @param url
+	 * 		The url of the request
+	 * @param acceptGzip
+	 * 		If the response may be gzipped, which should be used for text responses
+	 * @return
+	 * 		The setup HttpURLConnection object
+	 * @throws IOException
+	 * 		If the url is invalid
+	 */
+	public static HttpURLConnection openGet(String url, boolean acceptGzip) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		conn.setReadTimeout(READ_TIMEOUT);
+		conn.setConnectTimeout(CONNECT_TIMEOUT);
+		conn.setRequestMethod("GET");
+		conn.setDoInput(true);
+		// setting the header explicitly disables the transparent decompression of newer platforms,
+		// which also hides the real content length
+		conn.setRequestProperty("Accept-Encoding", acceptGzip ? "gzip" : "identity");
+		return conn;
+	}
+
+	/**
+	 * Gets the stream of a successful response, which is decompressed if needed
+	 *
+	 * @param conn
+	 * 		The connection of the request
+	 * @param counter
+	 * 		Counts the received bytes, i.e. before decompression
+	 * @return
+	 * 		The response stream, which must be closed to reuse the connection
+	 * @throws IOException
+	 * 		If the response cannot be read
+	 */
+	public static InputStream getResponseStream(HttpURLConnection conn, ByteCounter counter) throws IOException {
+		InputStream in = new CountingInputStream(conn.getInputStream(), counter);
+		if("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		}
+		return in;
+	}
+
+	/**
+	 * Records the metrics of a finished request
+	 *
+	 * @param startNanos
+	 * 		The value of {@link Metrics#start()} before the request
+	 * @param counter
+	 * 		The counter of the received bytes or null if the response had no body
+	 */
+	public static void recordRequest(long startNanos, ByteCounter counter) {
+		Metrics.NETWORK_DURATION.recordMillisSince(startNanos);
+		Metrics.NETWORK_BYTES.record(counter != null ? counter.count : 0);
+	}
+
+	/**
+	 * Reads and closes the body of an unsuccessful response, so that the connection can be reused
+	 *
+	 * @param conn
+	 * 		The connection of the request
+	 */
+	public static void discardResponse(HttpURLConnection conn) {
+		InputStream error = conn.getErrorStream();
+		if(error == null) return;
+		try {
+			byte[] buffer = sBuffer.get();
+			while (error.read(buffer) != -1) {
+				// drain
+			}
+		} catch (IOException e) {
+			// the connection is not reused then
+		} finally {
+			closeQuietly(error);
+		}
+	}
+
+	/**
+	 * Downloads a file, resuming a previously interrupted download of it.
+	 * The target file only appears once it is complete.
+	 *
+	 * @param url
+	 * 		The url of the file
+	 * @param target
+	 * 		The local file
+	 * @param status
+	 * 		Receives how the request ended
+	 * @return
+	 * 		if the complete file was downloaded
+	 */
+	public static boolean download(String url, File target, RequestStatus status) {
+		File partFile = new File(target.getPath() + PART_FILE_SUFFIX);
+		File validatorFile = new File(target.getPath() + VALIDATOR_FILE_SUFFIX);
+		long offset = partFile.length();
+		String validator = offset > 0 ? readValidator(validatorFile) : null;
+		if(validator == null) {
+			// a partial file cannot be resumed without knowing that the file on the server is the same
+			offset = 0;
+		}
+
+		InputStream in = null;
+		long start = Metrics.start();
+		ByteCounter counter = new ByteCounter();
+		try {
+			HttpURLConnection conn = openGet(url, false);
+			if(offset > 0) {
+				LogUtils.d("HttpTransport", "Resuming download at {}", offset);
+				conn.setRequestProperty("Range", "bytes=" + offset + "-");
+				conn.setRequestProperty("If-Range", validator);
+			}
+			int responseCode = conn.getResponseCode();
+			status.responseCode = responseCode;
+			Metrics.NETWORK_LATENCY.recordMillisSince(start);
+			long expectedLength;
+			if(responseCode == HttpStatus.SC_PARTIAL_CONTENT && offset > 0) {
+				expectedLength = parseContentRangeLength(conn.getHeaderField("Content-Range"), offset);
+				if(expectedLength < 0) {
+					discardResponse(conn);
+					deletePartialDownload(partFile, validatorFile);
+					return false;
+				}
+			}
+			else if(responseCode == HttpStatus.SC_OK) {
+				// a new download or the file has changed since the partial download
+				offset = 0;
+				expectedLength = conn.getContentLength();
+				writeValidator(validatorFile, getValidator(conn));
+			}
+			else {
+				discardResponse(conn);
+				if(responseCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+					deletePartialDownload(partFile, validatorFile);
+				}
+				return false;
+			}
+
+			in = new CountingInputStream(conn.getInputStream(), counter);
+			copyToFile(in, partFile, offset > 0);
+			in.close();
+			in = null;
+
+			long length = partFile.length();
+			if(expectedLength >= 0 && length != expectedLength) {
+				LogUtils.e("HttpTransport", "Downloaded {} of {} bytes", length, expectedLength);
+				// a shorter file can still be resumed
+				if(length > expectedLength) deletePartialDownload(partFile, validatorFile);
+				return false;
+			}
+			if(!partFile.renameTo(target)) {
+				deletePartialDownload(partFile, validatorFile);
+				return false;
+			}
+			validatorFile.delete();
+			return true;
+		} catch (IOException e) {
+			// keep the partial file for resuming
+			LogUtils.e("HttpTransport", "Download interrupted");
+			status.timedOut = e instanceof SocketTimeoutException;
+			Metrics.NETWORK_ERRORS.increment();
+			return false;
+		} finally {
+			closeQuietly(in);
+			recordRequest(start, counter);
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The strong ETag or the last modification date of the response
+	 * 		which can be used in an If-Range header or null
+	 */
+	private static String getValidator(HttpURLConnection conn) {
+		String etag = conn.getHeaderField("ETag");
+		if(etag != null && !etag.startsWith("W/")) return etag;
+		return conn.getHeaderField("Last-Modified");
+	}
+
+	/**
+	 * Parses a Content-Range header like "bytes 100-999/1000"
+	 *
+	 * @return
+	 * 		The complete length, -1 if the range does not start at the offset
+	 * 		or the complete length is unknown
+	 */
+	static long parseContentRangeLength(String contentRange, long offset) {
+		if(contentRange == null || !contentRange.startsWith("bytes ")) return -1;
+		int dash = contentRange.indexOf('-');
+		int slash = contentRange.indexOf('/');
+		if(dash < 0 || slash < dash) return -1;
+		try {
+			long start = Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+			if(start != offset) return -1;
+			return Long.parseLong(contentRange.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void copyToFile(InputStream in, File file, boolean append) throws IOException {
+		OutputStream output = new FileOutputStream(file, append);
+		try {
+			byte[] buffer = sBuffer.get();
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				if(Thread.currentThread().isInterrupted()) {
+					// the download has been cancelled
+					throw new InterruptedIOException();
+				}
+				output.write(buffer, 0, count);
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+	private static String readValidator(File validatorFile) {
+		if(!validatorFile.exists()) return null;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(validatorFile), "UTF-8"));
+			String validator = reader.readLine();
+			return validator == null || validator.length() == 0 ? null : validator;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if(reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+	}
+
+	private static void writeValidator(File validatorFile, String validator) {
+		if(validator == null) {
+			validatorFile.delete();
+			return;
+		}
+		OutputStream output = null;
+		try {
+			output = new FileOutputStream(validatorFile);
+			output.write(validator.getBytes("UTF-8"));
+		} catch (IOException e) {
+			validatorFile.delete();
+		} finally {
+			if(output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+	}
+
+	private static void deletePartialDownload(File partFile, File validatorFile) {
+		partFile.delete();
+		validatorFile.delete();
+	}
+
+	/**
+	 * How a request ended
+	 */
+	public static class RequestStatus {
+		/** The response code or -1 if there has been no response */
+		public int responseCode = -1;
+		/** If connecting or reading timed out */
+		public boolean timedOut;
+	}
+
+	/**
+	 * The number of bytes received in a response
+	 */
+	public static class ByteCounter {
+		/** Only written by the thread reading the response */
+		public long count;
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		private final ByteCounter mCounter;
+
+		public CountingInputStream(InputStream in, ByteCounter counter) {
+			super(in);
+			mCounter = counter;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b != -1) mCounter.count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int read = super.read(buffer, offset, count);
+			if(read > 0) mCounter.count += read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			if(skipped > 0) mCounter.count += skipped;
+			return skipped;
+		}
+	}
+
+	/**
+	 * Closes a stream and ignores any errors
+	 *
+	 * @param in
+	 * 		The stream or null
+	 */
+	public static void closeQuietly(InputStream in) {
+		if(in == null) return;
+		try {
+			in.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package com.luboganev.cloudwave.service;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.BatteryManager;
+
+import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.Metrics;
+import com.luboganev.cloudwave.data.LocalStorageManager;
+import com.luboganev.cloudwave.data.StorageRepository;
+import com.luboganev.cloudwave.data.StorageRepository.Transaction;
+import com.luboganev.cloudwave.data.Track;
+import com.luboganev.cloudwave.data.TransactionExecutor;
+import com.luboganev.cloudwave.receivers.MaintenanceReceiver;
+
+/**
+ * Batches all deferrable background work into maintenance windows, so the
+ * radio and the disk are woken up once per window instead of once per task.
+ * The tasks are the catalog refresh, the download of the next soundwave, the
+ * soundwave prefetch, the eviction of cached soundwaves and the compaction of
+ * the storage, in that order.
+ * <p>
+ * A window runs every pending task whose constraints are met. Tasks preferring
+ * an unmetered network or charging wait for them until their deadline. Windows
+ * are opened by the wallpaper changes, which run one after the change while
+ * the device is awake anyway, when the device gets connected to power, and by
+ * a non-waking alarm at the earliest deadline of the pending tasks.
+ * <p>
+ * Which tasks run is decided in short transactions of the {@link StorageRepository}.
+ * The tasks themselves run outside of them and only commit their results through
+ * transactions, so the requests of a window never hold the writer thread.
+ */
+public class MaintenanceScheduler {
+	/** Windows opened by the alarm are at least that far apart, even if a deadline has passed */
+	private static final long MIN_WINDOW_SPACING = 15 * 60 * 1000;
+	/** The journaled selections are only compacted into a snapshot from that many on */
+	private static final int MIN_COMPACTED_SELECTIONS = 10;
+
+	private static MaintenanceScheduler sInstance;
+
+	private final Context mApplicationContext;
+	private final PrefetchSettings mPrefetchSettings;
+	private final MaintenanceTask[] mTasks;
+	private final AtomicBoolean mWindowOpen = new AtomicBoolean();
+
+	/**
+	 * @param applicationContext
+	 * 		Needed for the alarms and the network and battery state
+	 * @return
+	 * 		The process wide scheduler
+	 */
+	public static synchronized MaintenanceScheduler getInstance(Context applicationContext) {
+		if(sInstance == null) {
+			sInstance = new MaintenanceScheduler(applicationContext.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private MaintenanceScheduler(Context applicationContext) {
+		mApplicationContext = applicationContext;
+		mPrefetchSettings = new PrefetchSettings(applicationContext);
+		mTasks = new MaintenanceTask[] { new CatalogRefreshTask(), new NextSoundwaveTask(), new PrefetchTask(),
+				new EvictionTask(), new CompactionTask() };
+	}
+
+	/**
+	 * Starts opening maintenance windows, i.e. enables the {@link MaintenanceReceiver}
+	 */
+	public void start() {
+		setReceiverEnabled(true);
+	}
+
+	/**
+	 * Stops opening maintenance windows, e.g. when the wallpaper is removed
+	 */
+	public void stop() {
+		setReceiverEnabled(false);
+		getAlarmManager().cancel(getAlarmIntent());
+	}
+
+	/**
+	 * Runs the pending tasks whose constraints are met and sets the alarm for the
+	 * next window. Nothing is maintained before the first change has saved the tracks.
+	 * Must not be called within a transaction. A window opened while another one is 
+	 * running is skipped, since the running one does the work.
+	 *
+	 * @param executor
+	 * 		Runs the transactions on the local storage, i.e. the {@link StorageRepository}
+	 */
+	public void runWindow(TransactionExecutor executor) {
+		if(!mWindowOpen.compareAndSet(false, true)) {
+			LogUtils.d(this, "Maintenance window already open");
+			return;
+		}
+		try {
+			runTasks(executor);
+		} finally {
+			mWindowOpen.set(false);
+		}
+	}
+
+	private void runTasks(TransactionExecutor executor) {
+		final long now = System.currentTimeMillis();
+		final boolean network = CommunicationUtils.hasInternetConnectivity(mApplicationContext);
+		final boolean charging = isCharging();
+		final boolean unmetered = network && CommunicationUtils.hasUnmeteredConnectivity(mApplicationContext);
+		Metrics.MAINTENANCE_WINDOWS.increment();
+		for (final MaintenanceTask task : mTasks) {
+			// decided right before the task runs, since the tasks before may have done its work
+			Boolean runnable = executor.execute(new Transaction<Boolean>() {
+				@Override
+				public Boolean run(LocalStorageManager manager) {
+					if(!manager.isLoaded() || !manager.hasSavedLocalStorage()) return false;
+					manager.setSoundwaveByteBudget(mPrefetchSettings.getSoundwaveByteBudget());
+					return isRunnable(task, manager, now, network, unmetered, charging);
+				}
+			});
+			if(runnable == null) return; // interrupted
+			if(!runnable) continue;
+			LogUtils.d(this, "Running maintenance task {}", task.getName());
+			task.run(executor);
+		}
+		executor.execute(new Transaction<Void>() {
+			@Override
+			public Void run(LocalStorageManager manager) {
+				if(manager.isLoaded() && manager.hasSavedLocalStorage()) scheduleNextWindow(manager, now);
+				return null;
+			}
+		});
+	}
+
+	private static boolean isRunnable(MaintenanceTask task, LocalStorageManager manager, long now,
+			boolean network, boolean unmetered, boolean charging) {
+		if(!task.isPending(manager)) return false;
+		if(task.hasConstraint(MaintenanceTask.CONSTRAINT_NETWORK) && !network) return false;
+		boolean overdue = task.getDeadline(manager) <= now;
+		if(!overdue && task.hasConstraint(MaintenanceTask.CONSTRAINT_UNMETERED_OR_CHARGING)
+				&& !unmetered && !charging) return false;
+		if(!overdue && task.hasConstraint(MaintenanceTask.CONSTRAINT_CHARGING) && !charging) return false;
+		return true;
+	}
+
+	/**
+	 * Sets the alarm for the earliest deadline of the pending tasks
+	 */
+	private void scheduleNextWindow(LocalStorageManager manager, long now) {
+		long deadline = MaintenanceTask.NO_DEADLINE;
+		for (MaintenanceTask task : mTasks) {
+			if(task.isPending(manager)) deadline = Math.min(deadline, task.getDeadline(manager));
+		}
+		AlarmManager alarmManager = getAlarmManager();
+		if(deadline == MaintenanceTask.NO_DEADLINE) {
+			alarmManager.cancel(getAlarmIntent());
+			return;
+		}
+		long time = Math.max(deadline, now + MIN_WINDOW_SPACING);
+		LogUtils.d(this, "Next maintenance window in {} ms", time - now);
+		// does not wake the device, the window opens with the next wakeup after the deadline
+		alarmManager.set(AlarmManager.RTC, time, getAlarmIntent());
+	}
+
+	private AlarmManager getAlarmManager() {
+		return (AlarmManager) mApplicationContext.getSystemService(Context.ALARM_SERVICE);
+	}
+
+	private PendingIntent getAlarmIntent() {
+		Intent i = new Intent(mApplicationContext, MaintenanceReceiver.class);
+		return PendingIntent.getBroadcast(mApplicationContext, 0, i, 0);
+	}
+
+	private void setReceiverEnabled(boolean enabled) {
+		ComponentName receiver = new ComponentName(mApplicationContext, MaintenanceReceiver.class);
+		mApplicationContext.getPackageManager().setComponentEnabledSetting(receiver,
+				enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+				PackageManager.DONT_KILL_APP);
+	}
+
+	private boolean isCharging() {
+		// the battery status is a sticky broadcast, so no receiver is needed
+		Intent batteryStatus = mApplicationContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		return batteryStatus != null && batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+	}
+
+	/**
+	 * Refreshes the catalog of the artist's tracks once a day,
+	 * preferably on a cheap network, but at the latest after two days
+	 */
+	private class CatalogRefreshTask extends MaintenanceTask {
+		CatalogRefreshTask() {
+			super("catalog_refresh", CONSTRAINT_NETWORK | CONSTRAINT_UNMETERED_OR_CHARGING);
+		}
+
+		@Override
+		public boolean isPending(LocalStorageManager manager) {
+			return CatalogSync.isDue(manager);
+		}
+
+		@Override
+		public long getDeadline(LocalStorageManager manager) {
+			long nextSyncTime = CatalogSync.getNextSyncTime(manager);
+			// an interrupted sync is resumed right away
+			return nextSyncTime == 0 ? 0 : nextSyncTime + CatalogSync.SYNC_INTERVAL;
+		}
+
+		@Override
+		public void run(TransactionExecutor executor) {
+			// the catalog is persisted by the sync if it changes
+			new CatalogSync(mApplicationContext, executor).sync();
+		}
+	}
+
+	/**
+	 * Downloads the soundwave of the next track right away if it is missing,
+	 * e.g. after the download during the last change has failed
+	 */
+	private class NextSoundwaveTask extends MaintenanceTask {
+		NextSoundwaveTask() {
+			super("next_soundwave", CONSTRAINT_NETWORK);
+		}
+
+		@Override
+		public boolean isPending(LocalStorageManager manager) {
+			Track nextTrack = manager.getNextTrack();
+			return nextTrack != null && !manager.hasSoundwave(nextTrack.id);
+		}
+
+		@Override
+		public long getDeadline(LocalStorageManager manager) {
+			return 0;
+		}
+
+		@Override
+		public void run(TransactionExecutor executor) {
+			mPrefetchSettings.createPrefetcher(executor).prefetchNext();
+		}
+	}
+
+	/**
+	 * Downloads the soundwaves of the upcoming tracks on a cheap network
+	 */
+	private class PrefetchTask extends MaintenanceTask {
+		PrefetchTask() {
+			super("prefetch", CONSTRAINT_NETWORK | CONSTRAINT_UNMETERED_OR_CHARGING);
+		}
+
+		@Override
+		public boolean isPending(LocalStorageManager manager) {
+			return SoundwavePrefetcher.hasMissingSoundwaves(manager, mPrefetchSettings.getDepth());
+		}
+
+		@Override
+		public long getDeadline(LocalStorageManager manager) {
+			return NO_DEADLINE;
+		}
+
+		@Override
+		public void run(TransactionExecutor executor) {
+			mPrefetchSettings.createPrefetcher(executor).prefetch();
+		}
+	}
+
+	/**
+	 * Evicts the cached soundwaves exceeding the budget,
+	 * keeping the ones of the current and upcoming tracks
+	 */
+	private class EvictionTask extends MaintenanceTask {
+		EvictionTask() {
+			super("eviction", 0);
+		}
+
+		@Override
+		public boolean isPending(LocalStorageManager manager) {
+			return manager.isOverSoundwaveByteBudget();
+		}
+
+		@Override
+		public long getDeadline(LocalStorageManager manager) {
+			return NO_DEADLINE;
+		}
+
+		@Override
+		public void run(TransactionExecutor executor) {
+			final int depth = mPrefetchSettings.getDepth();
+			executor.execute(new Transaction<Void>() {
+				@Override
+				public Void run(LocalStorageManager manager) {
+					manager.trimSoundwaves(depth);
+					return null;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Compacts the journaled selections into a new snapshot while charging.
+	 * Otherwise the journal is compacted once it is full.
+	 */
+	private class CompactionTask extends MaintenanceTask {
+		CompactionTask() {
+			super("compaction", CONSTRAINT_CHARGING);
+		}
+
+		@Override
+		public boolean isPending(LocalStorageManager manager) {
+			return manager.getJournaledSelectionsCount() >= MIN_COMPACTED_SELECTIONS;
+		}
+
+		@Override
+		public long getDeadline(LocalStorageManager manager) {
+			return NO_DEADLINE;
+		}
+
+		@Override
+		public void run(TransactionExecutor executor) {
+			executor.execute(new Transaction<Void>() {
+				@Override
+				public Void run(LocalStorageManager manager) {
+					manager.saveToFile();
+					return null;
+				}
+			});
+		}
+	}
+}
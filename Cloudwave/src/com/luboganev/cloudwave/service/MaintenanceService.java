@@ -0,0 +1,25 @@
+package com.luboganev.cloudwave.service;
+
+import android.content.Intent;
+
+import com.commonsware.cwac.wakeful.WakefulIntentService;
+import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.data.StorageRepository;
+
+/**
+ *	This IntentService runs a maintenance window of the {@link MaintenanceScheduler}
+ *  which has not been opened by a wallpaper change. The window commits its work 
+ *  through short transactions of the {@link StorageRepository}.
+ */
+public class MaintenanceService extends WakefulIntentService {
+	public MaintenanceService() {
+		super("MaintenanceIntentService");
+	}
+
+	@Override
+	protected void doWakefulWork(Intent intent) {
+		LogUtils.d(this, "Doing wakeful work");
+		MaintenanceScheduler.getInstance(getApplicationContext())
+			.runWindow(StorageRepository.getInstance(getApplicationContext()));
+	}
+}
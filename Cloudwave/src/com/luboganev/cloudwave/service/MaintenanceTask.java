@@ -0,0 +1,80 @@
+package com.luboganev.cloudwave.service;
+
+import com.luboganev.cloudwave.data.LocalStorageManager;
+import com.luboganev.cloudwave.data.TransactionExecutor;
+
+/**
+ * Deferrable background work, which the {@link MaintenanceScheduler} batches
+ * with the other tasks into a shared maintenance window. A task declares the
+ * conditions it needs and a deadline, until which it may wait for better ones.
+ * Whether a task is pending is checked within a transaction, while the task
+ * itself runs outside of transactions and commits its results through them.
+ */
+public abstract class MaintenanceTask {
+	/** The task needs internet connectivity */
+	public static final int CONSTRAINT_NETWORK = 1;
+	/** Before its deadline the task only runs on an unmetered network or while charging */
+	public static final int CONSTRAINT_UNMETERED_OR_CHARGING = 2;
+	/** Before its deadline the task only runs while charging */
+	public static final int CONSTRAINT_CHARGING = 4;
+
+	/** The deadline of a task which only joins windows opened for other reasons */
+	public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+	private final String mName;
+	private final int mConstraints;
+
+	/**
+	 * @param name
+	 * 		The name of the task for logging
+	 * @param constraints
+	 * 		The constraints of the task, a combination of the CONSTRAINT flags
+	 */
+	protected MaintenanceTask(String name, int constraints) {
+		mName = name;
+		mConstraints = constraints;
+	}
+
+	/**
+	 * @return
+	 * 		The name of the task
+	 */
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * @param constraint
+	 * 		One of the CONSTRAINT flags
+	 * @return
+	 * 		if the task has the constraint
+	 */
+	public boolean hasConstraint(int constraint) {
+		return (mConstraints & constraint) != 0;
+	}
+
+	/**
+	 * @param manager
+	 * 		The local storage manager with loaded local storage
+	 * @return
+	 * 		if the task has work to do
+	 */
+	public abstract boolean isPending(LocalStorageManager manager);
+
+	/**
+	 * @param manager
+	 * 		The local storage manager with loaded local storage
+	 * @return
+	 * 		The time when the pending task has to run without waiting
+	 * 		for better conditions, or {@link #NO_DEADLINE}
+	 */
+	public abstract long getDeadline(LocalStorageManager manager);
+
+	/**
+	 * Does the work of the task. Requests are made between the transactions.
+	 *
+	 * @param executor
+	 * 		Runs the transactions on the local storage
+	 */
+	public abstract void run(TransactionExecutor executor);
+}
@@ -0,0 +1,216 @@
+package com.luboganev.cloudwave.service;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Random;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.Metrics;
+
+/**
+ * Keeps the requests from hammering a failing server. The health of every host,
+ * e.g. the API or the soundwave server, is tracked separately from the outcomes
+ * of its requests:
+ * <ul>
+ * <li>After a failed request the host is backed off exponentially with jitter,
+ * so retries of many clients do not arrive at the same time.</li>
+ * <li>After repeated server errors or timeouts the circuit breaker of the host
+ * opens and no requests are made for a while. Afterwards requests are let through
+ * again, but the next failure opens the breaker for twice as long, until a request
+ * succeeds.</li>
+ * </ul>
+ * The state is kept in the shared preferences, so it survives the process.
+ * All methods can be called from any thread.
+ */
+public class NetworkResilience {
+	/** The backoff after the first failure, doubled for every further failure */
+	private static final long BASE_BACKOFF = 30 * 1000;
+	private static final long MAX_BACKOFF = 60 * 60 * 1000;
+	/** The number of consecutive server errors or timeouts which open the breaker */
+	private static final int BREAKER_THRESHOLD = 3;
+	private static final long BREAKER_OPEN_TIME = 15 * 60 * 1000;
+	private static final long MAX_BREAKER_OPEN_TIME = 6 * 60 * 60 * 1000;
+
+	private static final String PREFERENCES_NAME = "network_resilience";
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	private static NetworkResilience sInstance;
+
+	private final SharedPreferences mPreferences;
+	private final HashMap<String, HostState> mHosts = new HashMap<String, HostState>();
+	private final Random mRandom = new Random();
+
+	/**
+	 * @param applicationContext
+	 * 		Needed for the preferences
+	 * @return
+	 * 		The process wide instance
+	 */
+	public static synchronized NetworkResilience getInstance(Context applicationContext) {
+		if(sInstance == null) {
+			sInstance = new NetworkResilience(applicationContext.getApplicationContext()
+					.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE));
+		}
+		return sInstance;
+	}
+
+	/**
+	 * @param preferences
+	 * 		The preferences keeping the state, e.g. in memory for a test against a fake server
+	 */
+	NetworkResilience(SharedPreferences preferences) {
+		mPreferences = preferences;
+	}
+
+	/**
+	 * @param url
+	 * 		The url of the request
+	 * @return
+	 * 		false if the host is backed off or its breaker is open
+	 */
+	public synchronized boolean allowRequest(String url) {
+		if(getHostState(getHost(url)).getRetryTime() <= System.currentTimeMillis()) return true;
+		Metrics.REJECTED_REQUESTS.increment();
+		return false;
+	}
+
+	/**
+	 * @param url
+	 * 		The url of a request
+	 * @return
+	 * 		The time from which requests to its host are allowed again, 0 if they are allowed now
+	 */
+	public synchronized long getRetryTime(String url) {
+		long retryTime = getHostState(getHost(url)).getRetryTime();
+		return retryTime > System.currentTimeMillis() ? retryTime : 0;
+	}
+
+	/**
+	 * Updates the health of the host of a finished request
+	 *
+	 * @param url
+	 * 		The url of the request
+	 * @param status
+	 * 		How the request ended
+	 * @param success
+	 * 		if the request has done its work
+	 */
+	public synchronized void onRequestFinished(String url, HttpTransport.RequestStatus status, boolean success) {
+		// a cancelled request says nothing about the server
+		if(!success && Thread.currentThread().isInterrupted()) return;
+		String host = getHost(url);
+		HostState state = getHostState(host);
+		long now = System.currentTimeMillis();
+		if(success || (status.responseCode >= 400 && status.responseCode < 500
+				&& status.responseCode != HTTP_TOO_MANY_REQUESTS)) {
+			// the server works, even if it does not like the request
+			if(state.failures == 0) return;
+			LogUtils.d(this, "Host {} recovered", host);
+			state.failures = 0;
+			state.serverFailures = 0;
+			state.backoffUntil = 0;
+			state.breakerOpenUntil = 0;
+		}
+		else {
+			state.failures++;
+			state.backoffUntil = now + getBackoff(state.failures);
+			if(status.timedOut || status.responseCode >= 500 || status.responseCode == HTTP_TOO_MANY_REQUESTS) {
+				state.serverFailures++;
+				if(state.serverFailures >= BREAKER_THRESHOLD) {
+					long openTime = Math.min(MAX_BREAKER_OPEN_TIME,
+							BREAKER_OPEN_TIME << Math.min(16, state.serverFailures - BREAKER_THRESHOLD));
+					LogUtils.e(this, "Opening the circuit breaker of {}", host);
+					Metrics.OPENED_BREAKERS.increment();
+					state.breakerOpenUntil = now + openTime;
+				}
+			}
+		}
+		saveHostState(host, state);
+	}
+
+	/**
+	 * Drops the backoff after failures without a response, since they were
+	 * probably caused by the lost connection. Open breakers stay open.
+	 */
+	public synchronized void onConnectivityRestored() {
+		for (String host : mPreferences.getAll().keySet()) {
+			HostState state = getHostState(host);
+			if(state.backoffUntil == 0 || state.serverFailures > 0) continue;
+			state.backoffUntil = 0;
+			saveHostState(host, state);
+		}
+	}
+
+	/**
+	 * @return
+	 * 		A random backoff between the half and the whole of the exponential backoff
+	 */
+	private long getBackoff(int failures) {
+		long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(16, failures - 1));
+		return backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+	}
+
+	private static String getHost(String url) {
+		try {
+			return new URL(url).getAuthority();
+		} catch (MalformedURLException e) {
+			return url;
+		}
+	}
+
+	private HostState getHostState(String host) {
+		HostState state = mHosts.get(host);
+		if(state == null) {
+			state = HostState.parse(mPreferences.getString(host, null));
+			mHosts.put(host, state);
+		}
+		return state;
+	}
+
+	private void saveHostState(String host, HostState state) {
+		SharedPreferences.Editor editor = mPreferences.edit();
+		if(state.failures == 0) editor.remove(host);
+		else editor.putString(host, state.format());
+		editor.commit();
+	}
+
+	/**
+	 * The health of a host
+	 */
+	private static class HostState {
+		/** Consecutive failed requests */
+		int failures;
+		/** Consecutive server errors and timeouts */
+		int serverFailures;
+		long backoffUntil;
+		long breakerOpenUntil;
+
+		long getRetryTime() {
+			return Math.max(backoffUntil, breakerOpenUntil);
+		}
+
+		String format() {
+			return failures + "," + serverFailures + "," + backoffUntil + "," + breakerOpenUntil;
+		}
+
+		static HostState parse(String value) {
+			HostState state = new HostState();
+			if(value == null) return state;
+			String[] parts = value.split(",");
+			if(parts.length != 4) return state;
+			try {
+				state.failures = Integer.parseInt(parts[0]);
+				state.serverFailures = Integer.parseInt(parts[1]);
+				state.backoffUntil = Long.parseLong(parts[2]);
+				state.breakerOpenUntil = Long.parseLong(parts[3]);
+			} catch (NumberFormatException e) {
+				return new HostState();
+			}
+			return state;
+		}
+	}
+}
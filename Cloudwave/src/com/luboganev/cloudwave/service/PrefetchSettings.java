@@ -0,0 +1,139 @@
+package com.luboganev.cloudwave.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.luboganev.cloudwave.data.SoundwaveCache;
+import com.luboganev.cloudwave.data.StorageRepository;
+import com.luboganev.cloudwave.data.TransactionExecutor;
+import com.luboganev.cloudwave.render.TrackLoader;
+
+/**
+ * The tunables of the soundwave prefetch, i.e. the prefetch depth, the bytes
+ * per run, the number of simultaneous downloads and the byte budget of the
+ * soundwave cache. They are kept in the shared preferences and read by the
+ * {@link MaintenanceScheduler} for every maintenance window. The memory
+ * ceiling of the next track prepared by the wallpaper is kept here as well.
+ * Values which have not been set fall back to the defaults of the
+ * prefetcher, the cache and the {@link TrackLoader}.
+ */
+public class PrefetchSettings {
+	private static final String PREFERENCES_NAME = "prefetch_settings";
+	private static final String KEY_DEPTH = "depth";
+	private static final String KEY_MAX_BYTES_PER_RUN = "max_bytes_per_run";
+	private static final String KEY_CONCURRENCY = "concurrency";
+	private static final String KEY_SOUNDWAVE_BYTE_BUDGET = "soundwave_byte_budget";
+	private static final String KEY_LOOK_AHEAD_MEMORY_CEILING = "look_ahead_memory_ceiling";
+
+	private final Context mApplicationContext;
+	private final SharedPreferences mPreferences;
+
+	/**
+	 * @param applicationContext
+	 * 		Needed for the preferences and the downloads of the prefetcher
+	 */
+	public PrefetchSettings(Context applicationContext) {
+		mApplicationContext = applicationContext;
+		mPreferences = applicationContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * @return
+	 * 		The number of upcoming tracks, starting with the next one, whose soundwaves are kept
+	 */
+	public int getDepth() {
+		return mPreferences.getInt(KEY_DEPTH, SoundwavePrefetcher.DEFAULT_DEPTH);
+	}
+
+	/**
+	 * @return
+	 * 		The maximum number of downloaded bytes per prefetch run
+	 */
+	public long getMaxBytesPerRun() {
+		return mPreferences.getLong(KEY_MAX_BYTES_PER_RUN, SoundwavePrefetcher.DEFAULT_MAX_BYTES_PER_RUN);
+	}
+
+	/**
+	 * @return
+	 * 		The number of simultaneous downloads of a prefetch run
+	 */
+	public int getConcurrency() {
+		return mPreferences.getInt(KEY_CONCURRENCY, SoundwavePrefetcher.DEFAULT_CONCURRENCY);
+	}
+
+	/**
+	 * @return
+	 * 		The maximum size of all cached soundwaves in bytes
+	 */
+	public long getSoundwaveByteBudget() {
+		return mPreferences.getLong(KEY_SOUNDWAVE_BYTE_BUDGET, SoundwaveCache.DEFAULT_BYTE_BUDGET);
+	}
+
+	/**
+	 * @return
+	 * 		The maximum memory in bytes, which the next track prepared by the wallpaper can take
+	 */
+	public int getLookAheadMemoryCeiling() {
+		return mPreferences.getInt(KEY_LOOK_AHEAD_MEMORY_CEILING, TrackLoader.DEFAULT_LOOK_AHEAD_MEMORY_CEILING);
+	}
+
+	/**
+	 * Persists new tunables, which are used from the next maintenance window on
+	 *
+	 * @param depth
+	 * 		The number of upcoming tracks, starting with the next one, whose soundwaves are kept
+	 * @param maxBytesPerRun
+	 * 		The maximum number of downloaded bytes per prefetch run
+	 * @param concurrency
+	 * 		The number of simultaneous downloads of a prefetch run
+	 * @param soundwaveByteBudget
+	 * 		The maximum size of all cached soundwaves in bytes
+	 */
+	public void set(int depth, long maxBytesPerRun, int concurrency, long soundwaveByteBudget) {
+		mPreferences.edit()
+			.putInt(KEY_DEPTH, depth)
+			.putLong(KEY_MAX_BYTES_PER_RUN, maxBytesPerRun)
+			.putInt(KEY_CONCURRENCY, concurrency)
+			.putLong(KEY_SOUNDWAVE_BYTE_BUDGET, soundwaveByteBudget)
+			.commit();
+	}
+
+	/**
+	 * Persists a new look-ahead memory ceiling, which the wallpaper 
+	 * applies right away if it is running
+	 *
+	 * @param bytes
+	 * 		The maximum memory in bytes, which the next track prepared by the wallpaper can take
+	 */
+	public void setLookAheadMemoryCeiling(int bytes) {
+		mPreferences.edit().putInt(KEY_LOOK_AHEAD_MEMORY_CEILING, bytes).commit();
+	}
+
+	/**
+	 * Restores the defaults
+	 */
+	public void clear() {
+		mPreferences.edit().clear().commit();
+	}
+
+	/**
+	 * @param executor
+	 * 		Runs the transactions on the local storage, e.g. the {@link StorageRepository}
+	 * @return
+	 * 		A prefetcher using these tunables
+	 */
+	public SoundwavePrefetcher createPrefetcher(TransactionExecutor executor) {
+		SoundwavePrefetcher prefetcher = new SoundwavePrefetcher(mApplicationContext, executor);
+		prefetcher.setDepth(getDepth());
+		prefetcher.setMaxBytesPerRun(getMaxBytesPerRun());
+		prefetcher.setConcurrency(getConcurrency());
+		return prefetcher;
+	}
+
+	@Override
+	public String toString() {
+		return "depth " + getDepth() + ", " + getMaxBytesPerRun() + " bytes per run, concurrency "
+				+ getConcurrency() + ", soundwave byte budget " + getSoundwaveByteBudget()
+				+ ", look-ahead memory ceiling " + getLookAheadMemoryCeiling();
+	}
+}
@@ -0,0 +1,205 @@
+package com.luboganev.cloudwave.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+
+import com.luboganev.cloudwave.LogUtils;
+import com.luboganev.cloudwave.data.LocalStorageManager;
+import com.luboganev.cloudwave.data.StorageRepository;
+import com.luboganev.cloudwave.data.StorageRepository.Transaction;
+import com.luboganev.cloudwave.data.Track;
+import com.luboganev.cloudwave.data.TransactionExecutor;
+import com.luboganev.cloudwave.service.DownloadEngine.DownloadHandler;
+
+/**
+ * Downloads the soundwaves of the upcoming tracks in advance, so that most
+ * wallpaper changes do not need the network at all. The upcoming tracks are
+ * known from the shuffle order and a window of them is downloaded as a batch,
+ * which the {@link MaintenanceScheduler} runs on an unmetered network or while
+ * charging. Only a missing soundwave of the next track is downloaded right away.
+ * <p>
+ * The missing soundwaves are looked up in a short transaction and every downloaded
+ * one is saved in a transaction of its own, so the downloads never hold the writer 
+ * thread of the {@link StorageRepository}.
+ */
+public class SoundwavePrefetcher {
+	/** Default number of upcoming tracks, starting with the next one, whose soundwaves are kept */
+	public static final int DEFAULT_DEPTH = 8;
+	/** Default maximum number of downloaded bytes per run */
+	public static final long DEFAULT_MAX_BYTES_PER_RUN = 2 * 1024 * 1024;
+	/** Default number of simultaneous downloads */
+	public static final int DEFAULT_CONCURRENCY = 2;
+
+	private final Context mApplicationContext;
+	private final TransactionExecutor mExecutor;
+	private int mDepth = DEFAULT_DEPTH;
+	private long mMaxBytesPerRun = DEFAULT_MAX_BYTES_PER_RUN;
+	private int mConcurrency = DEFAULT_CONCURRENCY;
+
+	/**
+	 * @param applicationContext
+	 * 		Needed for the downloads
+	 * @param executor
+	 * 		Runs the transactions on the local storage, e.g. the {@link StorageRepository}
+	 */
+	public SoundwavePrefetcher(Context applicationContext, TransactionExecutor executor) {
+		mApplicationContext = applicationContext;
+		mExecutor = executor;
+	}
+
+	/**
+	 * @param depth
+	 * 		The number of upcoming tracks, starting with the next one, whose soundwaves are kept
+	 */
+	public void setDepth(int depth) {
+		mDepth = Math.max(1, depth);
+	}
+
+	/**
+	 * @return
+	 * 		The number of upcoming tracks, starting with the next one, whose soundwaves are kept
+	 */
+	public int getDepth() {
+		return mDepth;
+	}
+
+	/**
+	 * @param bytes
+	 * 		The maximum number of downloaded bytes per run
+	 */
+	public void setMaxBytesPerRun(long bytes) {
+		mMaxBytesPerRun = bytes;
+	}
+
+	/**
+	 * @param concurrency
+	 * 		The number of simultaneous downloads, limited by the {@link DownloadEngine}
+	 */
+	public void setConcurrency(int concurrency) {
+		mConcurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * @param manager
+	 * 		The local storage manager of a transaction
+	 * @param depth
+	 * 		The number of upcoming tracks, starting with the next one, whose soundwaves are kept
+	 * @return
+	 * 		if any soundwave of the upcoming tracks has not been downloaded yet
+	 */
+	public static boolean hasMissingSoundwaves(LocalStorageManager manager, int depth) {
+		return !getMissingSoundwaves(manager, Math.max(1, depth)).isEmpty();
+	}
+
+	private static List<MissingSoundwave> getMissingSoundwaves(LocalStorageManager manager, int depth) {
+		List<MissingSoundwave> missing = new ArrayList<MissingSoundwave>(depth);
+		if(manager.getTracksCount() == 0) return missing;
+		// the catalog returns a new track instance for every read, so the same track is told by its id
+		HashSet<Long> missingIds = new HashSet<Long>();
+		for (Track track : manager.getUpcomingTracks(depth)) {
+			if(!manager.hasSoundwave(track.id) && missingIds.add(track.id)) {
+				missing.add(new MissingSoundwave(track, manager.generateSoundwaveImageFile(track.id)));
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Downloads the missing soundwaves of the upcoming tracks with prefetch priority.
+	 * Blocks until all downloads are finished, so it must not be called within a transaction.
+	 *
+	 * @return
+	 * 		The number of downloaded soundwaves
+	 */
+	public int prefetch() {
+		List<MissingSoundwave> missing = mExecutor.execute(new Transaction<List<MissingSoundwave>>() {
+			@Override
+			public List<MissingSoundwave> run(LocalStorageManager manager) {
+				return getMissingSoundwaves(manager, mDepth);
+			}
+		});
+		return download(missing, DownloadEngine.PRIORITY_PREFETCH);
+	}
+
+	/**
+	 * Downloads only the soundwave of the next track if it is missing, with the
+	 * priority of the next track. Blocks until the download is finished, 
+	 * so it must not be called within a transaction.
+	 *
+	 * @return
+	 * 		if the soundwave has been downloaded
+	 */
+	public boolean prefetchNext() {
+		List<MissingSoundwave> next = mExecutor.execute(new Transaction<List<MissingSoundwave>>() {
+			@Override
+			public List<MissingSoundwave> run(LocalStorageManager manager) {
+				List<MissingSoundwave> next = new ArrayList<MissingSoundwave>(1);
+				Track nextTrack = manager.getNextTrack();
+				if(nextTrack != null && !manager.hasSoundwave(nextTrack.id)) {
+					next.add(new MissingSoundwave(nextTrack, manager.generateSoundwaveImageFile(nextTrack.id)));
+				}
+				return next;
+			}
+		});
+		return download(next, DownloadEngine.PRIORITY_NEXT_TRACK) == 1;
+	}
+
+	private int download(List<MissingSoundwave> missing, int priority) {
+		if(missing == null || missing.isEmpty()) return 0;
+		LogUtils.d(this, "Prefetching {} soundwaves", missing.size());
+
+		final AtomicLong downloadedBytes = new AtomicLong();
+		int downloadedCount = 0;
+		DownloadEngine engine = DownloadEngine.getInstance(mApplicationContext);
+		LinkedList<Future<Boolean>> pending = new LinkedList<Future<Boolean>>();
+		for (final MissingSoundwave soundwave : missing) {
+			if(pending.size() >= mConcurrency && DownloadEngine.await(pending.removeFirst())) downloadedCount++;
+			// a started download is always completed, so a run may exceed the limit by one soundwave
+			if(downloadedBytes.get() >= mMaxBytesPerRun) break;
+			pending.add(engine.submit(soundwave.waveformUrl, soundwave.imageFile, 
+					priority, new DownloadHandler() {
+						@Override
+						public boolean onDownloaded(final File file) {
+							downloadedBytes.addAndGet(file.length());
+							// the transaction also lets the subscribers know about the new soundwave
+							Boolean saved = mExecutor.execute(new Transaction<Boolean>() {
+								@Override
+								public Boolean run(LocalStorageManager manager) {
+									return manager.saveSoundwaveSamples(soundwave.trackId, file);
+								}
+							});
+							if(saved == null) file.delete(); // interrupted before the samples were saved
+							return Boolean.TRUE.equals(saved);
+						}
+					}));
+		}
+		for (Future<Boolean> future : pending) {
+			if(DownloadEngine.await(future)) downloadedCount++;
+		}
+		LogUtils.d(this, "Prefetched {} soundwaves, {} bytes", downloadedCount, downloadedBytes.get());
+		return downloadedCount;
+	}
+
+	/**
+	 * A soundwave to download, found within a transaction
+	 */
+	private static class MissingSoundwave {
+		final long trackId;
+		final String waveformUrl;
+		/** Where the image is downloaded to */
+		final File imageFile;
+
+		MissingSoundwave(Track track, File imageFile) {
+			this.trackId = track.id;
+			this.waveformUrl = track.waveformUrl;
+			this.imageFile = imageFile;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.luboganev.cloudwave.service;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+/**
+ * Streaming parser of the SoundCloud tracks response. It pulls only the 
+ * needed fields of every track directly from the stream and hands them to 
+ * a {@link TrackHandler} one by one, so the whole response is never held in memory.
+ * A response of an unexpected structure, e.g. an error object instead of the 
+ * tracks, is reported as malformed like invalid JSON.
+ */
+public class TracksResponseParser {
+	/**
+	 * Receives the parsed tracks
+	 */
+	public interface TrackHandler {
+		/**
+		 * Called for every complete track in the response
+		 * 
+		 * @param id
+		 * 		Track id
+		 * @param title
+		 * 		Track title
+		 * @param permalinkUrl
+		 * 		Track permalink url
+		 * @param waveformUrl
+		 * 		Track waveform url
+		 */
+		public void onTrack(long id, String title, String permalinkUrl, String waveformUrl);
+	}
+	
+	/**
+	 * Parses a JSON array of track objects. Tracks missing 
+	 * any of the needed fields are skipped.
+	 * 
+	 * @param in
+	 * 		The response reader
+	 * @param handler
+	 * 		Receives the parsed tracks
+	 * @return
+	 * 		The number of tracks passed to the handler
+	 * @throws IOException
+	 * 		If reading fails or the response is malformed
+	 */
+	public static int parseTracks(Reader in, TrackHandler handler) throws IOException {
+		JsonReader reader = new JsonReader(in);
+		try {
+			return parseTracksArray(reader, handler);
+		} catch (IllegalStateException e) {
+			throw malformed(e);
+		} catch (NumberFormatException e) {
+			throw malformed(e);
+		}
+	}
+	
+	/**
+	 * Parses a page of a paginated tracks response, i.e. an object with the tracks
+	 * in a "collection" array and the url of the next page in "next_href". 
+	 * A plain JSON array of tracks is handled as the only page.
+	 * 
+	 * @param in
+	 * 		The response reader
+	 * @param handler
+	 * 		Receives the parsed tracks
+	 * @return
+	 * 		The url of the next page or null if this is the last one
+	 * @throws IOException
+	 * 		If reading fails or the response is malformed
+	 */
+	public static String parseTracksPage(Reader in, TrackHandler handler) throws IOException {
+		JsonReader reader = new JsonReader(in);
+		try {
+			return parseTracksPage(reader, handler);
+		} catch (IllegalStateException e) {
+			// thrown by the reader for a value of an unexpected type
+			throw malformed(e);
+		} catch (NumberFormatException e) {
+			throw malformed(e);
+		}
+	}
+	
+	private static String parseTracksPage(JsonReader reader, TrackHandler handler) throws IOException {
+		if(reader.peek() == JsonToken.BEGIN_ARRAY) {
+			parseTracksArray(reader, handler);
+			return null;
+		}
+		String nextHref = null;
+		boolean hasCollection = false;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if(reader.peek() == JsonToken.NULL) {
+				reader.skipValue();
+			}
+			else if("collection".equals(name)) {
+				parseTracksArray(reader, handler);
+				hasCollection = true;
+			}
+			else if("next_href".equals(name)) {
+				nextHref = reader.nextString();
+			}
+			else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		// e.g. an error object, which must not be taken for an empty page
+		if(!hasCollection) throw new MalformedJsonException("The tracks page has no collection");
+		return nextHref;
+	}
+	
+	private static IOException malformed(RuntimeException e) {
+		MalformedJsonException exception = new MalformedJsonException(e.getMessage());
+		exception.initCause(e);
+		return exception;
+	}
+	
+	private static int parseTracksArray(JsonReader reader, TrackHandler handler) throws IOException {
+		int count = 0;
+		reader.beginArray();
+		while (reader.hasNext()) {
+			if(parseTrack(reader, handler)) count++;
+		}
+		reader.endArray();
+		return count;
+	}
+	
+	private static boolean parseTrack(JsonReader reader, TrackHandler handler) throws IOException {
+		long id = -1;
+		String title = null;
+		String permalinkUrl = null;
+		String waveformUrl = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if(reader.peek() == JsonToken.NULL) {
+				reader.skipValue();
+			}
+			else if("id".equals(name)) {
+				id = reader.nextLong();
+			}
+			else if("title".equals(name)) {
+				title = reader.nextString();
+			}
+			else if("permalink_url".equals(name)) {
+				permalinkUrl = reader.nextString();
+			}
+			else if("waveform_url".equals(name)) {
+				waveformUrl = reader.nextString();
+			}
+			else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if(id < 0 || title == null || permalinkUrl == null || waveformUrl == null) return false;
+		handler.onTrack(id, title, permalinkUrl, waveformUrl);
+		return true;
+	}
+}
@@ -0,0 +1,84 @@
+package com.luboganev.cloudwave;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+/**
+ * Keeps all files of a test in a directory of its own, so the tests
+ * neither see nor touch the files of the installed wallpaper.
+ * Everything else is delegated to the wrapped context.
+ */
+public class SandboxContext extends ContextWrapper {
+	private final File mRoot;
+
+	/**
+	 * @param base
+	 * 		The context of the tests
+	 * @param name
+	 * 		The name of the sandbox directory in the cache directory
+	 */
+	public SandboxContext(Context base, String name) {
+		super(base);
+		mRoot = new File(base.getCacheDir(), name);
+		delete(mRoot);
+		mRoot.mkdirs();
+	}
+
+	@Override
+	public Context getApplicationContext() {
+		return this;
+	}
+
+	@Override
+	public File getFilesDir() {
+		return getDirectory("files");
+	}
+
+	@Override
+	public File getCacheDir() {
+		return getDirectory("cache");
+	}
+
+	@Override
+	public File getDir(String name, int mode) {
+		return getDirectory("app_" + name);
+	}
+
+	@Override
+	public FileInputStream openFileInput(String name) throws FileNotFoundException {
+		return new FileInputStream(new File(getFilesDir(), name));
+	}
+
+	@Override
+	public FileOutputStream openFileOutput(String name, int mode) throws FileNotFoundException {
+		return new FileOutputStream(new File(getFilesDir(), name), (mode & MODE_APPEND) != 0);
+	}
+
+	/**
+	 * Deletes all files of the sandbox
+	 */
+	public void clear() {
+		delete(mRoot);
+	}
+
+	private File getDirectory(String name) {
+		File directory = new File(mRoot, name);
+		directory.mkdirs();
+		return directory;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,186 @@
+package com.luboganev.cloudwave.service;
+
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+import com.luboganev.cloudwave.SandboxContext;
+import com.luboganev.cloudwave.data.LocalStorageManager;
+import com.luboganev.cloudwave.data.StorageRepository.Transaction;
+import com.luboganev.cloudwave.data.SyncState;
+import com.luboganev.cloudwave.data.TransactionExecutor;
+import com.luboganev.cloudwave.service.FakeServer.Request;
+import com.luboganev.cloudwave.service.FakeServer.Response;
+
+/**
+ * Runs the {@link CatalogSync} against a {@link FakeServer} serving a
+ * catalog of two pages, whose second page can change without the ETag
+ * of the first page changing.
+ */
+public class CatalogSyncTest extends AndroidTestCase {
+	private static final String FIRST_PAGE_PATH = "/users/heedthesound/tracks.json";
+	private static final String SECOND_PAGE_PATH = "/tracks-page-2";
+
+	private SandboxContext mSandbox;
+	private FakeServer mServer;
+	private CatalogResponder mResponder;
+	private LocalStorageManager mManager;
+	private CatalogSync mSync;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mSandbox = new SandboxContext(getContext(), "catalog_sync_test");
+		mResponder = new CatalogResponder();
+		mServer = new FakeServer(mResponder);
+		mResponder.baseUrl = mServer.getBaseUrl();
+		mManager = new LocalStorageManager(mSandbox);
+		mManager.loadDefaultStorage();
+		mSync = new CatalogSync(mSandbox, directExecutor(mManager), mServer.getBaseUrl());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.shutdown();
+		mSandbox.clear();
+		super.tearDown();
+	}
+
+	public void testFirstSyncWalksAllPages() {
+		assertTrue(mSync.sync());
+		assertEquals(4, mManager.getTracksCount());
+		List<Request> requests = mServer.getRequests();
+		assertEquals(2, requests.size());
+		assertTrue(requests.get(0).path.startsWith(FIRST_PAGE_PATH));
+		assertTrue(requests.get(1).path.startsWith(SECOND_PAGE_PATH));
+	}
+
+	public void testUnchangedCatalogCostsOneRequest() {
+		assertTrue(mSync.sync());
+		assertTrue(mSync.sync());
+		List<Request> requests = mServer.getRequests();
+		assertEquals(3, requests.size());
+		assertEquals(mResponder.firstPageEtag, requests.get(2).getHeader("If-None-Match"));
+		assertEquals(4, mManager.getTracksCount());
+	}
+
+	public void testEmptyCatalogIsFetchedCompletely() {
+		mResponder.secondPageIds = null;
+		assertTrue(mSync.sync());
+		// e.g. the saved catalog could not be read, but the sync state could
+		mManager.loadDefaultStorage();
+		assertTrue(mSync.sync());
+		assertEquals(2, mManager.getTracksCount());
+		List<Request> requests = mServer.getRequests();
+		assertEquals(2, requests.size());
+		assertNull(requests.get(1).getHeader("If-None-Match"));
+	}
+
+	public void testChangeOnLaterPageIsMergedByFullWalk() {
+		assertTrue(mSync.sync());
+		mResponder.secondPageIds = new long[] { 3 };
+		// the validator of the first page cannot tell
+		assertTrue(mSync.sync());
+		assertEquals(4, mManager.getTracksCount());
+
+		ageSyncState(CatalogSync.FULL_SYNC_INTERVAL);
+		assertTrue(mSync.sync());
+		assertEquals(3, mManager.getTracksCount());
+		List<Request> requests = mServer.getRequests();
+		assertEquals(5, requests.size());
+		assertNull(requests.get(3).getHeader("If-None-Match"));
+		assertTrue(requests.get(4).path.startsWith(SECOND_PAGE_PATH));
+	}
+
+	public void testSinglePageValidatorIsTrusted() {
+		mResponder.secondPageIds = null;
+		assertTrue(mSync.sync());
+		assertEquals(2, mManager.getTracksCount());
+
+		ageSyncState(CatalogSync.FULL_SYNC_INTERVAL);
+		assertTrue(mSync.sync());
+		List<Request> requests = mServer.getRequests();
+		assertEquals(2, requests.size());
+		assertEquals(mResponder.firstPageEtag, requests.get(1).getHeader("If-None-Match"));
+	}
+
+	public void testInterruptedSyncResumesWithNextPage() {
+		// a client error does not back off the server, so the sync can be resumed right away
+		mResponder.secondPageCode = 404;
+		assertFalse(mSync.sync());
+		assertEquals(0, mManager.getTracksCount());
+		SyncState state = mManager.loadSyncState();
+		assertTrue(state.inProgress);
+		assertEquals(0, CatalogSync.getNextSyncTime(mManager));
+
+		mResponder.secondPageCode = 200;
+		assertTrue(mSync.sync());
+		assertEquals(4, mManager.getTracksCount());
+		List<Request> requests = mServer.getRequests();
+		assertEquals(3, requests.size());
+		assertTrue(requests.get(2).path.startsWith(SECOND_PAGE_PATH));
+		assertFalse(mManager.loadSyncState().inProgress);
+	}
+
+	/**
+	 * @return
+	 * 		An executor running the transactions right away on the calling thread
+	 */
+	static TransactionExecutor directExecutor(final LocalStorageManager manager) {
+		return new TransactionExecutor() {
+			@Override
+			public <T> T execute(Transaction<T> transaction) {
+				return transaction.run(manager);
+			}
+		};
+	}
+
+	/**
+	 * Moves the last synchronization back in time
+	 */
+	private void ageSyncState(long millis) {
+		SyncState state = mManager.loadSyncState();
+		state.lastSyncTime -= millis;
+		state.lastFullSyncTime -= millis;
+		assertTrue(mManager.saveSyncState(state));
+	}
+
+	/**
+	 * Serves the first page with a fixed ETag and optionally a second page
+	 */
+	private static class CatalogResponder implements FakeServer.Responder {
+		volatile String baseUrl;
+		volatile String firstPageEtag = "\"catalog-1\"";
+		final long[] firstPageIds = { 1, 2 };
+		/** The tracks of the second page or null if the first page is the only one */
+		volatile long[] secondPageIds = { 3, 4 };
+		volatile int secondPageCode = 200;
+
+		@Override
+		public Response respond(Request request) {
+			if(request.path.startsWith(FIRST_PAGE_PATH)) {
+				if(firstPageEtag.equals(request.getHeader("If-None-Match"))) return new Response(304);
+				String nextHref = secondPageIds == null ? null : baseUrl + SECOND_PAGE_PATH;
+				return Response.json(createPage(firstPageIds, nextHref)).header("ETag", firstPageEtag);
+			}
+			if(request.path.startsWith(SECOND_PAGE_PATH) && secondPageIds != null) {
+				if(secondPageCode != 200) return new Response(secondPageCode);
+				return Response.json(createPage(secondPageIds, null));
+			}
+			return new Response(404);
+		}
+
+		private static String createPage(long[] ids, String nextHref) {
+			StringBuilder sb = new StringBuilder("{\"collection\":[");
+			for (int i = 0; i < ids.length; i++) {
+				if(i > 0) sb.append(',');
+				sb.append("{\"id\":").append(ids[i]).append(",\"title\":\"Track ").append(ids[i])
+					.append("\",\"permalink_url\":\"http://soundcloud.com/heedthesound/track-").append(ids[i])
+					.append("\",\"waveform_url\":\"http://w1.sndcdn.com/track-").append(ids[i]).append("_m.png\"}");
+			}
+			sb.append(']');
+			if(nextHref != null) sb.append(",\"next_href\":\"").append(nextHref).append('"');
+			return sb.append('}').toString();
+		}
+	}
+}
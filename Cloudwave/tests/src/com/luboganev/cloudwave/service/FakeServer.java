@@ -0,0 +1,238 @@
+package com.luboganev.cloudwave.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A local stand-in for the SoundCloud servers. Every request is answered by a
+ * {@link Responder}, which can also inject faults, i.e. error codes, responses
+ * delayed beyond the read timeout or connections closed without a response.
+ * It serves one request per connection on a background thread and records all
+ * requests for the assertions of the tests.
+ */
+public class FakeServer {
+	/**
+	 * Answers the requests on the thread of the server
+	 */
+	public interface Responder {
+		/**
+		 * @param request
+		 * 		The received request
+		 * @return
+		 * 		The response to send
+		 */
+		public Response respond(Request request);
+	}
+
+	/**
+	 * A received request
+	 */
+	public static class Request {
+		/** The path including the query */
+		public final String path;
+		/** The headers with lower case names */
+		public final Map<String, String> headers;
+
+		Request(String path, Map<String, String> headers) {
+			this.path = path;
+			this.headers = headers;
+		}
+
+		/**
+		 * @param name
+		 * 		The name of the header
+		 * @return
+		 * 		The value of the header or null if it was not sent
+		 */
+		public String getHeader(String name) {
+			return headers.get(name.toLowerCase(Locale.US));
+		}
+	}
+
+	/**
+	 * A response or a fault to inject
+	 */
+	public static class Response {
+		public final int code;
+		public final Map<String, String> headers = new HashMap<String, String>();
+		public byte[] body = new byte[0];
+		/** The time to wait before responding, e.g. to make the request time out */
+		public long delayMillis;
+		/** Closes the connection without any response */
+		public boolean drop;
+
+		public Response(int code) {
+			this.code = code;
+		}
+
+		/**
+		 * @return
+		 * 		A 200 response with a JSON body
+		 */
+		public static Response json(String body) {
+			Response response = new Response(200);
+			response.headers.put("Content-Type", "application/json");
+			try {
+				response.body = body.getBytes("UTF-8");
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+			return response;
+		}
+
+		/**
+		 * @return
+		 * 		A connection closed without any response
+		 */
+		public static Response dropped() {
+			Response response = new Response(0);
+			response.drop = true;
+			return response;
+		}
+
+		/**
+		 * @return
+		 * 		This response with another header
+		 */
+		public Response header(String name, String value) {
+			headers.put(name, value);
+			return this;
+		}
+	}
+
+	private final ServerSocket mServerSocket;
+	private final Responder mResponder;
+	private final List<Request> mRequests = new ArrayList<Request>();
+	private final Thread mThread;
+	private volatile boolean mShutdown;
+
+	/**
+	 * Starts the server on a free port of the loopback interface
+	 *
+	 * @param responder
+	 * 		Answers the requests
+	 */
+	public FakeServer(Responder responder) throws IOException {
+		mResponder = responder;
+		mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				serve();
+			}
+		}, "FakeServer");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * @return
+	 * 		The url of the server without a trailing slash
+	 */
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+	}
+
+	/**
+	 * @return
+	 * 		A copy of all received requests in the order they were received
+	 */
+	public List<Request> getRequests() {
+		synchronized (mRequests) {
+			return new ArrayList<Request>(mRequests);
+		}
+	}
+
+	/**
+	 * Stops accepting connections
+	 */
+	public void shutdown() {
+		mShutdown = true;
+		try {
+			mServerSocket.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	private void serve() {
+		while (!mShutdown) {
+			Socket socket = null;
+			try {
+				socket = mServerSocket.accept();
+				handle(socket);
+			} catch (IOException e) {
+				// the server was shut down or the client has gone away
+			} finally {
+				if(socket != null) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// nothing to do
+					}
+				}
+			}
+		}
+	}
+
+	private void handle(Socket socket) throws IOException {
+		InputStream in = socket.getInputStream();
+		String requestLine = readLine(in);
+		if(requestLine == null) return;
+		String[] parts = requestLine.split(" ");
+		if(parts.length < 2) return;
+		HashMap<String, String> headers = new HashMap<String, String>();
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			if(colon > 0) {
+				headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+			}
+		}
+		Request request = new Request(parts[1], headers);
+		synchronized (mRequests) {
+			mRequests.add(request);
+		}
+		Response response = mResponder.respond(request);
+		if(response.delayMillis > 0) {
+			try {
+				Thread.sleep(response.delayMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+		if(response.drop) return;
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(response.code).append(" Fake\r\n");
+		for (Map.Entry<String, String> header : response.headers.entrySet()) {
+			head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		head.append("Content-Length: ").append(response.body.length).append("\r\n");
+		head.append("Connection: close\r\n\r\n");
+		OutputStream out = socket.getOutputStream();
+		out.write(head.toString().getBytes("ISO-8859-1"));
+		out.write(response.body);
+		out.flush();
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1) {
+			if(b == '\n') break;
+			if(b != '\r') line.write(b);
+		}
+		if(b == -1 && line.size() == 0) return null;
+		return line.toString("ISO-8859-1");
+	}
+}
@@ -0,0 +1,153 @@
+package com.luboganev.cloudwave.service;
+
+import java.io.File;
+import java.net.ServerSocket;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import com.luboganev.cloudwave.SandboxContext;
+import com.luboganev.cloudwave.data.LocalStorageManager;
+import com.luboganev.cloudwave.service.FakeServer.Request;
+import com.luboganev.cloudwave.service.FakeServer.Response;
+
+/**
+ * Injects faults with a {@link FakeServer} and checks that the
+ * {@link NetworkResilience} backs off the server, opens its circuit
+ * breaker and persists its state.
+ */
+public class NetworkResilienceTest extends AndroidTestCase {
+	/** The backoff after the third failure is at most two minutes, an open breaker blocks for longer */
+	private static final long MAX_THIRD_BACKOFF = 2 * 60 * 1000;
+	/** Longer than the read timeout of the {@link HttpTransport} */
+	private static final long TIMEOUT_DELAY = 11 * 1000;
+
+	private SandboxContext mSandbox;
+	private SharedPreferences mPreferences;
+	private FakeServer mServer;
+	private volatile Response mResponse;
+	private String mUrl;
+	private File mTarget;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mSandbox = new SandboxContext(getContext(), "network_resilience_test");
+		mPreferences = getContext().getSharedPreferences("network_resilience_test", Context.MODE_PRIVATE);
+		mPreferences.edit().clear().commit();
+		mServer = new FakeServer(new FakeServer.Responder() {
+			@Override
+			public Response respond(Request request) {
+				return mResponse;
+			}
+		});
+		mUrl = mServer.getBaseUrl() + "/soundwave.png";
+		mTarget = new File(mSandbox.getCacheDir(), "soundwave.png");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.shutdown();
+		mPreferences.edit().clear().commit();
+		mSandbox.clear();
+		super.tearDown();
+	}
+
+	public void testServerErrorBacksOff() {
+		NetworkResilience resilience = new NetworkResilience(mPreferences);
+		mResponse = new Response(503);
+		assertTrue(resilience.allowRequest(mUrl));
+		assertFalse(download(resilience, mUrl));
+		assertFalse(resilience.allowRequest(mUrl));
+		assertTrue(resilience.getRetryTime(mUrl) > System.currentTimeMillis());
+	}
+
+	public void testRepeatedServerErrorsOpenBreaker() {
+		NetworkResilience resilience = new NetworkResilience(mPreferences);
+		mResponse = new Response(503);
+		// retried as if the backoff had passed each time
+		download(resilience, mUrl);
+		download(resilience, mUrl);
+		assertTrue(resilience.getRetryTime(mUrl) < System.currentTimeMillis() + MAX_THIRD_BACKOFF);
+		download(resilience, mUrl);
+		assertTrue(resilience.getRetryTime(mUrl) > System.currentTimeMillis() + MAX_THIRD_BACKOFF);
+	}
+
+	public void testStateSurvivesNewInstance() {
+		NetworkResilience resilience = new NetworkResilience(mPreferences);
+		mResponse = new Response(429);
+		download(resilience, mUrl);
+		long retryTime = resilience.getRetryTime(mUrl);
+		assertTrue(retryTime > 0);
+
+		NetworkResilience restored = new NetworkResilience(mPreferences);
+		assertFalse(restored.allowRequest(mUrl));
+		assertEquals(retryTime, restored.getRetryTime(mUrl));
+	}
+
+	public void testSuccessResetsState() {
+		NetworkResilience resilience = new NetworkResilience(mPreferences);
+		mResponse = new Response(500);
+		download(resilience, mUrl);
+		mResponse = Response.json("{}");
+		assertTrue(download(resilience, mUrl));
+		assertTrue(resilience.allowRequest(mUrl));
+		assertTrue(mPreferences.getAll().isEmpty());
+	}
+
+	public void testClientErrorKeepsServerHealthy() {
+		NetworkResilience resilience = new NetworkResilience(mPreferences);
+		mResponse = new Response(404);
+		assertFalse(download(resilience, mUrl));
+		assertTrue(resilience.allowRequest(mUrl));
+	}
+
+	public void testTimeoutCountsAsServerFailure() {
+		NetworkResilience resilience = new NetworkResilience(mPreferences);
+		mResponse = Response.json("{}");
+		mResponse.delayMillis = TIMEOUT_DELAY;
+		assertFalse(download(resilience, mUrl));
+		assertFalse(resilience.allowRequest(mUrl));
+		// a server failure is not blamed on the connection
+		resilience.onConnectivityRestored();
+		assertFalse(resilience.allowRequest(mUrl));
+	}
+
+	public void testRestoredConnectivityDropsBackoff() throws Exception {
+		NetworkResilience resilience = new NetworkResilience(mPreferences);
+		ServerSocket socket = new ServerSocket(0);
+		String refusedUrl = "http://127.0.0.1:" + socket.getLocalPort() + "/soundwave.png";
+		socket.close();
+		assertFalse(download(resilience, refusedUrl));
+		assertFalse(resilience.allowRequest(refusedUrl));
+		resilience.onConnectivityRestored();
+		assertTrue(resilience.allowRequest(refusedUrl));
+	}
+
+	public void testCatalogSyncStopsAtFailingServer() {
+		mResponse = new Response(503);
+		LocalStorageManager manager = new LocalStorageManager(mSandbox);
+		manager.loadDefaultStorage();
+		CatalogSync sync = new CatalogSync(mSandbox, CatalogSyncTest.directExecutor(manager), mServer.getBaseUrl());
+		assertFalse(sync.sync());
+		assertEquals(1, mServer.getRequests().size());
+		// the retry is rejected without a request
+		assertFalse(sync.sync());
+		assertEquals(1, mServer.getRequests().size());
+		assertEquals(0, manager.getTracksCount());
+	}
+
+	/**
+	 * Downloads the url and reports the outcome like the app does
+	 *
+	 * @return
+	 * 		if the download succeeded
+	 */
+	private boolean download(NetworkResilience resilience, String url) {
+		HttpTransport.RequestStatus status = new HttpTransport.RequestStatus();
+		boolean success = HttpTransport.download(url, mTarget, status);
+		resilience.onRequestFinished(url, status, success);
+		return success;
+	}
+}